@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionBindingSupport;
+import com.github.rholder.spring.transaction.TransactionListener;
+import com.github.rholder.spring.transaction.TransactionListenerAdapter;
+
+/**
+ * Measures binding N listeners to a transaction and the <tt>beforeCommit</tt>,
+ * <tt>beforeCompletion</tt> and <tt>afterCompletion</tt> dispatch to them.  The
+ * difference between the commit and rollback variants is the cost of the
+ * <tt>beforeCommit</tt> waves.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark
+{
+    @Param({"1", "10", "100"})
+    public int listenerCount;
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+    private TransactionListener[] listeners;
+    private long calls;
+
+    @Setup
+    public void createListeners()
+    {
+        listeners = new TransactionListener[listenerCount];
+        for (int i = 0; i < listenerCount; i++)
+        {
+            listeners[i] = new TransactionListenerAdapter()
+            {
+                @Override
+                public void beforeCommit(boolean readOnly)
+                {
+                    calls++;
+                }
+
+                @Override
+                public void afterCommit()
+                {
+                    calls++;
+                }
+
+                @Override
+                public void afterRollback()
+                {
+                    calls++;
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public long bindListenersRollback()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        for (TransactionListener listener : listeners)
+        {
+            TransactionBindingSupport.bindListener(listener);
+        }
+        transactionManager.rollback(status);
+        return calls;
+    }
+
+    @Benchmark
+    public long bindListenersCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        for (TransactionListener listener : listeners)
+        {
+            TransactionBindingSupport.bindListener(listener);
+        }
+        transactionManager.commit(status);
+        return calls;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionalOutbox;
+
+/**
+ * Measures the commit rate with one event published to a <tt>TransactionalOutbox</tt> per
+ * transaction.  Each commit forces the journal to disk, so run with several threads to see
+ * commits sharing their forces.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboxBenchmark
+{
+    @Param({"256"})
+    private int payloadSize;
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+    private File directory;
+    private TransactionalOutbox outbox;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void createOutbox() throws IOException
+    {
+        directory = File.createTempFile("outbox-benchmark", "");
+        directory.delete();
+        payload = new byte[payloadSize];
+        outbox = new TransactionalOutbox(directory, new TransactionalOutbox.EventHandler()
+        {
+            public void handleEvent(String transactionId, ByteBuffer payload)
+            {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void destroyOutbox()
+    {
+        outbox.destroy();
+        for (File file : directory.listFiles())
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void publishCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        outbox.publish(payload);
+        transactionManager.commit(status);
+    }
+}
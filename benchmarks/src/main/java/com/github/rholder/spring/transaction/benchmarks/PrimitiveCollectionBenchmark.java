@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.IntCounterMap;
+import com.github.rholder.spring.transaction.LongArrayList;
+import com.github.rholder.spring.transaction.LongHashSet;
+import com.github.rholder.spring.transaction.LongObjectHashMap;
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionalResourceHelper;
+
+/**
+ * Compares the boxed <tt>TransactionalResourceHelper</tt> collections against their
+ * primitive counterparts when a transaction collects a batch of entity ids.  Run with
+ * <tt>-prof gc</tt> to see the difference in allocation per transaction.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveCollectionBenchmark
+{
+    private static final String KEY = "PrimitiveCollectionBenchmark.ids";
+    private static final String[] ENTITY_TYPES = {"node", "content", "property", "association"};
+
+    @Param({"100", "10000"})
+    public int idCount;
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+
+    /**
+     * @return Returns a sparse but ordered id, as handed out by a database sequence
+     */
+    private static long id(int i)
+    {
+        return 1000000L + i * 7L;
+    }
+
+    @Benchmark
+    public int boxedSet()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        Set<Long> ids = TransactionalResourceHelper.getSet(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            ids.add(id(i));
+        }
+        int size = ids.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int primitiveSet()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        LongHashSet ids = TransactionalResourceHelper.getLongSet(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            ids.add(id(i));
+        }
+        int size = ids.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int boxedList()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        List<Long> ids = TransactionalResourceHelper.getList(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            ids.add(id(i));
+        }
+        int size = ids.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int primitiveList()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        LongArrayList ids = TransactionalResourceHelper.getLongList(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            ids.add(id(i));
+        }
+        int size = ids.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int boxedMap()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        Map<Long, String> types = TransactionalResourceHelper.getMap(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            types.put(id(i), ENTITY_TYPES[i & 3]);
+        }
+        int size = types.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int primitiveMap()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        LongObjectHashMap<String> types = TransactionalResourceHelper.getLongToObjectMap(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            types.put(id(i), ENTITY_TYPES[i & 3]);
+        }
+        int size = types.size();
+        transactionManager.commit(status);
+        return size;
+    }
+
+    @Benchmark
+    public int boxedCounter()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        Map<String, Integer> counts = TransactionalResourceHelper.getMap(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            String type = ENTITY_TYPES[i & 3];
+            Integer count = counts.get(type);
+            counts.put(type, count == null ? 1 : count + 1);
+        }
+        int total = counts.get(ENTITY_TYPES[0]);
+        transactionManager.commit(status);
+        return total;
+    }
+
+    @Benchmark
+    public int primitiveCounter()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        IntCounterMap<String> counts = TransactionalResourceHelper.getIntCounterMap(KEY);
+        for (int i = 0; i < idCount; i++)
+        {
+            counts.increment(ENTITY_TYPES[i & 3]);
+        }
+        int total = counts.get(ENTITY_TYPES[0]);
+        transactionManager.commit(status);
+        return total;
+    }
+}
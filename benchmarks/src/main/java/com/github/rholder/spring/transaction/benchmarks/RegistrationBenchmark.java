@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionBindingSupport;
+import com.github.rholder.spring.transaction.TransactionResourceKey;
+
+/**
+ * Measures the cost of <tt>registerSynchronizations()</tt> on the first touch of a
+ * transaction against a bare begin/commit cycle, with and without recycling of the
+ * per-transaction synchronization, and of a read-only transaction that only binds a
+ * resource, with and without lazy registration.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark
+{
+    private static final TransactionResourceKey<Object> KEY =
+            new TransactionResourceKey<Object>("RegistrationBenchmark.key");
+
+    @Param({"false", "true"})
+    public boolean recycle;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+    private final DefaultTransactionDefinition readOnlyDefinition = new DefaultTransactionDefinition();
+    private final Object value = new Object();
+
+    @Setup
+    public void configureRecycling()
+    {
+        TransactionBindingSupport.setRecycleSynchronizations(recycle);
+        TransactionBindingSupport.setLazyRegistration(lazy);
+        readOnlyDefinition.setReadOnly(true);
+    }
+
+    @Benchmark
+    public void beginCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        transactionManager.commit(status);
+    }
+
+    @Benchmark
+    public String beginFirstTouchCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        String txnId = TransactionBindingSupport.getTransactionId();
+        transactionManager.commit(status);
+        return txnId;
+    }
+
+    @Benchmark
+    public long beginFirstTouchAsLongCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        long txnId = TransactionBindingSupport.getTransactionIdAsLong();
+        transactionManager.commit(status);
+        return txnId;
+    }
+
+    @Benchmark
+    public Object beginReadOnlyResourceCommit()
+    {
+        TransactionStatus status = transactionManager.getTransaction(readOnlyDefinition);
+        TransactionBindingSupport.bindResource(KEY, value);
+        Object resource = TransactionBindingSupport.getResource(KEY);
+        transactionManager.commit(status);
+        return resource;
+    }
+}
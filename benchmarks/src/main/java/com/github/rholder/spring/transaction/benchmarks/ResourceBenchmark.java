@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionBindingSupport;
+import com.github.rholder.spring.transaction.TransactionResourceKey;
+
+/**
+ * Measures <tt>getResource</tt>, <tt>bindResource</tt> and <tt>unbindResource</tt> against
+ * a transaction that is already bound to the benchmark thread, both through the static methods
+ * and through a handle from <tt>currentContext()</tt>.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceBenchmark
+{
+    private static final String KEY = "ResourceBenchmark.key";
+    private static final String UNBOUND_KEY = "ResourceBenchmark.unbound";
+    private static final TransactionResourceKey<Object> TYPED_KEY =
+            new TransactionResourceKey<Object>("ResourceBenchmark.typed");
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final Object value = new Object();
+    private TransactionStatus status;
+    private TransactionBindingSupport.TransactionContext context;
+
+    @Setup(Level.Iteration)
+    public void beginTransaction()
+    {
+        status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        TransactionBindingSupport.bindResource(KEY, value);
+        TransactionBindingSupport.bindResource(TYPED_KEY, value);
+        context = TransactionBindingSupport.currentContext();
+    }
+
+    @TearDown(Level.Iteration)
+    public void commitTransaction()
+    {
+        transactionManager.commit(status);
+    }
+
+    @Benchmark
+    public Object getResource()
+    {
+        return TransactionBindingSupport.getResource(KEY);
+    }
+
+    @Benchmark
+    public Object getTypedResource()
+    {
+        return TransactionBindingSupport.getResource(TYPED_KEY);
+    }
+
+    @Benchmark
+    public void bindTypedResource()
+    {
+        TransactionBindingSupport.bindResource(TYPED_KEY, value);
+    }
+
+    @Benchmark
+    public Object getMissingResource()
+    {
+        return TransactionBindingSupport.getResource(UNBOUND_KEY);
+    }
+
+    @Benchmark
+    public void bindResource()
+    {
+        TransactionBindingSupport.bindResource(KEY, value);
+    }
+
+    @Benchmark
+    public void bindUnbindResource()
+    {
+        TransactionBindingSupport.bindResource(UNBOUND_KEY, value);
+        TransactionBindingSupport.unbindResource(UNBOUND_KEY);
+    }
+
+    @Benchmark
+    public Object getResourceViaContext()
+    {
+        return context.getResource(KEY);
+    }
+
+    @Benchmark
+    public Object getTypedResourceViaContext()
+    {
+        return context.getResource(TYPED_KEY);
+    }
+
+    @Benchmark
+    public void bindUnbindResourceViaContext()
+    {
+        context.bindResource(UNBOUND_KEY, value);
+        context.unbindResource(UNBOUND_KEY);
+    }
+}
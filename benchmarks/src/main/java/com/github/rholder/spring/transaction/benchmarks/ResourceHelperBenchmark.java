@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionalResourceHelper;
+
+/**
+ * Measures the <tt>TransactionalResourceHelper</tt> collection helpers, both fetching
+ * an already bound collection and creating one on first use in a new transaction.
+ * 
+ * @author Ray Holder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceHelperBenchmark
+{
+    private static final String MAP_KEY = "ResourceHelperBenchmark.map";
+    private static final String SET_KEY = "ResourceHelperBenchmark.set";
+    private static final String LIST_KEY = "ResourceHelperBenchmark.list";
+
+    private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+    private final DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+    private TransactionStatus status;
+
+    /**
+     * Holds a transaction open on the benchmark thread for the hot lookups
+     */
+    @State(Scope.Thread)
+    public static class HotTransaction
+    {
+        private final PlatformTransactionManager transactionManager = new StubTransactionManager();
+        private TransactionStatus status;
+
+        @Setup(Level.Iteration)
+        public void beginTransaction()
+        {
+            status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+            TransactionalResourceHelper.getMap(MAP_KEY);
+            TransactionalResourceHelper.getSet(SET_KEY);
+            TransactionalResourceHelper.getList(LIST_KEY);
+        }
+
+        @TearDown(Level.Iteration)
+        public void commitTransaction()
+        {
+            transactionManager.commit(status);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> getMapHot(HotTransaction txn)
+    {
+        return TransactionalResourceHelper.getMap(MAP_KEY);
+    }
+
+    @Benchmark
+    public Set<String> getSetHot(HotTransaction txn)
+    {
+        return TransactionalResourceHelper.getSet(SET_KEY);
+    }
+
+    @Benchmark
+    public List<String> getListHot(HotTransaction txn)
+    {
+        return TransactionalResourceHelper.getList(LIST_KEY);
+    }
+
+    @Benchmark
+    public int createHelpersPerTransaction()
+    {
+        status = transactionManager.getTransaction(definition);
+        Map<String, String> map = TransactionalResourceHelper.getMap(MAP_KEY);
+        Set<String> set = TransactionalResourceHelper.getSet(SET_KEY);
+        List<String> list = TransactionalResourceHelper.getList(LIST_KEY);
+        transactionManager.commit(status);
+        return map.size() + set.size() + list.size();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.jfr;
+
+import java.util.ArrayDeque;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+
+import com.github.rholder.spring.transaction.TransactionBindingMetrics;
+import com.github.rholder.spring.transaction.TransactionBindingSupport;
+import com.github.rholder.spring.transaction.TransactionPhase;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Reports the transaction binding lifecycle as Java Flight Recorder events, so that commit
+ * latency can be profiled with an always-on recording and lined up against GC, lock and I/O
+ * events on the same thread.
+ * <p>
+ * Each callback checks whether its event is enabled before filling it in, so with no recording
+ * running, or with the events disabled in the recording settings, nothing is formatted and the
+ * JIT can drop the unused event objects.  Listener invocations, the <tt>beforeCommit</tt> and
+ * <tt>beforeCompletion</tt> phases and the completion of the transaction are begun when the work
+ * starts and committed once it ends, so the events span the work they report, and the
+ * invocations made in a phase fall within the phase.  Install it with:
+ * <pre>
+ *     TransactionBindingSupport.setTransactionBindingMetrics(new JfrTransactionBindingMetrics());
+ * </pre>
+ * or through {@link #install()}.
+ *
+ * @author Ray Holder
+ */
+public class JfrTransactionBindingMetrics implements TransactionBindingMetrics
+{
+    /** stands in for a begun event that is not enabled, so that begins and ends still pair up */
+    private static final Object NOT_RECORDED = new Object();
+
+    /** the events begun on each thread and not yet ended, innermost first */
+    private final ThreadLocal<ArrayDeque<Object>> begunEvents = new ThreadLocal<ArrayDeque<Object>>()
+    {
+        @Override
+        protected ArrayDeque<Object> initialValue()
+        {
+            return new ArrayDeque<Object>(8);
+        }
+    };
+
+    /**
+     * Registers the events with the flight recorder and makes a new instance the metrics used
+     * for all transactions bound from now on
+     *
+     * @return Returns the installed instance
+     */
+    public static JfrTransactionBindingMetrics install()
+    {
+        FlightRecorder.register(SynchronizationRegisteredEvent.class);
+        FlightRecorder.register(ResourceBindingEvent.class);
+        FlightRecorder.register(SynchronizationSuspensionEvent.class);
+        FlightRecorder.register(ListenerInvocationEvent.class);
+        FlightRecorder.register(PhaseCompletedEvent.class);
+        FlightRecorder.register(TransactionCompletedEvent.class);
+        JfrTransactionBindingMetrics metrics = new JfrTransactionBindingMetrics();
+        TransactionBindingSupport.setTransactionBindingMetrics(metrics);
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationRegistered(long txnId)
+    {
+        SynchronizationRegisteredEvent event = new SynchronizationRegisteredEvent();
+        if (event.isEnabled())
+        {
+            event.transactionId = txnId;
+            event.commit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void resourceBound(long txnId, Object key)
+    {
+        resourceBinding(txnId, key, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void resourceUnbound(long txnId, Object key)
+    {
+        resourceBinding(txnId, key, false);
+    }
+
+    private void resourceBinding(long txnId, Object key, boolean bound)
+    {
+        ResourceBindingEvent event = new ResourceBindingEvent();
+        if (event.isEnabled())
+        {
+            event.transactionId = txnId;
+            event.key = String.valueOf(key);
+            event.bound = bound;
+            event.commit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationSuspended(long txnId)
+    {
+        suspension(txnId, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationResumed(long txnId)
+    {
+        suspension(txnId, true);
+    }
+
+    private void suspension(long txnId, boolean resumed)
+    {
+        SynchronizationSuspensionEvent event = new SynchronizationSuspensionEvent();
+        if (event.isEnabled())
+        {
+            event.transactionId = txnId;
+            event.resumed = resumed;
+            event.commit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void listenerInvoking(long txnId, TransactionPhase phase, Class<?> listenerClass)
+    {
+        begin(new ListenerInvocationEvent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void listenerInvoked(long txnId, TransactionPhase phase, Class<?> listenerClass, long elapsedNanos)
+    {
+        ListenerInvocationEvent event = end(ListenerInvocationEvent.class);
+        if (event != null)
+        {
+            event.transactionId = txnId;
+            event.phase = phase.name();
+            event.listenerClass = listenerClass;
+            event.commit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void phaseStarting(long txnId, TransactionPhase phase)
+    {
+        switch (phase)
+        {
+            case BEFORE_COMMIT:
+            case BEFORE_COMPLETION:
+                begin(new PhaseCompletedEvent());
+                break;
+            default:
+                begin(new TransactionCompletedEvent());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeCommitCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+        phaseCompleted(txnId, TransactionPhase.BEFORE_COMMIT, listenerCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeCompletionCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+        phaseCompleted(txnId, TransactionPhase.BEFORE_COMPLETION, listenerCount);
+    }
+
+    private void phaseCompleted(long txnId, TransactionPhase phase, int listenerCount)
+    {
+        PhaseCompletedEvent event = end(PhaseCompletedEvent.class);
+        if (event != null)
+        {
+            event.transactionId = txnId;
+            event.phase = phase.name();
+            event.listenerCount = listenerCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void transactionCompleted(long txnId, int status, long durationMs, int listenerCount, int resourceCount, long elapsedNanos)
+    {
+        TransactionCompletedEvent event = end(TransactionCompletedEvent.class);
+        if (event != null)
+        {
+            event.transactionId = txnId;
+            switch (status)
+            {
+                case TransactionSynchronization.STATUS_COMMITTED:
+                    event.status = "committed";
+                    break;
+                case TransactionSynchronization.STATUS_ROLLED_BACK:
+                    event.status = "rolled-back";
+                    break;
+                default:
+                    event.status = "unknown";
+            }
+            event.transactionDuration = durationMs;
+            event.listenerCount = listenerCount;
+            event.resourceCount = resourceCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing an event that spans a callback or phase, if the event is enabled
+     */
+    private void begin(TransactionBindingEvent event)
+    {
+        if (event.isEnabled())
+        {
+            event.begin();
+            begunEvents.get().push(event);
+        }
+        else
+        {
+            begunEvents.get().push(NOT_RECORDED);
+        }
+    }
+
+    /**
+     * Stops timing the innermost event begun on this thread
+     *
+     * @param type  the type of event expected
+     * @return Returns the event, to be filled in and committed, or <tt>null</tt> if it is not
+     *      being recorded
+     */
+    private <E extends TransactionBindingEvent> E end(Class<E> type)
+    {
+        Object begun = begunEvents.get().poll();
+        if (!type.isInstance(begun))
+        {
+            return null;
+        }
+        E event = type.cast(begun);
+        event.end();
+        return event.shouldCommit() ? event : null;
+    }
+}
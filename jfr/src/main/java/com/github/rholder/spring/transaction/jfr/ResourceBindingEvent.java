@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A resource was bound to or unbound from a transaction.
+ *
+ * @author Ray Holder
+ */
+@Name("com.github.rholder.transaction.ResourceBinding")
+@Label("Resource Binding")
+@Category(TransactionBindingEvent.CATEGORY)
+@Description("A resource was bound to or unbound from a transaction")
+@StackTrace(false)
+public class ResourceBindingEvent extends TransactionBindingEvent
+{
+    @Label("Resource Key")
+    String key;
+
+    @Label("Bound")
+    @Description("true if the resource was bound, false if it was unbound")
+    boolean bound;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A transaction completed and its listeners finished <tt>afterCommit</tt> or <tt>afterRollback</tt>.
+ * The event spans the post-completion callbacks.
+ *
+ * @author Ray Holder
+ */
+@Name("com.github.rholder.transaction.TransactionCompleted")
+@Label("Transaction Completed")
+@Category(TransactionBindingEvent.CATEGORY)
+@Description("A bound transaction completed and its post-completion listeners finished")
+@StackTrace(false)
+public class TransactionCompletedEvent extends TransactionBindingEvent
+{
+    @Label("Status")
+    String status;
+
+    @Label("Transaction Duration")
+    @Description("Time from when the transaction was bound until it completed")
+    @Timespan(Timespan.MILLISECONDS)
+    long transactionDuration;
+
+    @Label("Listener Count")
+    int listenerCount;
+
+    @Label("Resource Count")
+    int resourceCount;
+}
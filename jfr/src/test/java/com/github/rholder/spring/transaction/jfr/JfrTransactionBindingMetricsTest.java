@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction.jfr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import com.github.rholder.spring.transaction.StubTransactionManager;
+import com.github.rholder.spring.transaction.TransactionBindingSupport;
+import com.github.rholder.spring.transaction.TransactionListenerAdapter;
+
+public class JfrTransactionBindingMetricsTest {
+
+    @After
+    public void after() {
+        TransactionBindingSupport.setTransactionBindingMetrics(null);
+    }
+
+    @Test
+    public void testEventsRecorded() throws Exception {
+        JfrTransactionBindingMetrics.install();
+        StubTransactionManager transactionManager = new StubTransactionManager();
+        long txnId;
+        Path file = Files.createTempFile("transaction-binding", ".jfr");
+        try {
+            Recording recording = new Recording();
+            recording.enable(SynchronizationRegisteredEvent.class);
+            recording.enable(ResourceBindingEvent.class);
+            recording.enable(SynchronizationSuspensionEvent.class);
+            recording.enable(ListenerInvocationEvent.class);
+            recording.enable(PhaseCompletedEvent.class);
+            recording.enable(TransactionCompletedEvent.class);
+            recording.start();
+
+            TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+            TransactionBindingSupport.bindResource("key", "value");
+            TransactionBindingSupport.unbindResource("key");
+            TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+            });
+            txnId = TransactionBindingSupport.getTransactionIdAsLong();
+            TransactionStatus inner = transactionManager.getTransaction(
+                    new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+            transactionManager.commit(inner);
+            transactionManager.commit(status);
+
+            recording.stop();
+            recording.dump(file);
+            recording.close();
+
+            List<String> names = new ArrayList<String>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getLong("transactionId") == txnId) {
+                    names.add(event.getEventType().getName().replace("com.github.rholder.transaction.", ""));
+                    if (event.getEventType().getName().endsWith("TransactionCompleted")) {
+                        Assert.assertEquals("committed", event.getString("status"));
+                        Assert.assertEquals(1, event.getInt("listenerCount"));
+                    }
+                }
+            }
+            Assert.assertTrue(names.toString(), names.contains("SynchronizationRegistered"));
+            Assert.assertEquals(names.toString(), 2, count(names, "ResourceBinding"));
+            Assert.assertEquals(names.toString(), 2, count(names, "SynchronizationSuspension"));
+            Assert.assertEquals(names.toString(), 3, count(names, "ListenerInvocation"));
+            Assert.assertEquals(names.toString(), 2, count(names, "PhaseCompleted"));
+            Assert.assertTrue(names.toString(), names.contains("TransactionCompleted"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testEventsSpanTheWork() throws Exception {
+        JfrTransactionBindingMetrics.install();
+        StubTransactionManager transactionManager = new StubTransactionManager();
+        long txnId;
+        Path file = Files.createTempFile("transaction-binding", ".jfr");
+        try {
+            Recording recording = new Recording();
+            recording.enable(ListenerInvocationEvent.class);
+            recording.enable(PhaseCompletedEvent.class);
+            recording.start();
+
+            TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+            TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            txnId = TransactionBindingSupport.getTransactionIdAsLong();
+            transactionManager.commit(status);
+
+            recording.stop();
+            recording.dump(file);
+            recording.close();
+
+            RecordedEvent invocation = null;
+            RecordedEvent phase = null;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (!event.hasField("phase") || event.getLong("transactionId") != txnId
+                        || !"BEFORE_COMMIT".equals(event.getString("phase"))) {
+                    continue;
+                }
+                if (event.getEventType().getName().endsWith("ListenerInvocation")) {
+                    invocation = event;
+                } else if (event.getEventType().getName().endsWith("PhaseCompleted")) {
+                    phase = event;
+                }
+            }
+            Assert.assertNotNull("No invocation event", invocation);
+            Assert.assertNotNull("No phase event", phase);
+            Assert.assertTrue("Invocation event does not span the callback: " + invocation.getDuration(),
+                    invocation.getDuration().toMillis() >= 50);
+            Assert.assertFalse("Invocation starts before its phase",
+                    invocation.getStartTime().isBefore(phase.getStartTime()));
+            Assert.assertFalse("Invocation ends after its phase",
+                    invocation.getEndTime().isAfter(phase.getEndTime()));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static int count(List<String> names, String name) {
+        int count = 0;
+        for (String n : names) {
+            if (n.equals(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Marker for listeners whose {@link #afterCommit()} and {@link #afterRollback()} callbacks
+ * do not need to hold up the thread that completed the transaction.
+ * <p>
+ * When an executor has been configured with
+ * {@link TransactionBindingSupport#setAsyncListenerExecutor(java.util.concurrent.Executor)},
+ * these callbacks are handed to it after the transaction completes.  Otherwise they are
+ * called inline, as for any other listener.  {@link #beforeCommit(boolean)} and
+ * {@link #beforeCompletion()} are always called inline.
+ * <p>
+ * By the time an asynchronous callback runs the transaction has been unbound, so no
+ * transaction resources are available to it.  Anything it needs must be captured while
+ * the transaction is still active.
+ *
+ * @see AsyncTransactionListenerExecutor
+ *
+ * @author Ray Holder
+ */
+public interface AsyncTransactionListener extends TransactionListener
+{
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Bounded executor for the post-completion callbacks of {@link AsyncTransactionListener}s.
+ * <p>
+ * Callbacks are queued in a bounded queue and run on a fixed number of worker threads,
+ * which are virtual threads when the JVM supports them and daemon platform threads
+ * otherwise.  When the queue is full the configured <tt>RejectedExecutionHandler</tt>
+ * decides what happens; the default runs the callback on the completing thread, which
+ * gives the same behaviour as an inline listener under overload.
+ * <p>
+ * {@link #shutdown(long, TimeUnit)} stops accepting callbacks and waits for those already
+ * queued to finish.  By default a callback arriving after shutdown is rejected with a
+ * <tt>RejectedExecutionException</tt>, which the transaction logs as an error, rather than
+ * being silently discarded.  As a <tt>DisposableBean</tt> this happens automatically when the
+ * owning Spring context is closed.
+ *
+ * @see TransactionBindingSupport#setAsyncListenerExecutor(Executor)
+ *
+ * @author Ray Holder
+ */
+public class AsyncTransactionListenerExecutor implements Executor, DisposableBean
+{
+    /** the time allowed for queued callbacks to drain when the bean is destroyed */
+    public static final long DEFAULT_DRAIN_TIMEOUT_MS = 30000L;
+
+    private static Log logger = LogFactory.getLog(AsyncTransactionListenerExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates an executor that runs rejected callbacks on the calling thread until it is shut down
+     *
+     * @param threads           the number of worker threads
+     * @param queueCapacity     the maximum number of callbacks waiting for a worker
+     */
+    public AsyncTransactionListenerExecutor(int threads, int queueCapacity)
+    {
+        this(threads, queueCapacity, new CallerRunsWhileRunningPolicy());
+    }
+
+    /**
+     * @param threads           the number of worker threads
+     * @param queueCapacity     the maximum number of callbacks waiting for a worker
+     * @param rejectionHandler  the policy applied when the queue is full
+     */
+    public AsyncTransactionListenerExecutor(int threads, int queueCapacity, RejectedExecutionHandler rejectionHandler)
+    {
+        executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                createThreadFactory(),
+                rejectionHandler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void execute(Runnable command)
+    {
+        executor.execute(command);
+    }
+
+    /**
+     * @return Returns the number of callbacks waiting for a worker thread
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new callbacks and waits for the queued ones to complete.
+     *
+     * @param timeout   the maximum time to wait
+     * @param unit      the unit of the timeout
+     * @return Returns <tt>true</tt> if all callbacks completed within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        executor.shutdown();
+        boolean drained = executor.awaitTermination(timeout, unit);
+        if (!drained)
+        {
+            logger.warn("Asynchronous transaction listeners still running after shutdown timeout: \n" +
+                    "   queued: " + executor.getQueue().size());
+        }
+        return drained;
+    }
+
+    /**
+     * Drains the queued callbacks, allowing {@link #DEFAULT_DRAIN_TIMEOUT_MS}
+     */
+    public void destroy() throws Exception
+    {
+        shutdown(DEFAULT_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Returns a factory for virtual threads if the JVM has them, or else daemon threads
+     */
+    private static ThreadFactory createThreadFactory()
+    {
+        try
+        {
+            // Thread.ofVirtual().name(prefix, 0).factory(), looked up so as to run on older JVMs
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "txn-listener-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (Exception e)
+        {
+            // no virtual threads available
+        }
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "txn-listener-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs a rejected callback on the calling thread while the executor is running, and throws
+     * once it has been shut down.  <tt>ThreadPoolExecutor.CallerRunsPolicy</tt> would quietly
+     * discard the callback after shutdown instead.
+     */
+    private static class CallerRunsWhileRunningPolicy implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+            {
+                throw new RejectedExecutionException("Asynchronous transaction listener executor has been shut down");
+            }
+            runnable.run();
+        }
+    }
+}
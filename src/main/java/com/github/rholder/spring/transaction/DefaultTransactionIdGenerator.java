@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default {@link TransactionIdGenerator} that hands out sequences without any
+ * per-transaction contention.
+ * <p>
+ * Each thread reserves a block of sequences from a shared counter and then
+ * allocates from that block with plain thread-confined arithmetic, so the shared
+ * counter is only touched once every {@link #DEFAULT_BLOCK_SIZE} transactions on
+ * a thread.  Sequences are unique but are only monotonic per thread.
+ * <p>
+ * The node ID is picked randomly once, when the generator is created.  When one default
+ * generator replaces another through
+ * {@link TransactionBindingSupport#setTransactionIdGenerator(TransactionIdGenerator)}, its
+ * sequences carry on past those reserved by the one it replaces, so the primitive form of the
+ * transaction IDs does not repeat.
+ *
+ * @author Ray Holder
+ */
+public class DefaultTransactionIdGenerator implements TransactionIdGenerator
+{
+    /** the number of sequences reserved by a thread at a time */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final long nodeId;
+    private final int blockSize;
+    private final AtomicLong nextBlock;
+    private final ThreadLocal<long[]> threadBlock;
+
+    /**
+     * Creates a generator with a random node ID and the default block size
+     */
+    public DefaultTransactionIdGenerator()
+    {
+        this(UUID.randomUUID().getMostSignificantBits(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param nodeId        the node ID to report for all generated transactions
+     * @param blockSize     the number of sequences a thread reserves at a time
+     */
+    public DefaultTransactionIdGenerator(long nodeId, int blockSize)
+    {
+        if (blockSize < 1)
+        {
+            throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        }
+        this.nodeId = nodeId;
+        this.blockSize = blockSize;
+        this.nextBlock = new AtomicLong(0);
+        this.threadBlock = new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                // { next sequence, end of block (exclusive) }
+                return new long[] {0, 0};
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long nextTransactionId()
+    {
+        long[] block = threadBlock.get();
+        if (block[0] == block[1])
+        {
+            // this thread's block is used up so reserve another one
+            long start = nextBlock.getAndIncrement() * blockSize;
+            block[0] = start;
+            block[1] = start + blockSize;
+        }
+        return block[0]++;
+    }
+
+    /**
+     * @return Returns the sequence after the last block reserved so far, which is above every
+     *      sequence handed out
+     */
+    long getReservedLimit()
+    {
+        return nextBlock.get() * blockSize;
+    }
+
+    /**
+     * Moves the blocks still to be reserved on so that they start at or after a sequence, so that
+     * the generator can take over from another without handing out its sequences again.  Blocks
+     * that threads have already reserved from this generator are used up first; they lie below
+     * any sequence handed out by a generator that took over from it.
+     *
+     * @param sequence  the first sequence that may be handed out
+     */
+    void skipTo(long sequence)
+    {
+        long block = (sequence + blockSize - 1) / blockSize;
+        while (true)
+        {
+            long current = nextBlock.get();
+            if (current >= block || nextBlock.compareAndSet(current, block))
+            {
+                return;
+            }
+        }
+    }
+}
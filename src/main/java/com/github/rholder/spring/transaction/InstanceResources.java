@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Binds per-instance state to the current transaction for components that may be created
+ * freely, such as {@link TransactionalCache} and {@link TransactionalCounter}.
+ * <p>
+ * {@link TransactionResourceKey} slots are never reused, so rather than each instance taking a
+ * key of its own, every instance of a component shares one key per class.  The transaction binds
+ * a map against that key, holding each instance's state by identity.
+ *
+ * @author Ray Holder
+ */
+final class InstanceResources
+{
+    private InstanceResources()
+    {
+    }
+
+    /**
+     * @param key       the key shared by all instances of the component
+     * @param instance  the instance whose state is wanted
+     * @return Returns the state the instance bound to the current transaction, or <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(TransactionResourceKey<Map<Object, Object>> key, Object instance)
+    {
+        Map<Object, Object> resources = TransactionBindingSupport.getResource(key);
+        return resources == null ? null : (T) resources.get(instance);
+    }
+
+    /**
+     * Binds an instance's state to the current transaction.  If a resource layer is rolled back,
+     * the state bound in it is unbound again.
+     *
+     * @param key       the key shared by all instances of the component
+     * @param instance  the instance the state belongs to
+     * @param resource  the state
+     */
+    static void bind(TransactionResourceKey<Map<Object, Object>> key, final Object instance, Object resource)
+    {
+        Map<Object, Object> resources = TransactionBindingSupport.getResource(key);
+        if (resources == null)
+        {
+            resources = new IdentityHashMap<Object, Object>(4);
+            TransactionBindingSupport.bindResource(key, resources);
+        }
+        resources.put(instance, resource);
+        ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+        if (journal != null)
+        {
+            final Map<Object, Object> bound = resources;
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    bound.remove(instance);
+                }
+            });
+        }
+    }
+}
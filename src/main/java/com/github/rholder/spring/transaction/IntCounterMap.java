@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts occurrences of keys with primitive <tt>int</tt> counters held in an open
+ * addressing table, so that incrementing never allocates a boxed count the way a
+ * <tt>Map&lt;K, Integer&gt;</tt> does.  Keys may not be <tt>null</tt>.
+ *
+ * @see TransactionalResourceHelper#getIntCounterMap(Object)
+ *
+ * @author Ray Holder
+ */
+public class IntCounterMap<K>
+{
+    private Object[] keys;
+    private int[] counts;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    /** records changes while a resource layer is open, or null if no layer has fetched the map */
+    ResourceJournal journal;
+
+    /**
+     * @param expectedSize  the number of keys to allow for before growing
+     */
+    public IntCounterMap(int expectedSize)
+    {
+        allocate(LongHashSet.tableSize(expectedSize));
+    }
+
+    /**
+     * @param key   the key to count
+     * @return Returns the count for the key after incrementing it
+     */
+    public int increment(K key)
+    {
+        return add(key, 1);
+    }
+
+    /**
+     * @param key   the key to count
+     * @param delta the amount to add to the count for the key
+     * @return Returns the count for the key after adding the delta
+     */
+    public int add(K key, int delta)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("Null keys are not supported");
+        }
+        int i = hash(key) & mask;
+        Object k;
+        while ((k = keys[i]) != null)
+        {
+            if (k.equals(key))
+            {
+                recordChange(key, delta, false);
+                return counts[i] += delta;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        counts[i] = delta;
+        if (++size > resizeAt)
+        {
+            rehash(keys.length << 1);
+        }
+        recordChange(key, delta, true);
+        return delta;
+    }
+
+    /**
+     * @param key   the key to look up
+     * @return Returns the count for the key, <tt>0</tt> if it has never been counted
+     */
+    public int get(K key)
+    {
+        if (key == null)
+        {
+            return 0;
+        }
+        int i = hash(key) & mask;
+        Object k;
+        while ((k = keys[i]) != null)
+        {
+            if (k.equals(key))
+            {
+                return counts[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * @return Returns the number of distinct keys counted
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        if (journal != null)
+        {
+            journal.snapshot(this);
+        }
+        Arrays.fill(keys, null);
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    /**
+     * @return Returns a copy of the counted keys in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> keys()
+    {
+        List<K> result = new ArrayList<K>(size);
+        for (Object key : keys)
+        {
+            if (key != null)
+            {
+                result.add((K) key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Returns an independent copy, for undoing a clear made under a savepoint
+     */
+    IntCounterMap<K> copy()
+    {
+        IntCounterMap<K> copy = new IntCounterMap<K>(0);
+        copy.keys = keys.clone();
+        copy.counts = counts.clone();
+        copy.mask = mask;
+        copy.size = size;
+        copy.resizeAt = resizeAt;
+        return copy;
+    }
+
+    /**
+     * Takes over the contents of a copy that will not be used again
+     */
+    void restore(IntCounterMap<K> copy)
+    {
+        keys = copy.keys;
+        counts = copy.counts;
+        mask = copy.mask;
+        size = copy.size;
+        resizeAt = copy.resizeAt;
+    }
+
+    /**
+     * Records a count that was changed, so that it can be taken back or the key forgotten
+     */
+    private void recordChange(final K key, final int delta, final boolean added)
+    {
+        if (journal != null && journal.isRecording())
+        {
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    if (added)
+                    {
+                        forget(key);
+                    }
+                    else
+                    {
+                        add(key, -delta);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops a key altogether, closing the gap as {@link LongHashSet} does
+     */
+    private void forget(Object key)
+    {
+        int hole = hash(key) & mask;
+        while (keys[hole] != null && !keys[hole].equals(key))
+        {
+            hole = (hole + 1) & mask;
+        }
+        if (keys[hole] == null)
+        {
+            return;
+        }
+        size--;
+        int i = hole;
+        while (true)
+        {
+            i = (i + 1) & mask;
+            Object k = keys[i];
+            if (k == null)
+            {
+                break;
+            }
+            int home = hash(k) & mask;
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i))
+            {
+                keys[hole] = k;
+                counts[hole] = counts[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+        counts[hole] = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        Object[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++)
+        {
+            Object key = oldKeys[j];
+            if (key != null)
+            {
+                int i = hash(key) & mask;
+                while (keys[i] != null)
+                {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new Object[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = LongHashSet.loadLimit(capacity);
+    }
+
+    private static int hash(Object key)
+    {
+        return LongHashSet.mix(key.hashCode());
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Collects the parameters of a single SQL statement during a transaction and writes
+ * them with JDBC batch updates.
+ * <p>
+ * Buffers are obtained with
+ * {@link TransactionalResourceHelper#getWriteBuffer(DataSource, String)} and are flushed
+ * automatically, in the order they were created, before the transaction commits.  A
+ * rollback discards anything still buffered.  Queries that need to see the buffered rows
+ * should call {@link #flush()} or {@link TransactionalResourceHelper#flushWriteBuffers()}
+ * first.
+ * <p>
+ * Statements are executed through a <tt>JdbcTemplate</tt>, so they use the connection
+ * bound to the current transaction and failures surface as Spring
+ * <tt>DataAccessException</tt>s, failing the commit.
+ *
+ * @author Ray Holder
+ */
+public class JdbcWriteBuffer
+{
+    /** the number of parameter sets sent per JDBC batch, unless set otherwise */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static Log logger = LogFactory.getLog(JdbcWriteBuffer.class);
+
+    private final Buffers buffers;
+    private final JdbcTemplate jdbcTemplate;
+    private final String sql;
+    private final int batchSize;
+    private final List<Object[]> pending;
+
+    /**
+     * @param buffers       the transaction's buffers, which this buffer joins
+     * @param dataSource    the data source the transaction is using
+     * @param sql           the statement to execute for each parameter set
+     * @param batchSize     the number of parameter sets sent per JDBC batch
+     */
+    private JdbcWriteBuffer(Buffers buffers, DataSource dataSource, String sql, int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.buffers = buffers;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.sql = sql;
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<Object[]>(batchSize);
+    }
+
+    /**
+     * Buffers one execution of the statement.  The parameters are copied, so the caller
+     * may reuse the array for the next row.  A row added in a resource layer that is rolled
+     * back is dropped.
+     *
+     * @param params the statement parameters
+     */
+    public void add(Object... params)
+    {
+        final Object[] row = params.clone();
+        pending.add(row);
+        buffers.arm();
+        ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+        if (journal != null)
+        {
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    // the row may have been flushed since, in which case it is already gone
+                    for (int i = pending.size() - 1; i >= 0; i--)
+                    {
+                        if (pending.get(i) == row)
+                        {
+                            pending.remove(i);
+                            break;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Returns the number of parameter sets waiting to be written
+     */
+    public int size()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return Returns the buffered statement
+     */
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * Writes all buffered parameter sets, in chunks of the batch size.  Each chunk leaves
+     * the buffer as soon as it has been written, so if a chunk fails, calling this again
+     * resumes with that chunk instead of writing the earlier ones twice.  If a resource layer
+     * the chunks were written in is rolled back, along with the savepoint that undoes the
+     * writes, they are put back into the buffer.
+     *
+     * @return Returns the number of rows affected, where the driver reports it
+     */
+    public int flush()
+    {
+        if (pending.isEmpty())
+        {
+            return 0;
+        }
+        int rows = 0;
+        int size = pending.size();
+        ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+        while (!pending.isEmpty())
+        {
+            List<Object[]> chunk = pending.subList(0, Math.min(batchSize, pending.size()));
+            for (int count : jdbcTemplate.batchUpdate(sql, chunk))
+            {
+                if (count > 0)
+                {
+                    rows += count;
+                }
+            }
+            if (journal != null)
+            {
+                final List<Object[]> written = new ArrayList<Object[]>(chunk);
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        // later chunks are put back first, so each goes in front of them
+                        pending.addAll(0, written);
+                    }
+                });
+            }
+            chunk.clear();
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Flushed write buffer: \n" +
+                    "   sql: " + sql + "\n" +
+                    "   parameter sets: " + size + "\n" +
+                    "   rows: " + rows);
+        }
+        return rows;
+    }
+
+    /**
+     * The write buffers of one transaction, in the order they were created.
+     * <p>
+     * A listener is bound to flush the buffers in <tt>beforeCommit</tt>.  If rows are added
+     * after that flush has started, for example by a <tt>beforeCommit</tt> listener in a later
+     * wave, another flush listener is bound so those rows are written in the next wave.
+     */
+    static class Buffers
+    {
+        private final Map<List<Object>, JdbcWriteBuffer> buffers = new LinkedHashMap<List<Object>, JdbcWriteBuffer>(7);
+        private boolean armed;
+
+        /**
+         * @return Returns the buffer for the statement, creating it if necessary
+         */
+        JdbcWriteBuffer getBuffer(DataSource dataSource, String sql, int batchSize)
+        {
+            List<Object> key = Arrays.<Object>asList(dataSource, sql);
+            JdbcWriteBuffer buffer = buffers.get(key);
+            if (buffer == null)
+            {
+                buffer = new JdbcWriteBuffer(this, dataSource, sql, batchSize);
+                buffers.put(key, buffer);
+            }
+            arm();
+            return buffer;
+        }
+
+        /**
+         * Writes every buffer, in the order the buffers were created
+         */
+        void flushAll()
+        {
+            for (JdbcWriteBuffer buffer : buffers.values())
+            {
+                buffer.flush();
+            }
+        }
+
+        /**
+         * Makes sure a flush is due before the transaction commits
+         */
+        private void arm()
+        {
+            if (armed)
+            {
+                return;
+            }
+            armed = true;
+            TransactionBindingSupport.bindListener(new TransactionListenerAdapter()
+            {
+                @Override
+                public void beforeCommit(boolean readOnly)
+                {
+                    armed = false;
+                    flushAll();
+                }
+            });
+            ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+            if (journal != null)
+            {
+                // the flush listener is dropped if the layer is rolled back, so arm again next time
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        armed = false;
+                    }
+                });
+            }
+        }
+    }
+}
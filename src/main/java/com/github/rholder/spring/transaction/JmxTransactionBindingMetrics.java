@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+
+/**
+ * {@link TransactionBindingMetrics} that keeps counts and histograms in memory and
+ * exposes them as a standard MBean.  Register it with an <tt>MBeanServer</tt>, for
+ * example under {@link #OBJECT_NAME}, and install it with
+ * {@link TransactionBindingSupport#setTransactionBindingMetrics(TransactionBindingMetrics)}.
+ * <p>
+ * Histograms use power-of-two buckets, so the reported percentiles are upper bounds
+ * accurate to within a factor of two.
+ *
+ * @author Ray Holder
+ */
+public class JmxTransactionBindingMetrics extends TransactionBindingMetricsAdapter implements JmxTransactionBindingMetricsMBean
+{
+    /** a suitable name to register the MBean under */
+    public static final String OBJECT_NAME = "com.github.rholder.spring.transaction:type=TransactionBindingMetrics";
+
+    private static final int PHASE_COUNT = TransactionPhase.values().length;
+
+    private final AtomicLong registeredCount = new AtomicLong();
+    private final AtomicLong committedCount = new AtomicLong();
+    private final AtomicLong rolledBackCount = new AtomicLong();
+    private volatile Histogram transactionDurations = new Histogram();
+    private volatile Histogram listenerCounts = new Histogram();
+    private volatile Histogram resourceCounts = new Histogram();
+    private volatile Histogram[] phaseLatencies = newPhaseHistograms();
+    private final ConcurrentMap<Class<?>, Histogram[]> listenerLatencies = new ConcurrentHashMap<Class<?>, Histogram[]>();
+
+    @Override
+    public void synchronizationRegistered(long txnId)
+    {
+        registeredCount.incrementAndGet();
+    }
+
+    @Override
+    public void listenerInvoked(long txnId, TransactionPhase phase, Class<?> listenerClass, long elapsedNanos)
+    {
+        Histogram[] histograms = listenerLatencies.get(listenerClass);
+        if (histograms == null)
+        {
+            histograms = newPhaseHistograms();
+            Histogram[] existing = listenerLatencies.putIfAbsent(listenerClass, histograms);
+            if (existing != null)
+            {
+                histograms = existing;
+            }
+        }
+        histograms[phase.ordinal()].record(elapsedNanos);
+    }
+
+    @Override
+    public void beforeCommitCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+        phaseLatencies[TransactionPhase.BEFORE_COMMIT.ordinal()].record(elapsedNanos);
+    }
+
+    @Override
+    public void beforeCompletionCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+        phaseLatencies[TransactionPhase.BEFORE_COMPLETION.ordinal()].record(elapsedNanos);
+    }
+
+    @Override
+    public void transactionCompleted(long txnId, int status, long durationMs, int listenerCount, int resourceCount, long elapsedNanos)
+    {
+        TransactionPhase phase;
+        if (status == TransactionSynchronization.STATUS_COMMITTED)
+        {
+            committedCount.incrementAndGet();
+            phase = TransactionPhase.AFTER_COMMIT;
+        }
+        else
+        {
+            rolledBackCount.incrementAndGet();
+            phase = TransactionPhase.AFTER_ROLLBACK;
+        }
+        phaseLatencies[phase.ordinal()].record(elapsedNanos);
+        transactionDurations.record(durationMs);
+        listenerCounts.record(listenerCount);
+        resourceCounts.record(resourceCount);
+    }
+
+    public long getRegisteredCount()
+    {
+        return registeredCount.get();
+    }
+
+    public long getCommittedCount()
+    {
+        return committedCount.get();
+    }
+
+    public long getRolledBackCount()
+    {
+        return rolledBackCount.get();
+    }
+
+    public String getTransactionDurations()
+    {
+        return transactionDurations.summarize(1);
+    }
+
+    public String getListenerCounts()
+    {
+        return listenerCounts.summarize(1);
+    }
+
+    public String getResourceCounts()
+    {
+        return resourceCounts.summarize(1);
+    }
+
+    public String[] getPhaseLatencies()
+    {
+        Histogram[] histograms = phaseLatencies;
+        String[] summaries = new String[PHASE_COUNT];
+        for (TransactionPhase phase : TransactionPhase.values())
+        {
+            summaries[phase.ordinal()] = phase + ": " + histograms[phase.ordinal()].summarize(1000);
+        }
+        return summaries;
+    }
+
+    public String[] getListenerLatencies()
+    {
+        List<String> summaries = new ArrayList<String>();
+        for (Map.Entry<Class<?>, Histogram[]> entry : listenerLatencies.entrySet())
+        {
+            for (TransactionPhase phase : TransactionPhase.values())
+            {
+                Histogram histogram = entry.getValue()[phase.ordinal()];
+                if (histogram.getCount() > 0)
+                {
+                    summaries.add(entry.getKey().getName() + " " + phase + ": " + histogram.summarize(1000));
+                }
+            }
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    public void reset()
+    {
+        registeredCount.set(0);
+        committedCount.set(0);
+        rolledBackCount.set(0);
+        transactionDurations = new Histogram();
+        listenerCounts = new Histogram();
+        resourceCounts = new Histogram();
+        phaseLatencies = newPhaseHistograms();
+        listenerLatencies.clear();
+    }
+
+    /**
+     * @param listenerClass the listener class
+     * @param phase         the callback
+     * @return Returns the histogram of the callback's latencies in nanoseconds, or <tt>null</tt> if it has not been called
+     */
+    public Histogram getListenerLatency(Class<?> listenerClass, TransactionPhase phase)
+    {
+        Histogram[] histograms = listenerLatencies.get(listenerClass);
+        return histograms == null ? null : histograms[phase.ordinal()];
+    }
+
+    private static Histogram[] newPhaseHistograms()
+    {
+        Histogram[] histograms = new Histogram[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++)
+        {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * A lock-free histogram of non-negative values with power-of-two buckets
+     */
+    public static class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value the value to record; negative values are recorded as zero
+         */
+        public void record(long value)
+        {
+            if (value < 0)
+            {
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value))
+            {
+                // retry
+            }
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        public double getMean()
+        {
+            long n = count.get();
+            return n == 0 ? 0.0 : (double) sum.get() / n;
+        }
+
+        /**
+         * @param percentile    the percentile, between 0 and 100
+         * @return Returns an upper bound of the value at the percentile
+         */
+        public long getPercentile(double percentile)
+        {
+            long n = count.get();
+            if (n == 0)
+            {
+                return 0;
+            }
+            long target = (long) Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < 64; i++)
+            {
+                seen += buckets.get(i);
+                if (seen >= target)
+                {
+                    // bucket i holds values up to 2^(i+1) - 1
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * @param divisor   the value each figure is divided by, for unit conversion
+         * @return Returns a one line summary of the histogram
+         */
+        public String summarize(long divisor)
+        {
+            return "count=" + getCount() +
+                    " mean=" + (getMean() / divisor) +
+                    " p50=" + (getPercentile(50) / divisor) +
+                    " p99=" + (getPercentile(99) / divisor) +
+                    " max=" + (getMax() / divisor);
+        }
+    }
+}
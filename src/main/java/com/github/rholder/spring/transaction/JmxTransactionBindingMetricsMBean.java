@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Management interface of {@link JmxTransactionBindingMetrics}.
+ *
+ * @author Ray Holder
+ */
+public interface JmxTransactionBindingMetricsMBean
+{
+    /** @return Returns the number of transactions bound */
+    long getRegisteredCount();
+
+    /** @return Returns the number of bound transactions that committed */
+    long getCommittedCount();
+
+    /** @return Returns the number of bound transactions that rolled back or completed with an unknown status */
+    long getRolledBackCount();
+
+    /** @return Returns a summary of the time from binding to completion, in milliseconds */
+    String getTransactionDurations();
+
+    /** @return Returns a summary of the number of listeners bound per transaction */
+    String getListenerCounts();
+
+    /** @return Returns a summary of the number of resources bound per transaction */
+    String getResourceCounts();
+
+    /** @return Returns a summary of the time spent in each phase across all listeners, in microseconds */
+    String[] getPhaseLatencies();
+
+    /** @return Returns a summary of the time spent in each phase by each listener class, in microseconds */
+    String[] getListenerLatencies();
+
+    /**
+     * Discards everything recorded so far
+     */
+    void reset();
+}
@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Views of the {@link TransactionalResourceHelper} collections that report each change to a
+ * {@link ResourceJournal}, handed out while a resource layer is open.  Reads go straight to
+ * the bound collection.  Changes made through iterators and the key, value and entry views of
+ * a map are reported as well, since the views are built on the journaled operations.
+ *
+ * @author Ray Holder
+ */
+final class LayeredCollections
+{
+    private LayeredCollections()
+    {
+    }
+
+    /**
+     * @return Returns a journaled view of a map, list or set, or <tt>null</tt> if the resource
+     *      is none of these
+     */
+    @SuppressWarnings("unchecked")
+    static Object view(Object resource, ResourceJournal journal)
+    {
+        if (resource instanceof Map<?, ?>)
+        {
+            return new LayeredMap<Object, Object>((Map<Object, Object>) resource, journal);
+        }
+        else if (resource instanceof List<?>)
+        {
+            return new LayeredList<Object>((List<Object>) resource, journal);
+        }
+        else if (resource instanceof Set<?>)
+        {
+            return new LayeredSet<Object>((Set<Object>) resource, journal);
+        }
+        return null;
+    }
+
+    /**
+     * Puts back or removes a map entry
+     */
+    private static class EntryUndo<K, V> implements ResourceJournal.Undo
+    {
+        private final Map<K, V> map;
+        private final K key;
+        private final boolean present;
+        private final V value;
+
+        private EntryUndo(Map<K, V> map, K key, boolean present, V value)
+        {
+            this.map = map;
+            this.key = key;
+            this.present = present;
+            this.value = value;
+        }
+
+        public void undo()
+        {
+            if (present)
+            {
+                map.put(key, value);
+            }
+            else
+            {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes an element that was added to a set, or adds back one that was removed
+     */
+    private static class ElementUndo<V> implements ResourceJournal.Undo
+    {
+        private final Collection<V> set;
+        private final V element;
+        private final boolean added;
+
+        private ElementUndo(Collection<V> set, V element, boolean added)
+        {
+            this.set = set;
+            this.element = element;
+            this.added = added;
+        }
+
+        public void undo()
+        {
+            if (added)
+            {
+                set.remove(element);
+            }
+            else
+            {
+                set.add(element);
+            }
+        }
+    }
+
+    /**
+     * Reports the removals made through a set's iterator
+     */
+    private static class ElementIterator<V> implements Iterator<V>
+    {
+        private final Collection<V> set;
+        private final Iterator<V> iterator;
+        private final ResourceJournal journal;
+        private V last;
+
+        private ElementIterator(Collection<V> set, Iterator<V> iterator, ResourceJournal journal)
+        {
+            this.set = set;
+            this.iterator = iterator;
+            this.journal = journal;
+        }
+
+        public boolean hasNext()
+        {
+            return iterator.hasNext();
+        }
+
+        public V next()
+        {
+            return last = iterator.next();
+        }
+
+        public void remove()
+        {
+            iterator.remove();
+            if (journal.isRecording())
+            {
+                journal.record(new ElementUndo<V>(set, last, false));
+            }
+        }
+    }
+
+    /**
+     * A map that records the previous state of each key it changes
+     */
+    static class LayeredMap<K, V> extends AbstractMap<K, V>
+    {
+        private final Map<K, V> map;
+        private final ResourceJournal journal;
+        private Set<Map.Entry<K, V>> entrySet;
+
+        LayeredMap(Map<K, V> map, ResourceJournal journal)
+        {
+            this.map = map;
+            this.journal = journal;
+        }
+
+        @Override
+        public int size()
+        {
+            return map.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public boolean containsValue(Object value)
+        {
+            return map.containsValue(value);
+        }
+
+        @Override
+        public V get(Object key)
+        {
+            return map.get(key);
+        }
+
+        @Override
+        public V put(K key, V value)
+        {
+            recordEntry(key);
+            return map.put(key, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V remove(Object key)
+        {
+            if (map.containsKey(key))
+            {
+                recordEntry((K) key);
+            }
+            return map.remove(key);
+        }
+
+        private void recordEntry(K key)
+        {
+            if (journal.isRecording())
+            {
+                boolean present = map.containsKey(key);
+                journal.record(new EntryUndo<K, V>(map, key, present, present ? map.get(key) : null));
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet()
+        {
+            if (entrySet == null)
+            {
+                entrySet = new AbstractSet<Map.Entry<K, V>>()
+                {
+                    @Override
+                    public int size()
+                    {
+                        return map.size();
+                    }
+
+                    @Override
+                    public boolean contains(Object o)
+                    {
+                        return map.entrySet().contains(o);
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<K, V>> iterator()
+                    {
+                        return new EntryIterator(map.entrySet().iterator());
+                    }
+                };
+            }
+            return entrySet;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o == this || map.equals(o);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return map.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return map.toString();
+        }
+
+        /**
+         * Reports removals and replaced values made while iterating over the entries
+         */
+        private class EntryIterator implements Iterator<Map.Entry<K, V>>
+        {
+            private final Iterator<Map.Entry<K, V>> iterator;
+            private Map.Entry<K, V> last;
+
+            private EntryIterator(Iterator<Map.Entry<K, V>> iterator)
+            {
+                this.iterator = iterator;
+            }
+
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            public Map.Entry<K, V> next()
+            {
+                last = iterator.next();
+                return new LayeredEntry(last);
+            }
+
+            public void remove()
+            {
+                K key = last.getKey();
+                V value = last.getValue();
+                iterator.remove();
+                if (journal.isRecording())
+                {
+                    journal.record(new EntryUndo<K, V>(map, key, true, value));
+                }
+            }
+        }
+
+        private class LayeredEntry implements Map.Entry<K, V>
+        {
+            private final Map.Entry<K, V> entry;
+
+            private LayeredEntry(Map.Entry<K, V> entry)
+            {
+                this.entry = entry;
+            }
+
+            public K getKey()
+            {
+                return entry.getKey();
+            }
+
+            public V getValue()
+            {
+                return entry.getValue();
+            }
+
+            public V setValue(V value)
+            {
+                if (journal.isRecording())
+                {
+                    journal.record(new EntryUndo<K, V>(map, entry.getKey(), true, entry.getValue()));
+                }
+                return entry.setValue(value);
+            }
+
+            @Override
+            public boolean equals(Object o)
+            {
+                return entry.equals(o);
+            }
+
+            @Override
+            public int hashCode()
+            {
+                return entry.hashCode();
+            }
+
+            @Override
+            public String toString()
+            {
+                return entry.toString();
+            }
+        }
+    }
+
+    /**
+     * A set that records each element it adds or removes
+     */
+    static class LayeredSet<V> extends AbstractSet<V>
+    {
+        private final Set<V> set;
+        private final ResourceJournal journal;
+
+        LayeredSet(Set<V> set, ResourceJournal journal)
+        {
+            this.set = set;
+            this.journal = journal;
+        }
+
+        @Override
+        public int size()
+        {
+            return set.size();
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return set.contains(o);
+        }
+
+        @Override
+        public boolean add(V element)
+        {
+            boolean added = set.add(element);
+            if (added && journal.isRecording())
+            {
+                journal.record(new ElementUndo<V>(set, element, true));
+            }
+            return added;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(Object o)
+        {
+            boolean removed = set.remove(o);
+            if (removed && journal.isRecording())
+            {
+                journal.record(new ElementUndo<V>(set, (V) o, false));
+            }
+            return removed;
+        }
+
+        @Override
+        public Iterator<V> iterator()
+        {
+            return new ElementIterator<V>(set, set.iterator(), journal);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o == this || set.equals(o);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return set.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return set.toString();
+        }
+    }
+
+    /**
+     * A list that records each element it sets, inserts or removes, by index
+     */
+    static class LayeredList<V> extends AbstractList<V>
+    {
+        private final List<V> list;
+        private final ResourceJournal journal;
+
+        LayeredList(List<V> list, ResourceJournal journal)
+        {
+            this.list = list;
+            this.journal = journal;
+        }
+
+        @Override
+        public int size()
+        {
+            return list.size();
+        }
+
+        @Override
+        public V get(int index)
+        {
+            return list.get(index);
+        }
+
+        @Override
+        public V set(final int index, V element)
+        {
+            final V previous = list.set(index, element);
+            if (journal.isRecording())
+            {
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        list.set(index, previous);
+                    }
+                });
+            }
+            return previous;
+        }
+
+        @Override
+        public void add(final int index, V element)
+        {
+            list.add(index, element);
+            if (journal.isRecording())
+            {
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        list.remove(index);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public V remove(final int index)
+        {
+            final V previous = list.remove(index);
+            if (journal.isRecording())
+            {
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        list.add(index, previous);
+                    }
+                });
+            }
+            return previous;
+        }
+
+        /**
+         * Clearing changes every element, so the contents are recorded once rather than
+         * removing the elements one at a time
+         */
+        @Override
+        public void clear()
+        {
+            if (journal.isRecording() && !list.isEmpty())
+            {
+                final List<V> previous = new ArrayList<V>(list);
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        list.clear();
+                        list.addAll(previous);
+                    }
+                });
+            }
+            list.clear();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o == this || list.equals(o);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return list.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return list.toString();
+        }
+    }
+
+    /**
+     * The <tt>TreeSet</tt> bound by {@link TransactionalResourceHelper#getTreeSet(Object)}, which
+     * must keep its type, so it records its own changes once a layer has fetched it.  Range and
+     * descending views write to the set directly, so handing one out while a layer is open
+     * snapshots the set instead.
+     */
+    static class LayeredTreeSet<V> extends TreeSet<V>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** records changes while a resource layer is open, or null if no layer has fetched the set */
+        transient ResourceJournal journal;
+
+        private boolean isRecording()
+        {
+            return journal != null && journal.isRecording();
+        }
+
+        private void snapshot()
+        {
+            if (journal != null)
+            {
+                journal.snapshot(this);
+            }
+        }
+
+        @Override
+        public boolean add(V element)
+        {
+            boolean added = super.add(element);
+            if (added && isRecording())
+            {
+                journal.record(new ElementUndo<V>(this, element, true));
+            }
+            return added;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends V> elements)
+        {
+            if (!isRecording())
+            {
+                return super.addAll(elements);
+            }
+            boolean changed = false;
+            for (V element : elements)
+            {
+                changed |= add(element);
+            }
+            return changed;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(Object o)
+        {
+            boolean removed = super.remove(o);
+            if (removed && isRecording())
+            {
+                journal.record(new ElementUndo<V>(this, (V) o, false));
+            }
+            return removed;
+        }
+
+        @Override
+        public V pollFirst()
+        {
+            return recordPolled(super.pollFirst());
+        }
+
+        @Override
+        public V pollLast()
+        {
+            return recordPolled(super.pollLast());
+        }
+
+        private V recordPolled(V element)
+        {
+            if (element != null && isRecording())
+            {
+                journal.record(new ElementUndo<V>(this, element, false));
+            }
+            return element;
+        }
+
+        @Override
+        public void clear()
+        {
+            snapshot();
+            super.clear();
+        }
+
+        @Override
+        public Iterator<V> iterator()
+        {
+            Iterator<V> iterator = super.iterator();
+            return journal == null ? iterator : new ElementIterator<V>(this, iterator, journal);
+        }
+
+        @Override
+        public Iterator<V> descendingIterator()
+        {
+            Iterator<V> iterator = super.descendingIterator();
+            return journal == null ? iterator : new ElementIterator<V>(this, iterator, journal);
+        }
+
+        @Override
+        public NavigableSet<V> descendingSet()
+        {
+            snapshot();
+            return super.descendingSet();
+        }
+
+        @Override
+        public NavigableSet<V> subSet(V fromElement, boolean fromInclusive, V toElement, boolean toInclusive)
+        {
+            snapshot();
+            return super.subSet(fromElement, fromInclusive, toElement, toInclusive);
+        }
+
+        @Override
+        public NavigableSet<V> headSet(V toElement, boolean inclusive)
+        {
+            snapshot();
+            return super.headSet(toElement, inclusive);
+        }
+
+        @Override
+        public NavigableSet<V> tailSet(V fromElement, boolean inclusive)
+        {
+            snapshot();
+            return super.tailSet(fromElement, inclusive);
+        }
+
+        @Override
+        public SortedSet<V> subSet(V fromElement, V toElement)
+        {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<V> headSet(V toElement)
+        {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<V> tailSet(V fromElement)
+        {
+            return tailSet(fromElement, true);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Skips the <tt>afterCommit</tt> and <tt>afterRollback</tt> callbacks of listener classes
+ * that keep failing or running over their time budget.
+ * <p>
+ * Once a listener class has failed or run slow <tt>failureThreshold</tt> times in a row,
+ * its post-completion callbacks are skipped for <tt>openMillis</tt>.  After that a single
+ * callback is let through as a trial: success closes the breaker again, while another
+ * failure keeps it open for a further period.  Skipped callbacks are counted per class.
+ *
+ * @see TransactionBindingSupport#setListenerCircuitBreaker(ListenerCircuitBreaker)
+ *
+ * @author Ray Holder
+ */
+public class ListenerCircuitBreaker
+{
+    private static Log logger = LogFactory.getLog(ListenerCircuitBreaker.class);
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ConcurrentMap<Class<?>, State> states;
+    private final AtomicLong totalSkipCount;
+
+    /**
+     * @param failureThreshold  the number of consecutive failures that opens the breaker
+     * @param openMillis        how long callbacks are skipped for once the breaker opens
+     */
+    public ListenerCircuitBreaker(int failureThreshold, long openMillis)
+    {
+        if (failureThreshold < 1)
+        {
+            throw new IllegalArgumentException("Failure threshold must be at least 1: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.states = new ConcurrentHashMap<Class<?>, State>();
+        this.totalSkipCount = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a callback may be made, counting it as skipped if not
+     *
+     * @param listenerClass the listener class about to be called
+     * @return Returns <tt>true</tt> if the callback should be made
+     */
+    public boolean allow(Class<?> listenerClass)
+    {
+        State state = states.get(listenerClass);
+        if (state == null)
+        {
+            return true;
+        }
+        long openUntil = state.openUntil.get();
+        if (openUntil == 0L)
+        {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= openUntil && state.openUntil.compareAndSet(openUntil, now + openMillis))
+        {
+            // let a single trial through, keeping the breaker open for everyone else
+            return true;
+        }
+        state.skipCount.incrementAndGet();
+        totalSkipCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records a callback that completed normally and within its budget
+     *
+     * @param listenerClass the listener class that was called
+     */
+    public void recordSuccess(Class<?> listenerClass)
+    {
+        State state = states.get(listenerClass);
+        if (state != null && (state.consecutiveFailures.get() != 0 || state.openUntil.get() != 0L))
+        {
+            state.consecutiveFailures.set(0);
+            if (state.openUntil.getAndSet(0L) != 0L)
+            {
+                logger.info("Listener circuit closed: \n" +
+                        "   listener class: " + listenerClass.getName());
+            }
+        }
+    }
+
+    /**
+     * Records a callback that failed or ran over its budget
+     *
+     * @param listenerClass the listener class that was called
+     */
+    public void recordFailure(Class<?> listenerClass)
+    {
+        State state = states.get(listenerClass);
+        if (state == null)
+        {
+            state = new State();
+            State existing = states.putIfAbsent(listenerClass, state);
+            if (existing != null)
+            {
+                state = existing;
+            }
+        }
+        if (state.consecutiveFailures.incrementAndGet() >= failureThreshold)
+        {
+            long openUntil = System.currentTimeMillis() + openMillis;
+            if (state.openUntil.getAndSet(openUntil) == 0L)
+            {
+                logger.warn("Listener circuit opened: \n" +
+                        "   listener class: " + listenerClass.getName() + "\n" +
+                        "   consecutive failures: " + state.consecutiveFailures.get());
+            }
+        }
+    }
+
+    /**
+     * @param listenerClass the listener class
+     * @return Returns <tt>true</tt> if callbacks to the class are currently being skipped
+     */
+    public boolean isOpen(Class<?> listenerClass)
+    {
+        State state = states.get(listenerClass);
+        return state != null && state.openUntil.get() > System.currentTimeMillis();
+    }
+
+    /**
+     * @param listenerClass the listener class
+     * @return Returns the number of callbacks to the class that have been skipped
+     */
+    public long getSkipCount(Class<?> listenerClass)
+    {
+        State state = states.get(listenerClass);
+        return state == null ? 0L : state.skipCount.get();
+    }
+
+    /**
+     * @return Returns the number of callbacks skipped across all listener classes
+     */
+    public long getTotalSkipCount()
+    {
+        return totalSkipCount.get();
+    }
+
+    /**
+     * The breaker for one listener class
+     */
+    private static class State
+    {
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        /** the time until which callbacks are skipped, or zero when closed */
+        private final AtomicLong openUntil = new AtomicLong();
+        private final AtomicLong skipCount = new AtomicLong();
+    }
+}
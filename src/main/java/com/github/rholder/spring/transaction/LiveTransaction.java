@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * A point-in-time view of one open transaction, taken by {@link LiveTransactionRegistry}.
+ *
+ * @author Ray Holder
+ */
+public class LiveTransaction
+{
+    private final String transactionId;
+    private final long startTime;
+    private final long ageMs;
+    private final String threadName;
+    private final int listenerCount;
+    private final int resourceCount;
+
+    LiveTransaction(String transactionId, long startTime, long ageMs, String threadName, int listenerCount, int resourceCount)
+    {
+        this.transactionId = transactionId;
+        this.startTime = startTime;
+        this.ageMs = ageMs;
+        this.threadName = threadName;
+        this.listenerCount = listenerCount;
+        this.resourceCount = resourceCount;
+    }
+
+    /**
+     * @return Returns the transaction ID, as given by {@link TransactionBindingSupport#getTransactionId()}
+     */
+    public String getTransactionId()
+    {
+        return transactionId;
+    }
+
+    /**
+     * @return Returns the system time when the transaction was bound
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * @return Returns how long the transaction had been open when the view was taken
+     */
+    public long getAgeMs()
+    {
+        return ageMs;
+    }
+
+    /**
+     * @return Returns the name of the thread that bound the transaction
+     */
+    public String getThreadName()
+    {
+        return threadName;
+    }
+
+    /**
+     * @return Returns the number of listeners bound, read without synchronization so it may lag
+     */
+    public int getListenerCount()
+    {
+        return listenerCount;
+    }
+
+    /**
+     * @return Returns the number of resources bound, read without synchronization so it may lag
+     */
+    public int getResourceCount()
+    {
+        return resourceCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return transactionId + " on " + threadName + ": " + ageMs + "ms, " +
+                listenerCount + " listeners, " + resourceCount + " resources";
+    }
+}
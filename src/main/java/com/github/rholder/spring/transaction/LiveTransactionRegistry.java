@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Tracks the transactions that are open across all threads, so that long-running ones can be
+ * found while they are still running.  Install it with
+ * {@link TransactionBindingSupport#setLiveTransactionRegistry(LiveTransactionRegistry)} and,
+ * optionally, register it with an <tt>MBeanServer</tt> under {@link #OBJECT_NAME}.
+ * <p>
+ * Transactions are added when they are first bound and removed when they complete.  Both are
+ * lock-free and constant time: a transaction claims a free slot in a fixed table with a single
+ * compare-and-set, starting from a slot picked by its thread so that threads rarely collide,
+ * and gives the slot back with a plain write.  If the table is full the transaction is simply
+ * not tracked, and {@link #getUntrackedCount()} is incremented.  Queries scan the table.
+ * <p>
+ * With an alarm threshold set, {@link #checkAlarms()} logs a warning the first time it finds
+ * each transaction older than the threshold.  It runs periodically if a check interval was
+ * given, and otherwise whenever it is called.
+ *
+ * @author Ray Holder
+ */
+public class LiveTransactionRegistry implements LiveTransactionRegistryMBean, DisposableBean
+{
+    /** a suitable name to register the MBean under */
+    public static final String OBJECT_NAME = "com.github.rholder.spring.transaction:type=LiveTransactionRegistry";
+
+    /** the number of slots used by the default constructor */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static Log logger = LogFactory.getLog(LiveTransactionRegistry.class);
+
+    /**
+     * What the registry needs to read from a transaction's binding.  Only the counts and the
+     * sequence part of the ID are read from other threads; anything the binding builds lazily
+     * must not be touched there.
+     */
+    interface TrackedTransaction
+    {
+        long getNodeId();
+
+        long getTransactionIdAsLong();
+
+        long getTransactionStartTime();
+
+        int getListenerCount();
+
+        int getResourceCount();
+    }
+
+    private final AtomicReferenceArray<Registration> slots;
+    private final int mask;
+    private final AtomicLong untrackedCount = new AtomicLong();
+    private final AtomicLong alarmCount = new AtomicLong();
+    private volatile long alarmThresholdMs;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a registry with {@link #DEFAULT_CAPACITY} slots and no alarm
+     */
+    public LiveTransactionRegistry()
+    {
+        this(DEFAULT_CAPACITY, 0L, 0L);
+    }
+
+    /**
+     * @param capacity          the most transactions that can be tracked at once, rounded up to a power of two
+     * @param alarmThresholdMs  the age at which a transaction raises an alarm, or 0 for none
+     * @param checkIntervalMs   how often to check for alarms on a daemon thread, or 0 to only check
+     *      when {@link #checkAlarms()} is called
+     */
+    public LiveTransactionRegistry(int capacity, long alarmThresholdMs, long checkIntervalMs)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Registration>(size);
+        this.mask = size - 1;
+        this.alarmThresholdMs = alarmThresholdMs;
+        if (checkIntervalMs > 0)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "txn-registry-alarm");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        checkAlarms();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Long-running transaction check failed", e);
+                    }
+                }
+            }, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Starts tracking a transaction, on the thread that bound it
+     *
+     * @return Returns the slot claimed, to pass to {@link #remove(int)}, or -1 if the registry is full
+     */
+    int add(TrackedTransaction transaction)
+    {
+        Registration registration = new Registration(
+                transaction,
+                transaction.getNodeId(),
+                transaction.getTransactionIdAsLong(),
+                transaction.getTransactionStartTime(),
+                Thread.currentThread());
+        long threadId = Thread.currentThread().getId();
+        int start = (int) (threadId ^ (threadId >>> 32)) & mask;
+        for (int i = 0; i <= mask; i++)
+        {
+            int slot = (start + i) & mask;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, registration))
+            {
+                return slot;
+            }
+        }
+        untrackedCount.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Stops tracking the transaction in a slot returned by {@link #add(TrackedTransaction)}
+     */
+    void remove(int slot)
+    {
+        if (slot >= 0)
+        {
+            slots.set(slot, null);
+        }
+    }
+
+    /**
+     * @return Returns a view of the open transactions, oldest first
+     */
+    public List<LiveTransaction> getSnapshot()
+    {
+        return snapshot(0L);
+    }
+
+    /**
+     * @param minAgeMs  the youngest age to include
+     * @return Returns a view of the open transactions at least as old as the given age, oldest first
+     */
+    public List<LiveTransaction> getTransactionsOlderThan(long minAgeMs)
+    {
+        return snapshot(minAgeMs);
+    }
+
+    private List<LiveTransaction> snapshot(long minAgeMs)
+    {
+        long now = System.currentTimeMillis();
+        List<LiveTransaction> transactions = new ArrayList<LiveTransaction>();
+        for (int i = 0; i <= mask; i++)
+        {
+            Registration registration = slots.get(i);
+            if (registration != null && now - registration.startTime >= minAgeMs)
+            {
+                LiveTransaction transaction = registration.describe(now);
+                // the transaction may have completed while it was being read
+                if (transaction != null && slots.get(i) == registration)
+                {
+                    transactions.add(transaction);
+                }
+            }
+        }
+        Collections.sort(transactions, new Comparator<LiveTransaction>()
+        {
+            public int compare(LiveTransaction t1, LiveTransaction t2)
+            {
+                return t1.getStartTime() < t2.getStartTime() ? -1 : (t1.getStartTime() == t2.getStartTime() ? 0 : 1);
+            }
+        });
+        return transactions;
+    }
+
+    /**
+     * Logs a warning for each transaction that has gone past the alarm threshold since the last check
+     *
+     * @return Returns the transactions that raised an alarm in this check, oldest first
+     */
+    public synchronized List<LiveTransaction> checkAlarms()
+    {
+        long threshold = alarmThresholdMs;
+        if (threshold <= 0)
+        {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<LiveTransaction> alarms = new ArrayList<LiveTransaction>();
+        for (int i = 0; i <= mask; i++)
+        {
+            Registration registration = slots.get(i);
+            if (registration != null && !registration.alarmed && now - registration.startTime >= threshold)
+            {
+                LiveTransaction transaction = registration.describe(now);
+                if (transaction != null)
+                {
+                    registration.alarmed = true;
+                    alarms.add(transaction);
+                }
+            }
+        }
+        for (LiveTransaction transaction : alarms)
+        {
+            alarmCount.incrementAndGet();
+            logger.warn("Long-running transaction: \n" +
+                    "   transaction: " + transaction.getTransactionId() + "\n" +
+                    "   thread: " + transaction.getThreadName() + "\n" +
+                    "   age: " + transaction.getAgeMs() + "ms\n" +
+                    "   threshold: " + threshold + "ms\n" +
+                    "   listeners: " + transaction.getListenerCount() + "\n" +
+                    "   resources: " + transaction.getResourceCount());
+        }
+        return alarms;
+    }
+
+    public int getLiveTransactionCount()
+    {
+        int count = 0;
+        for (int i = 0; i <= mask; i++)
+        {
+            if (slots.get(i) != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getOldestTransactionAgeMs()
+    {
+        long now = System.currentTimeMillis();
+        long oldest = 0L;
+        for (int i = 0; i <= mask; i++)
+        {
+            Registration registration = slots.get(i);
+            if (registration != null)
+            {
+                oldest = Math.max(oldest, now - registration.startTime);
+            }
+        }
+        return oldest;
+    }
+
+    public String[] getLiveTransactions()
+    {
+        List<LiveTransaction> transactions = getSnapshot();
+        String[] rows = new String[transactions.size()];
+        for (int i = 0; i < rows.length; i++)
+        {
+            rows[i] = transactions.get(i).toString();
+        }
+        return rows;
+    }
+
+    public long getAlarmThresholdMs()
+    {
+        return alarmThresholdMs;
+    }
+
+    public void setAlarmThresholdMs(long alarmThresholdMs)
+    {
+        this.alarmThresholdMs = alarmThresholdMs;
+    }
+
+    public long getAlarmCount()
+    {
+        return alarmCount.get();
+    }
+
+    public long getUntrackedCount()
+    {
+        return untrackedCount.get();
+    }
+
+    /**
+     * Stops the periodic alarm check, if there is one
+     */
+    public void destroy()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * A transaction's claim on a slot, holding what is fixed for the life of the transaction
+     */
+    private static class Registration
+    {
+        private final TrackedTransaction transaction;
+        private final long nodeId;
+        private final long txnId;
+        private final long startTime;
+        private final Thread thread;
+        /** set once an alarm has been raised, only by {@link LiveTransactionRegistry#checkAlarms()} */
+        private boolean alarmed;
+
+        private Registration(TrackedTransaction transaction, long nodeId, long txnId, long startTime, Thread thread)
+        {
+            this.transaction = transaction;
+            this.nodeId = nodeId;
+            this.txnId = txnId;
+            this.startTime = startTime;
+            this.thread = thread;
+        }
+
+        /**
+         * The ID string is built from the captured ID rather than read from the binding,
+         * as the binding builds it lazily on the owning thread.
+         * 
+         * @return Returns a view of the transaction, or <tt>null</tt> if its binding has
+         *      already moved on to another transaction
+         */
+        private LiveTransaction describe(long now)
+        {
+            int listenerCount = transaction.getListenerCount();
+            int resourceCount = transaction.getResourceCount();
+            if (transaction.getTransactionIdAsLong() != txnId)
+            {
+                return null;
+            }
+            String transactionId = TransactionBindingSupport.formatTransactionId(nodeId, txnId);
+            return new LiveTransaction(transactionId, startTime, now - startTime, thread.getName(), listenerCount, resourceCount);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Management interface of {@link LiveTransactionRegistry}.
+ *
+ * @author Ray Holder
+ */
+public interface LiveTransactionRegistryMBean
+{
+    /** @return Returns the number of transactions open now */
+    int getLiveTransactionCount();
+
+    /** @return Returns the age of the oldest open transaction in milliseconds, or 0 if there is none */
+    long getOldestTransactionAgeMs();
+
+    /** @return Returns the open transactions, oldest first */
+    String[] getLiveTransactions();
+
+    /** @return Returns the age in milliseconds at which a transaction raises an alarm, or 0 for none */
+    long getAlarmThresholdMs();
+
+    /** @param alarmThresholdMs the age in milliseconds at which a transaction raises an alarm, or 0 for none */
+    void setAlarmThresholdMs(long alarmThresholdMs);
+
+    /** @return Returns the number of transactions that have raised an alarm */
+    long getAlarmCount();
+
+    /** @return Returns the number of transactions that could not be tracked because the registry was full */
+    long getUntrackedCount();
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable list of primitive <tt>long</tt> values.
+ *
+ * @see TransactionalResourceHelper#getLongList(Object)
+ *
+ * @author Ray Holder
+ */
+public class LongArrayList
+{
+    private long[] values;
+    private int size;
+    /** records changes while a resource layer is open, or null if no layer has fetched the list */
+    ResourceJournal journal;
+
+    /**
+     * @param initialCapacity   the number of values to allow for before growing
+     */
+    public LongArrayList(int initialCapacity)
+    {
+        values = new long[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * @param value the value to append
+     */
+    public void add(long value)
+    {
+        if (size == values.length)
+        {
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
+        }
+        values[size++] = value;
+        if (journal != null && journal.isRecording())
+        {
+            final int previousSize = size - 1;
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    size = previousSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * @param index the index of the value
+     * @return Returns the value at the index
+     */
+    public long get(int index)
+    {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * @param index the index of the value to replace
+     * @param value the new value
+     * @return Returns the previous value
+     */
+    public long set(final int index, long value)
+    {
+        checkIndex(index);
+        final long previous = values[index];
+        values[index] = value;
+        if (journal != null && journal.isRecording())
+        {
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    values[index] = previous;
+                }
+            });
+        }
+        return previous;
+    }
+
+    /**
+     * @param value the value to look for
+     * @return Returns <tt>true</tt> if the list holds the value
+     */
+    public boolean contains(long value)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (values[i] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        if (journal != null)
+        {
+            journal.snapshot(this);
+        }
+        size = 0;
+    }
+
+    /**
+     * @return Returns a copy of the values
+     */
+    public long[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return Returns an iterator over the values in order
+     */
+    public LongIterator iterator()
+    {
+        return new LongIterator()
+        {
+            private int next = 0;
+
+            public boolean hasNext()
+            {
+                return next < size;
+            }
+
+            public long next()
+            {
+                if (next >= size)
+                {
+                    throw new NoSuchElementException();
+                }
+                return values[next++];
+            }
+        };
+    }
+
+    /**
+     * @return Returns an independent copy, for undoing a clear made under a savepoint
+     */
+    LongArrayList copy()
+    {
+        LongArrayList copy = new LongArrayList(size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Takes over the contents of a copy that will not be used again
+     */
+    void restore(LongArrayList copy)
+    {
+        values = copy.values;
+        size = copy.size;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(size * 8 + 2);
+        sb.append('[');
+        for (int i = 0; i < size; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
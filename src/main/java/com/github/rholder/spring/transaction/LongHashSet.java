@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of primitive <tt>long</tt> values backed by a single open addressing table.
+ * <p>
+ * Collisions are resolved by linear probing and removals shift later entries back
+ * into the hole, so there are no tombstones and no per-entry objects.  Since
+ * <tt>0</tt> marks an empty slot in the table, the value <tt>0</tt> itself is
+ * tracked with a separate flag.
+ *
+ * @see TransactionalResourceHelper#getLongSet(Object)
+ *
+ * @author Ray Holder
+ */
+public class LongHashSet
+{
+    private long[] keys;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private boolean hasZero;
+    /** records changes while a resource layer is open, or null if no layer has fetched the set */
+    ResourceJournal journal;
+
+    /**
+     * @param expectedSize  the number of values to allow for before growing
+     */
+    public LongHashSet(int expectedSize)
+    {
+        allocate(tableSize(expectedSize));
+    }
+
+    /**
+     * @param value the value to add
+     * @return Returns <tt>true</tt> if the value was not already present
+     */
+    public boolean add(long value)
+    {
+        if (value == 0)
+        {
+            if (hasZero)
+            {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            recordChange(value, true);
+            return true;
+        }
+        int i = mix(value) & mask;
+        while (keys[i] != 0)
+        {
+            if (keys[i] == value)
+            {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = value;
+        if (++size > resizeAt)
+        {
+            rehash(keys.length << 1);
+        }
+        recordChange(value, true);
+        return true;
+    }
+
+    /**
+     * @param value the value to look for
+     * @return Returns <tt>true</tt> if the set holds the value
+     */
+    public boolean contains(long value)
+    {
+        if (value == 0)
+        {
+            return hasZero;
+        }
+        int i = mix(value) & mask;
+        long key;
+        while ((key = keys[i]) != 0)
+        {
+            if (key == value)
+            {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @param value the value to remove
+     * @return Returns <tt>true</tt> if the value was present
+     */
+    public boolean remove(long value)
+    {
+        if (value == 0)
+        {
+            if (!hasZero)
+            {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            recordChange(value, false);
+            return true;
+        }
+        int i = mix(value) & mask;
+        long key;
+        while ((key = keys[i]) != 0)
+        {
+            if (key == value)
+            {
+                shiftBack(i);
+                size--;
+                recordChange(value, false);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        if (journal != null)
+        {
+            journal.snapshot(this);
+        }
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return Returns a copy of the values in no particular order
+     */
+    public long[] toArray()
+    {
+        long[] values = new long[size];
+        int n = 0;
+        if (hasZero)
+        {
+            n++;
+        }
+        for (long key : keys)
+        {
+            if (key != 0)
+            {
+                values[n++] = key;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return Returns an iterator over the values in no particular order
+     */
+    public LongIterator iterator()
+    {
+        return new LongIterator()
+        {
+            // -1 stands for the zero value, which is reported first
+            private int next = hasZero ? -1 : advance(0);
+
+            public boolean hasNext()
+            {
+                return next < keys.length;
+            }
+
+            public long next()
+            {
+                if (next >= keys.length)
+                {
+                    throw new NoSuchElementException();
+                }
+                long value = next < 0 ? 0 : keys[next];
+                next = advance(next + 1);
+                return value;
+            }
+
+            private int advance(int from)
+            {
+                while (from < keys.length && keys[from] == 0)
+                {
+                    from++;
+                }
+                return from;
+            }
+        };
+    }
+
+    /**
+     * @return Returns an independent copy, for undoing a clear made under a savepoint
+     */
+    LongHashSet copy()
+    {
+        LongHashSet copy = new LongHashSet(0);
+        copy.keys = keys.clone();
+        copy.mask = mask;
+        copy.size = size;
+        copy.resizeAt = resizeAt;
+        copy.hasZero = hasZero;
+        return copy;
+    }
+
+    /**
+     * Takes over the contents of a copy that will not be used again
+     */
+    void restore(LongHashSet copy)
+    {
+        keys = copy.keys;
+        mask = copy.mask;
+        size = copy.size;
+        resizeAt = copy.resizeAt;
+        hasZero = copy.hasZero;
+    }
+
+    private void recordChange(long value, boolean added)
+    {
+        if (journal != null && journal.isRecording())
+        {
+            journal.record(new ValueUndo(this, value, added));
+        }
+    }
+
+    /**
+     * Removes a value that was added, or adds back one that was removed
+     */
+    private static class ValueUndo implements ResourceJournal.Undo
+    {
+        private final LongHashSet set;
+        private final long value;
+        private final boolean added;
+
+        private ValueUndo(LongHashSet set, long value, boolean added)
+        {
+            this.set = set;
+            this.value = value;
+            this.added = added;
+        }
+
+        public void undo()
+        {
+            if (added)
+            {
+                set.remove(value);
+            }
+            else
+            {
+                set.add(value);
+            }
+        }
+    }
+
+    /**
+     * Close the gap left at the given slot by moving back any later entries in
+     * the same probe run that would otherwise no longer be reachable.
+     */
+    private void shiftBack(int hole)
+    {
+        int i = hole;
+        while (true)
+        {
+            i = (i + 1) & mask;
+            long key = keys[i];
+            if (key == 0)
+            {
+                break;
+            }
+            int home = mix(key) & mask;
+            // move the entry if its home slot does not lie cyclically in (hole, i]
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i))
+            {
+                keys[hole] = key;
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        allocate(capacity);
+        for (long key : oldKeys)
+        {
+            if (key != 0)
+            {
+                int i = mix(key) & mask;
+                while (keys[i] != 0)
+                {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = loadLimit(capacity);
+    }
+
+    /**
+     * @return Returns the power of two table size that holds the given number of
+     *      entries without exceeding the load limit
+     */
+    static int tableSize(int expectedSize)
+    {
+        int capacity = 8;
+        while (loadLimit(capacity) < expectedSize)
+        {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return Returns the number of entries a table of the given size holds
+     *      before it is grown, keeping it at most three quarters full
+     */
+    static int loadLimit(int capacity)
+    {
+        return (capacity >> 1) + (capacity >> 2);
+    }
+
+    /**
+     * Scrambles a key with the murmur3 <tt>fmix64</tt> finalizer, so that every bit of the
+     * key affects the low bits used to pick a slot.  Linear probing needs this: runs of ids,
+     * or ids a power of two apart, would otherwise pile up into long clusters.
+     */
+    static int mix(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
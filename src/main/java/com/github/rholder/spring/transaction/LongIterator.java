@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Iterates over primitive <tt>long</tt> values without boxing them.
+ *
+ * @author Ray Holder
+ */
+public interface LongIterator
+{
+    /**
+     * @return Returns <tt>true</tt> if there are more values
+     */
+    boolean hasNext();
+
+    /**
+     * @return Returns the next value
+     * @throws java.util.NoSuchElementException if there are no more values
+     */
+    long next();
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive <tt>long</tt> keys to object values backed by parallel
+ * open addressing tables, probed the same way as {@link LongHashSet}.  Keys are
+ * never boxed and no entry objects are created.  Values may not be <tt>null</tt>.
+ *
+ * @see TransactionalResourceHelper#getLongToObjectMap(Object)
+ *
+ * @author Ray Holder
+ */
+public class LongObjectHashMap<V>
+{
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private Object zeroValue;
+    /** records changes while a resource layer is open, or null if no layer has fetched the map */
+    ResourceJournal journal;
+
+    /**
+     * @param expectedSize  the number of entries to allow for before growing
+     */
+    public LongObjectHashMap(int expectedSize)
+    {
+        allocate(LongHashSet.tableSize(expectedSize));
+    }
+
+    /**
+     * @param key   the key to look up
+     * @return Returns the value mapped to the key or <tt>null</tt> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        if (key == 0)
+        {
+            return (V) zeroValue;
+        }
+        int i = LongHashSet.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0)
+        {
+            if (k == key)
+            {
+                return (V) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param key   the key to look for
+     * @return Returns <tt>true</tt> if the key is mapped
+     */
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key   the key to map
+     * @param value the non-null value to map it to
+     * @return Returns the value previously mapped to the key or <tt>null</tt>
+     */
+    public V put(long key, V value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Null values are not supported, key: " + key);
+        }
+        V previous = store(key, value);
+        recordChange(key, previous);
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V store(long key, V value)
+    {
+        if (key == 0)
+        {
+            Object previous = zeroValue;
+            zeroValue = value;
+            if (previous == null)
+            {
+                size++;
+            }
+            return (V) previous;
+        }
+        int i = LongHashSet.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0)
+        {
+            if (k == key)
+            {
+                Object previous = values[i];
+                values[i] = value;
+                return (V) previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt)
+        {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @param key   the key to unmap
+     * @return Returns the value that was mapped to the key or <tt>null</tt>
+     */
+    public V remove(long key)
+    {
+        V previous = delete(key);
+        if (previous != null)
+        {
+            recordChange(key, previous);
+        }
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V delete(long key)
+    {
+        if (key == 0)
+        {
+            Object previous = zeroValue;
+            if (previous != null)
+            {
+                zeroValue = null;
+                size--;
+            }
+            return (V) previous;
+        }
+        int i = LongHashSet.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0)
+        {
+            if (k == key)
+            {
+                Object previous = values[i];
+                shiftBack(i);
+                size--;
+                return (V) previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        if (journal != null)
+        {
+            journal.snapshot(this);
+        }
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        zeroValue = null;
+        size = 0;
+    }
+
+    /**
+     * @return Returns a copy of the mapped keys in no particular order
+     */
+    public long[] keys()
+    {
+        long[] result = new long[size];
+        int n = 0;
+        if (zeroValue != null)
+        {
+            n++;
+        }
+        for (long key : keys)
+        {
+            if (key != 0)
+            {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Returns an independent copy, for undoing a clear made under a savepoint
+     */
+    LongObjectHashMap<V> copy()
+    {
+        LongObjectHashMap<V> copy = new LongObjectHashMap<V>(0);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.mask = mask;
+        copy.size = size;
+        copy.resizeAt = resizeAt;
+        copy.zeroValue = zeroValue;
+        return copy;
+    }
+
+    /**
+     * Takes over the contents of a copy that will not be used again
+     */
+    void restore(LongObjectHashMap<V> copy)
+    {
+        keys = copy.keys;
+        values = copy.values;
+        mask = copy.mask;
+        size = copy.size;
+        resizeAt = copy.resizeAt;
+        zeroValue = copy.zeroValue;
+    }
+
+    /**
+     * Records the value a key had before it was changed, <tt>null</tt> if it was unmapped
+     */
+    private void recordChange(final long key, final V previous)
+    {
+        if (journal != null && journal.isRecording())
+        {
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    if (previous == null)
+                    {
+                        delete(key);
+                    }
+                    else
+                    {
+                        store(key, previous);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @see LongHashSet
+     */
+    private void shiftBack(int hole)
+    {
+        int i = hole;
+        while (true)
+        {
+            i = (i + 1) & mask;
+            long key = keys[i];
+            if (key == 0)
+            {
+                break;
+            }
+            int home = LongHashSet.mix(key) & mask;
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i))
+            {
+                keys[hole] = key;
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++)
+        {
+            long key = oldKeys[j];
+            if (key != 0)
+            {
+                int i = LongHashSet.mix(key) & mask;
+                while (keys[i] != 0)
+                {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = LongHashSet.loadLimit(capacity);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded {@link SharedCache} that evicts the least recently used entry once full.
+ *
+ * @param <K>   the key type
+ * @param <V>   the value type
+ *
+ * @author Ray Holder
+ */
+public class LruSharedCache<K, V> implements SharedCache<K, V>
+{
+    private final LinkedHashMap<K, V> map;
+
+    /**
+     * @param maxSize   the maximum number of entries to keep
+     */
+    public LruSharedCache(final int maxSize)
+    {
+        if (maxSize < 1)
+        {
+            throw new IllegalArgumentException("Cache size must be at least 1: " + maxSize);
+        }
+        this.map = new LinkedHashMap<K, V>(Math.min(maxSize, 1024), 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized V get(K key)
+    {
+        return map.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void put(K key, V value)
+    {
+        map.put(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void putIfAbsent(K key, V value)
+    {
+        if (!map.containsKey(key))
+        {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void remove(K key)
+    {
+        map.remove(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int size()
+    {
+        return map.size();
+    }
+}
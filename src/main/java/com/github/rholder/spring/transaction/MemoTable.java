@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The values memoized in one transaction by {@link TransactionalResourceHelper#memoize(Object, Callable)}.
+ * <p>
+ * The table is safe to use from the worker threads of a
+ * {@link TransactionBindingSupport#captureContext() captured context} as well as the owning thread.
+ * A value is computed by the first thread to ask for it; any other thread asking while it is
+ * being computed waits for the result, and if the computation fails, tries it again itself.  Only
+ * a thread asking for a value it is itself computing is treated as re-entrant.
+ *
+ * @author Ray Holder
+ */
+final class MemoTable
+{
+    /** stands in for a memoized <tt>null</tt> */
+    private static final Object NULL = new Object();
+
+    private final ConcurrentMap<Object, Object> memos = new ConcurrentHashMap<Object, Object>(16);
+    /** records values memoized while a resource layer is open, or null if no layer has fetched the table */
+    volatile ResourceJournal journal;
+
+    /**
+     * @param memoKey       the key of the value, never <tt>null</tt>
+     * @param computation   computes the value if it is not yet remembered
+     * @param statistics    counts the hit or miss, or <tt>null</tt> if it is not counted
+     * @return Returns the remembered or newly computed value
+     */
+    @SuppressWarnings("unchecked")
+    <V> V compute(Object memoKey, Callable<V> computation, Statistics statistics)
+    {
+        while (true)
+        {
+            Object value = memos.get(memoKey);
+            if (value == null)
+            {
+                Computation pending = new Computation();
+                value = memos.putIfAbsent(memoKey, pending);
+                if (value == null)
+                {
+                    if (statistics != null)
+                    {
+                        statistics.miss();
+                    }
+                    return run(memoKey, computation, pending);
+                }
+            }
+            if (value instanceof Computation)
+            {
+                Computation pending = (Computation) value;
+                if (pending.thread == Thread.currentThread())
+                {
+                    throw new IllegalStateException("Re-entrant memoization of a value that is still being computed: \n" +
+                            "   memo: " + memoKey);
+                }
+                // another thread is computing it: use its result, or try again if it failed
+                pending.await();
+                continue;
+            }
+            if (statistics != null)
+            {
+                statistics.hit();
+            }
+            return value == NULL ? null : (V) value;
+        }
+    }
+
+    private <V> V run(final Object memoKey, Callable<V> computation, Computation pending)
+    {
+        boolean remembered = false;
+        try
+        {
+            V computed = computation.call();
+            memos.put(memoKey, computed == null ? NULL : computed);
+            remembered = true;
+            ResourceJournal journal = this.journal;
+            if (journal != null && journal.isRecording())
+            {
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        memos.remove(memoKey);
+                    }
+                });
+            }
+            return computed;
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Memoized computation failed: " + memoKey, e);
+        }
+        finally
+        {
+            if (!remembered)
+            {
+                memos.remove(memoKey, pending);
+            }
+            pending.done.countDown();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MemoTable[" + memos.size() + " values]";
+    }
+
+    /**
+     * Marks a value that is still being computed, by the thread that is computing it
+     */
+    private static final class Computation
+    {
+        private final Thread thread = Thread.currentThread();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * Waits for the computation to finish, keeping the interrupt for the caller
+         */
+        private void await()
+        {
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The hit and miss counts of one memoization key, spread across padded stripes chosen by
+     * thread as {@link TransactionalCounter} does, so that threads counting at the same time
+     * rarely contend on the same cache line
+     */
+    static final class Statistics
+    {
+        /** the number of longs between stripes, so each stripe has a cache line to itself */
+        private static final int PADDING = 8;
+        private static final int STRIPE_MASK;
+        static
+        {
+            int stripeCount = 1;
+            while (stripeCount < Runtime.getRuntime().availableProcessors() * 2)
+            {
+                stripeCount <<= 1;
+            }
+            STRIPE_MASK = stripeCount - 1;
+        }
+
+        /** the hits at the start of each stripe and the misses just after */
+        private final AtomicLongArray stripes = new AtomicLongArray((STRIPE_MASK + 1) * PADDING);
+
+        void hit()
+        {
+            stripes.incrementAndGet(stripe());
+        }
+
+        void miss()
+        {
+            stripes.incrementAndGet(stripe() + 1);
+        }
+
+        long getHits()
+        {
+            return sum(0);
+        }
+
+        long getMisses()
+        {
+            return sum(1);
+        }
+
+        private long sum(int offset)
+        {
+            long sum = 0;
+            for (int i = offset; i < stripes.length(); i += PADDING)
+            {
+                sum += stripes.get(i);
+            }
+            return sum;
+        }
+
+        private static int stripe()
+        {
+            // thread ids are handed out sequentially, so concurrent callers spread over the stripes
+            long threadId = Thread.currentThread().getId();
+            return (((int) (threadId ^ (threadId >>> 32))) & STRIPE_MASK) * PADDING;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The on-disk journal behind a {@link TransactionalOutbox}: a series of fixed-size segment
+ * files, each memory-mapped and filled with checksummed records.
+ * <p>
+ * A record is laid out as:
+ * <pre>
+ *   int    length of everything after the header
+ *   int    CRC32 of the sequence, transaction ID and payload
+ *   byte   state, rewritten in place as the event progresses
+ *   long   sequence
+ *   byte   length of the transaction ID
+ *   byte[] transaction ID, in ASCII
+ *   byte[] payload
+ * </pre>
+ * A zero length marks the end of a segment.  Recovery stops reading a segment at the first
+ * record that is incomplete or fails its checksum.
+ * <p>
+ * {@link #sync(long)} forces the mapped segments to disk.  Callers that arrive while another
+ * is forcing wait for it and are then covered by a single force of everything appended in the
+ * meantime, so concurrent commits share their fsyncs.
+ *
+ * @author Ray Holder
+ */
+class OutboxJournal
+{
+    static final byte PREPARED = 1;
+    static final byte COMMITTED = 2;
+    static final byte DELIVERED = 3;
+    static final byte ABORTED = 4;
+
+    private static final int HEADER_BYTES = 18;
+    private static final int STATE_OFFSET = 8;
+    private static final String PREFIX = "outbox-";
+    private static final String SUFFIX = ".log";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static Log logger = LogFactory.getLog(OutboxJournal.class);
+
+    private final File directory;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    /** the sequence and ID length of the record being appended, for the checksum */
+    private final byte[] scratch = new byte[9];
+    /** the segments with undelivered records, and the one being written */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    /** the segments written to since the last force */
+    private final Set<Segment> dirty = new LinkedHashSet<Segment>();
+    private final Object syncLock = new Object();
+    private Segment current;
+    private long nextSegmentNumber;
+    private long nextSequence = 1L;
+    private volatile long syncedSequence;
+    private boolean closed;
+
+    /**
+     * @param directory     where to keep the segment files, created if necessary
+     * @param segmentSize   the size of each segment file
+     */
+    OutboxJournal(File directory, int segmentSize)
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IllegalStateException("Failed to create outbox directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads the existing segments, deleting those with nothing left to deliver.  New records
+     * always go into a new segment.
+     *
+     * @return Returns the prepared and committed records, oldest first
+     */
+    synchronized List<Entry> recover()
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (File file : files)
+        {
+            long number = Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length()), 16);
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+            Segment segment = openSegment(file, number, (int) file.length());
+            segment.sealed = true;
+            scan(segment, entries);
+            if (segment.outstanding == 0)
+            {
+                deleteSegment(segment);
+            }
+            else
+            {
+                segments.add(segment);
+            }
+        }
+        return entries;
+    }
+
+    private void scan(Segment segment, List<Entry> entries)
+    {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_BYTES <= buffer.capacity())
+        {
+            int length = buffer.getInt(position);
+            if (length == 0)
+            {
+                break;
+            }
+            int idLength = buffer.get(position + HEADER_BYTES - 1) & 0xff;
+            byte state = buffer.get(position + STATE_OFFSET);
+            if (length < idLength || length < 0 || position + HEADER_BYTES + length > buffer.capacity() || state < PREPARED || state > ABORTED)
+            {
+                logger.warn("Outbox journal truncated at a damaged record: \n" +
+                        "   file: " + segment.file + "\n" +
+                        "   offset: " + position);
+                break;
+            }
+            byte[] body = new byte[8 + 1 + length];
+            ByteBuffer read = buffer.duplicate();
+            read.position(position + STATE_OFFSET + 1);
+            read.get(body);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4))
+            {
+                logger.warn("Outbox journal truncated at a record that failed its checksum: \n" +
+                        "   file: " + segment.file + "\n" +
+                        "   offset: " + position);
+                break;
+            }
+            long sequence = buffer.getLong(position + STATE_OFFSET + 1);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (state == PREPARED || state == COMMITTED)
+            {
+                String transactionId = idLength == 0 ? null : new String(body, 9, idLength, ASCII);
+                entries.add(new Entry(segment, position, sequence, transactionId, idLength, length - idLength, state));
+                segment.outstanding++;
+            }
+            position += HEADER_BYTES + length;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Appends a prepared record, which is not durable until {@link #sync(long)} is called
+     *
+     * @param transactionId the ID of the transaction publishing the event, or <tt>null</tt> for none
+     * @param payload       the event
+     * @return Returns the record
+     */
+    synchronized Entry append(String transactionId, byte[] payload)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Outbox journal is closed: " + directory);
+        }
+        byte[] id = transactionId == null ? new byte[0] : transactionId.getBytes(ASCII);
+        if (id.length > 255)
+        {
+            throw new IllegalArgumentException("Transaction ID too long for the outbox: " + transactionId);
+        }
+        int length = id.length + payload.length;
+        int recordSize = HEADER_BYTES + length;
+        if (recordSize > segmentSize)
+        {
+            throw new IllegalArgumentException("Outbox event of " + payload.length + " bytes does not fit in a segment of " + segmentSize);
+        }
+        if (current == null || current.writePosition + recordSize > segmentSize)
+        {
+            rollSegment();
+        }
+        long sequence = nextSequence++;
+        int position = current.writePosition;
+        ByteBuffer buffer = current.buffer;
+        buffer.putLong(position + STATE_OFFSET + 1, sequence);
+        buffer.put(position + HEADER_BYTES - 1, (byte) id.length);
+        ByteBuffer write = buffer.duplicate();
+        write.position(position + HEADER_BYTES);
+        write.put(id);
+        write.put(payload);
+        ByteBuffer.wrap(scratch).putLong(sequence).put((byte) id.length);
+        crc.reset();
+        crc.update(scratch);
+        crc.update(id);
+        crc.update(payload);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + STATE_OFFSET, PREPARED);
+        buffer.putInt(position, length);
+        current.writePosition = position + recordSize;
+        current.outstanding++;
+        dirty.add(current);
+        return new Entry(current, position, sequence, transactionId, id.length, payload.length, PREPARED);
+    }
+
+    private void rollSegment()
+    {
+        if (current != null)
+        {
+            current.sealed = true;
+            if (current.outstanding == 0)
+            {
+                deleteSegment(current);
+            }
+        }
+        File file = new File(directory, PREFIX + String.format("%016x", nextSegmentNumber) + SUFFIX);
+        current = openSegment(file, nextSegmentNumber++, segmentSize);
+        segments.add(current);
+    }
+
+    private Segment openSegment(File file, long number, int size)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(number, file, raf, buffer);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to map outbox segment: " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the state of a record.  Records that reach {@link #DELIVERED} or {@link #ABORTED}
+     * are finished with, and a sealed segment is deleted once all of its records are.
+     */
+    synchronized void mark(Entry entry, byte state)
+    {
+        Segment segment = entry.segment;
+        if (segment.deleted)
+        {
+            return;
+        }
+        segment.buffer.put(entry.offset + STATE_OFFSET, state);
+        dirty.add(segment);
+        if (state == DELIVERED || state == ABORTED)
+        {
+            segment.outstanding--;
+            if (segment.outstanding == 0 && segment.sealed)
+            {
+                segments.remove(segment);
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        segment.deleted = true;
+        dirty.remove(segment);
+        try
+        {
+            segment.raf.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close outbox segment: " + segment.file, e);
+        }
+        // the mapping itself is only released when the buffer is collected
+        if (!segment.file.delete())
+        {
+            logger.warn("Failed to delete outbox segment: " + segment.file);
+        }
+    }
+
+    /**
+     * @return Returns a read-only view of the record's payload in the mapped segment
+     */
+    ByteBuffer payload(Entry entry)
+    {
+        ByteBuffer payload = entry.segment.buffer.asReadOnlyBuffer();
+        int start = entry.offset + HEADER_BYTES + entry.idLength;
+        payload.position(start);
+        payload.limit(start + entry.payloadLength);
+        return payload.slice();
+    }
+
+    /**
+     * Makes everything appended up to the given sequence durable, along with any state changes
+     * made so far, sharing a single force with any other threads waiting to do the same
+     *
+     * @param sequence  the sequence of the last record that must be durable
+     */
+    void sync(long sequence)
+    {
+        if (syncedSequence >= sequence)
+        {
+            return;
+        }
+        synchronized (syncLock)
+        {
+            if (syncedSequence >= sequence)
+            {
+                return;
+            }
+            force();
+        }
+    }
+
+    private void force()
+    {
+        long target;
+        Segment[] toForce;
+        synchronized (this)
+        {
+            target = nextSequence - 1;
+            toForce = dirty.toArray(new Segment[dirty.size()]);
+            dirty.clear();
+        }
+        for (Segment segment : toForce)
+        {
+            segment.buffer.force();
+        }
+        syncedSequence = target;
+    }
+
+    /**
+     * Forces any outstanding changes to disk and closes the segment files
+     */
+    void close()
+    {
+        synchronized (syncLock)
+        {
+            force();
+        }
+        synchronized (this)
+        {
+            closed = true;
+            for (Segment segment : segments)
+            {
+                try
+                {
+                    segment.raf.close();
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Failed to close outbox segment: " + segment.file, e);
+                }
+            }
+            segments.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * @return Returns the number of segment files held open
+     */
+    synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static class Segment
+    {
+        private final long number;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        /** the records not yet delivered or aborted */
+        private int outstanding;
+        /** <tt>true</tt> once no more records will be appended */
+        private boolean sealed;
+        private boolean deleted;
+
+        private Segment(long number, File file, RandomAccessFile raf, MappedByteBuffer buffer)
+        {
+            this.number = number;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Segment[" + number + ", " + file + "]";
+        }
+    }
+
+    /**
+     * The location of a record
+     */
+    static class Entry
+    {
+        private final Segment segment;
+        private final int offset;
+        private final long sequence;
+        private final String transactionId;
+        private final int idLength;
+        private final int payloadLength;
+        private final byte recoveredState;
+
+        private Entry(Segment segment, int offset, long sequence, String transactionId, int idLength, int payloadLength, byte recoveredState)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.sequence = sequence;
+            this.transactionId = transactionId;
+            this.idLength = idLength;
+            this.payloadLength = payloadLength;
+            this.recoveredState = recoveredState;
+        }
+
+        long getSequence()
+        {
+            return sequence;
+        }
+
+        String getTransactionId()
+        {
+            return transactionId;
+        }
+
+        /**
+         * @return Returns the state the record was in when it was appended or recovered
+         */
+        byte getRecoveredState()
+        {
+            return recoveredState;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry[" + sequence + ", txn=" + transactionId + ", " + segment + "@" + offset + "]";
+        }
+    }
+}
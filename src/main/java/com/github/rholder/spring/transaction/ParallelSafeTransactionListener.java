@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Marker for listeners whose {@link #beforeCommit(boolean)} callback is independent of
+ * every other listener's, so that it may run at the same time as theirs.
+ * <p>
+ * When an executor has been configured with
+ * {@link TransactionBindingSupport#setParallelListenerExecutor(java.util.concurrent.ExecutorService)},
+ * adjacent marked listeners in a <tt>beforeCommit</tt> wave are called concurrently, one on the
+ * committing thread and the rest on the executor, and all of them finish before the next
+ * unmarked listener or wave is called.  If any of them throws, the first exception is rethrown
+ * on the committing thread once they have all finished, so the commit fails as it would
+ * have done inline.  Unmarked listeners, and all other callbacks, are always called one at a
+ * time in order.
+ * <p>
+ * The callbacks run in a {@link TransactionBindingSupport#captureContext() captured context}:
+ * they can read the transaction's resources and bind further listeners, which join the next
+ * wave, but they cannot bind resources.
+ *
+ * @author Ray Holder
+ */
+public interface ParallelSafeTransactionListener extends TransactionListener
+{
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Coalesces the post-commit work of many transactions into batches.
+ * <p>
+ * Within a transaction, {@link #contribute(Object, Object)} records items under a key.
+ * Only when the transaction commits are its items handed to the shared aggregator; a
+ * rolled back transaction contributes nothing.  The aggregator collects items from all
+ * committed transactions per key and passes them to the {@link BatchHandler} in a single
+ * call once either the batch reaches <tt>maxBatchSize</tt> items or <tt>maxDelayMs</tt>
+ * has passed since the first item arrived.  Equal items within a batch are only passed
+ * once.
+ * <p>
+ * Batches are handed over on the scheduler's threads, never on the committing thread, unless the
+ * scheduler has been shut down, in which case a transaction that commits afterwards has its batch
+ * handed over straight away on its own thread rather than lost.
+ *
+ * @param <K>   the type of the batch keys, e.g. a cache region
+ * @param <V>   the type of the items, e.g. a document id
+ *
+ * @author Ray Holder
+ */
+public class PostCommitCoalescer<K, V> implements DisposableBean
+{
+    /**
+     * Receives the coalesced items of committed transactions
+     *
+     * @param <K>   the type of the batch keys
+     * @param <V>   the type of the items
+     */
+    public interface BatchHandler<K, V>
+    {
+        /**
+         * Processes a batch of items.  Any exception is logged and the batch is dropped.
+         *
+         * @param key   the key the items were contributed under
+         * @param items the distinct items contributed by all transactions in the window
+         */
+        void handleBatch(K key, Collection<V> items);
+    }
+
+    /** each coalescer's contributions in the current transaction, by coalescer */
+    private static final TransactionResourceKey<Map<Object, Object>> KEY_CONTRIBUTIONS =
+            new TransactionResourceKey<Map<Object, Object>>("PostCommitCoalescer.contributions");
+
+    private static Log logger = LogFactory.getLog(PostCommitCoalescer.class);
+
+    private final BatchHandler<K, V> handler;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final ConcurrentMap<K, Batch> pending;
+
+    /**
+     * Creates a coalescer with its own single scheduler thread
+     *
+     * @param handler       receives the batches
+     * @param maxBatchSize  the number of items for a key that causes an immediate flush
+     * @param maxDelayMs    the longest time the first item for a key waits to be flushed
+     */
+    public PostCommitCoalescer(BatchHandler<K, V> handler, int maxBatchSize, long maxDelayMs)
+    {
+        this(handler, maxBatchSize, maxDelayMs, createScheduler(), true);
+    }
+
+    /**
+     * @param handler       receives the batches
+     * @param maxBatchSize  the number of items for a key that causes an immediate flush
+     * @param maxDelayMs    the longest time the first item for a key waits to be flushed
+     * @param scheduler     runs the flushes; not shut down by this instance
+     */
+    public PostCommitCoalescer(BatchHandler<K, V> handler, int maxBatchSize, long maxDelayMs, ScheduledExecutorService scheduler)
+    {
+        this(handler, maxBatchSize, maxDelayMs, scheduler, false);
+    }
+
+    private PostCommitCoalescer(
+            BatchHandler<K, V> handler,
+            int maxBatchSize,
+            long maxDelayMs,
+            ScheduledExecutorService scheduler,
+            boolean ownScheduler)
+    {
+        if (maxBatchSize < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatchSize);
+        }
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.pending = new ConcurrentHashMap<K, Batch>();
+    }
+
+    /**
+     * @return Returns a single daemon thread scheduler that drops delayed flushes on shutdown,
+     *      leaving them to {@link #destroy()}
+     */
+    private static ScheduledExecutorService createScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "txn-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    /**
+     * Records an item to be passed to the handler if the current transaction, which must be
+     * active, commits.  An item contributed in a resource layer that is rolled back is dropped.
+     *
+     * @param key   the batch key
+     * @param item  the item to add to the key's next batch
+     */
+    public void contribute(final K key, final V item)
+    {
+        Map<K, Set<V>> contributions = InstanceResources.get(KEY_CONTRIBUTIONS, this);
+        if (contributions == null)
+        {
+            contributions = new HashMap<K, Set<V>>(7);
+            InstanceResources.bind(KEY_CONTRIBUTIONS, this, contributions);
+            TransactionBindingSupport.bindListener(new ContributionListener(contributions));
+        }
+        Set<V> items = contributions.get(key);
+        if (items == null)
+        {
+            items = new LinkedHashSet<V>(7);
+            contributions.put(key, items);
+        }
+        if (items.add(item))
+        {
+            ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+            if (journal != null)
+            {
+                final Map<K, Set<V>> contributed = contributions;
+                final Set<V> added = items;
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        added.remove(item);
+                        if (added.isEmpty())
+                        {
+                            contributed.remove(key);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return Returns the number of keys with items waiting to be flushed
+     */
+    public int getPendingKeyCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Flushes everything that is waiting on the calling thread
+     */
+    public void flushAll()
+    {
+        for (Batch batch : pending.values())
+        {
+            flush(batch);
+        }
+    }
+
+    /**
+     * Flushes all pending batches and, if the scheduler was created by this instance, shuts it down
+     */
+    public void destroy() throws Exception
+    {
+        if (ownScheduler)
+        {
+            scheduler.shutdown();
+            scheduler.awaitTermination(AsyncTransactionListenerExecutor.DEFAULT_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        flushAll();
+    }
+
+    /**
+     * Adds the items committed by one transaction to the shared batches
+     */
+    private void publish(Map<K, Set<V>> contributions)
+    {
+        for (Map.Entry<K, Set<V>> entry : contributions.entrySet())
+        {
+            K key = entry.getKey();
+            while (true)
+            {
+                Batch batch = pending.get(key);
+                if (batch == null)
+                {
+                    batch = new Batch(key);
+                    Batch existing = pending.putIfAbsent(key, batch);
+                    if (existing != null)
+                    {
+                        batch = existing;
+                    }
+                }
+                if (batch.add(entry.getValue()))
+                {
+                    break;
+                }
+                // the batch was flushed while we were adding to it, so start another
+            }
+        }
+    }
+
+    /**
+     * Hands a batch to the scheduler, or flushes it on the calling thread if the scheduler
+     * rejects it
+     */
+    private void scheduleFlush(final Batch batch, long delayMs)
+    {
+        try
+        {
+            scheduler.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    flush(batch);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the scheduler has been shut down, and destroy() may already have run, so flush it here
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Coalesced batch flushed on the committing thread after scheduler shutdown: \n" +
+                        "   key: " + batch.key);
+            }
+            flush(batch);
+        }
+    }
+
+    /**
+     * Passes a batch to the handler, unless it has already been flushed
+     */
+    private void flush(Batch batch)
+    {
+        Collection<V> items = batch.close();
+        if (items == null)
+        {
+            return;     // already flushed
+        }
+        pending.remove(batch.key, batch);
+        try
+        {
+            handler.handleBatch(batch.key, items);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Coalesced batch handler exception: \n" +
+                    "   key: " + batch.key + "\n" +
+                    "   items: " + items.size(),
+                    e);
+        }
+    }
+
+    /**
+     * The items waiting to be flushed for a key
+     */
+    private class Batch
+    {
+        private final K key;
+        private Set<V> items = new LinkedHashSet<V>();
+        private boolean timerScheduled;
+        private boolean flushScheduled;
+
+        Batch(K key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * @return Returns <tt>false</tt> if the batch has been closed and cannot take the items
+         */
+        boolean add(Collection<V> newItems)
+        {
+            boolean scheduleTimer = false;
+            boolean scheduleNow = false;
+            synchronized (this)
+            {
+                if (items == null)
+                {
+                    return false;
+                }
+                items.addAll(newItems);
+                if (!timerScheduled)
+                {
+                    timerScheduled = true;
+                    scheduleTimer = true;
+                }
+                if (items.size() >= maxBatchSize && !flushScheduled)
+                {
+                    flushScheduled = true;
+                    scheduleNow = true;
+                }
+            }
+            if (scheduleNow)
+            {
+                scheduleFlush(this, 0L);
+            }
+            else if (scheduleTimer)
+            {
+                scheduleFlush(this, maxDelayMs);
+            }
+            return true;
+        }
+
+        /**
+         * @return Returns the items, or <tt>null</tt> if the batch was already closed
+         */
+        synchronized Collection<V> close()
+        {
+            Collection<V> closed = items;
+            items = null;
+            return closed;
+        }
+    }
+
+    /**
+     * Publishes one transaction's contributions when it commits
+     */
+    private class ContributionListener extends TransactionListenerAdapter
+    {
+        private final Map<K, Set<V>> contributions;
+
+        ContributionListener(Map<K, Set<V>> contributions)
+        {
+            this.contributions = contributions;
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            publish(contributions);
+        }
+    }
+}
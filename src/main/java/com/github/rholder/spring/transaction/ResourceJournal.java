@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Records the changes made to a transaction's {@link TransactionalResourceHelper} collections
+ * while a resource layer is open, so that rolling back the layer can undo them.  Collections
+ * report each entry as it is changed, so a layer costs what was modified under it rather than
+ * what the collections hold.
+ *
+ * @see TransactionBindingSupport#beginResourceLayer()
+ *
+ * @author Ray Holder
+ */
+interface ResourceJournal
+{
+    /**
+     * A single change, reverted when the layer it was made in is rolled back
+     */
+    interface Undo
+    {
+        void undo();
+    }
+
+    /**
+     * @return Returns <tt>true</tt> if a layer is open to record changes in
+     */
+    boolean isRecording();
+
+    /**
+     * Records a change that has just been made, if a layer is open
+     */
+    void record(Undo undo);
+
+    /**
+     * Records the whole contents of a collection that is about to change in a way that is not
+     * worth recording entry by entry, such as being cleared.  Only the first snapshot of a
+     * collection in each layer is kept.
+     */
+    void snapshot(Object resource);
+}
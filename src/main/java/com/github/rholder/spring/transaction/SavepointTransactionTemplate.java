@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadState;
+
+/**
+ * A <tt>TransactionTemplate</tt> that keeps transaction resources in step with savepoints.
+ * <p>
+ * When the template runs with <tt>PROPAGATION_NESTED</tt> inside an existing transaction it
+ * opens a {@link TransactionBindingSupport#beginResourceLayer() resource layer} around the
+ * callback.  If the nested call rolls back to its savepoint, whether by throwing or by marking
+ * its status rollback-only, the layer is rolled back too and the resources bound through
+ * {@link TransactionBindingSupport} and the {@link TransactionalResourceHelper} collections go
+ * back to how they were at the savepoint.  Otherwise the layer is released and its changes are
+ * kept.  All other propagation behaviours run exactly as they would in a plain template.
+ *
+ * @author Ray Holder
+ */
+public class SavepointTransactionTemplate extends TransactionTemplate
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct a new template for bean usage, the transaction manager must be set before use
+     */
+    public SavepointTransactionTemplate()
+    {
+        super();
+    }
+
+    /**
+     * @param transactionManager    the transaction management strategy to be used
+     */
+    public SavepointTransactionTemplate(PlatformTransactionManager transactionManager)
+    {
+        super(transactionManager);
+    }
+
+    /**
+     * @param transactionManager    the transaction management strategy to be used
+     * @param transactionDefinition the transaction definition to copy the default settings from
+     */
+    public SavepointTransactionTemplate(PlatformTransactionManager transactionManager, TransactionDefinition transactionDefinition)
+    {
+        super(transactionManager, transactionDefinition);
+    }
+
+    @Override
+    public <T> T execute(final TransactionCallback<T> action) throws TransactionException
+    {
+        if (getPropagationBehavior() != PROPAGATION_NESTED ||
+                TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            return super.execute(action);
+        }
+
+        final boolean[] rollbackOnly = new boolean[1];
+        TransactionBindingSupport.beginResourceLayer();
+        boolean released = false;
+        try
+        {
+            T result = super.execute(new TransactionCallback<T>()
+            {
+                public T doInTransaction(TransactionStatus status)
+                {
+                    T result = action.doInTransaction(status);
+                    // a nested status that is rollback-only is rolled back to its savepoint on commit
+                    rollbackOnly[0] = status.isRollbackOnly();
+                    return result;
+                }
+            });
+            if (!rollbackOnly[0])
+            {
+                TransactionBindingSupport.releaseResourceLayer();
+                released = true;
+            }
+            return result;
+        }
+        finally
+        {
+            if (!released)
+            {
+                TransactionBindingSupport.rollbackResourceLayer();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * The cache shared between transactions behind a {@link TransactionalCache}.
+ * Implementations must be thread-safe.
+ *
+ * @param <K>   the key type
+ * @param <V>   the value type
+ *
+ * @see LruSharedCache
+ *
+ * @author Ray Holder
+ */
+public interface SharedCache<K, V>
+{
+    /**
+     * @param key   the key
+     * @return Returns the cached value, or <tt>null</tt> if not present
+     */
+    V get(K key);
+
+    /**
+     * @param key   the key
+     * @param value the value to cache, never <tt>null</tt>
+     */
+    void put(K key, V value);
+
+    /**
+     * Caches a value only if the key is not already present
+     *
+     * @param key   the key
+     * @param value the value to cache, never <tt>null</tt>
+     */
+    void putIfAbsent(K key, V value);
+
+    /**
+     * @param key   the key to invalidate
+     */
+    void remove(K key);
+
+    /**
+     * Invalidates every key
+     */
+    void clear();
+
+    /**
+     * @return Returns the number of cached values
+     */
+    int size();
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+
+/**
+ * An append-only list that holds its elements in serialized form, keeping up to a fixed
+ * number of bytes on the heap and spilling the rest to a memory-mapped temporary file.
+ * It is meant for transactions that collect more ids or records than fit in memory, to be
+ * read back in order by a <tt>beforeCommit</tt> or <tt>afterCommit</tt> listener.
+ * <p>
+ * Elements are written by a {@link Codec} as they are added and read back by iterating.
+ * There is no random access.  Elements added while iterating are not seen by that iterator.
+ * <p>
+ * Each element is stored as its length followed by its bytes.  Once an element has been
+ * spilled, all later elements are spilled too so that iteration order is preserved.  The
+ * file is mapped in segments as it grows and is deleted by {@link #close()}, which a list
+ * obtained from {@link TransactionalResourceHelper#getSpillableList(Object, Codec, int)} has
+ * called for it after the transaction completes.  Listeners that consume the list on another
+ * thread, such as {@link AsyncTransactionListener}s, must copy what they need first.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @param <E>   the element type
+ *
+ * @author Ray Holder
+ */
+public class SpillableList<E> implements Iterable<E>
+{
+    /**
+     * Writes and reads the serialized form of each element
+     *
+     * @param <E>   the element type
+     */
+    public interface Codec<E>
+    {
+        /**
+         * @param element   the element to write, as added to the list
+         * @param out       the destination for the element's bytes
+         */
+        void write(E element, DataOutput out) throws IOException;
+
+        /**
+         * @param in    the bytes written for one element
+         * @return Returns the element
+         */
+        E read(DataInput in) throws IOException;
+    }
+
+    /** writes <tt>Long</tt> elements as 8 bytes each */
+    public static final Codec<Long> LONG_CODEC = new Codec<Long>()
+    {
+        public void write(Long element, DataOutput out) throws IOException
+        {
+            out.writeLong(element.longValue());
+        }
+
+        public Long read(DataInput in) throws IOException
+        {
+            return Long.valueOf(in.readLong());
+        }
+    };
+
+    /** writes <tt>String</tt> elements as modified UTF-8, which limits them to 65535 bytes each */
+    public static final Codec<String> STRING_CODEC = new Codec<String>()
+    {
+        public void write(String element, DataOutput out) throws IOException
+        {
+            out.writeUTF(element);
+        }
+
+        public String read(DataInput in) throws IOException
+        {
+            return in.readUTF();
+        }
+    };
+
+    private static final Codec<Serializable> SERIALIZABLE_CODEC = new Codec<Serializable>()
+    {
+        public void write(Serializable element, DataOutput out) throws IOException
+        {
+            ObjectOutputStream oos = new ObjectOutputStream((DataOutputStream) out);
+            oos.writeObject(element);
+            oos.flush();
+        }
+
+        public Serializable read(DataInput in) throws IOException
+        {
+            ObjectInputStream ois = new ObjectInputStream((DataInputStream) in);
+            try
+            {
+                return (Serializable) ois.readObject();
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException("Spilled element class not found: " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * @return Returns a codec that writes any <tt>Serializable</tt> element with Java
+     *      serialization, which is convenient but bulky
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> Codec<T> serializableCodec()
+    {
+        return (Codec<T>) (Codec<?>) SERIALIZABLE_CODEC;
+    }
+
+    /** the size of each mapped region of the spill file, unless a larger element needs more */
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final int LENGTH_BYTES = 4;
+
+    private static Log logger = LogFactory.getLog(SpillableList.class);
+
+    private final Codec<E> codec;
+    private final int maxHeapBytes;
+    private final File directory;
+    private final int segmentSize;
+    private final RecordOutput recordOutput = new RecordOutput();
+    private final DataOutputStream dataOutput = new DataOutputStream(recordOutput);
+
+    private byte[] heap;
+    private int heapLength;
+    private int heapCount;
+    private int size;
+    private File file;
+    private RandomAccessFile raf;
+    /** the mapped regions of the spill file, each filled up to its position */
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long mappedLength;
+    private boolean closed;
+
+    /**
+     * Creates a list that spills to the default temporary directory
+     *
+     * @param codec         writes and reads the elements
+     * @param maxHeapBytes  the most serialized bytes to keep on the heap before spilling
+     */
+    public SpillableList(Codec<E> codec, int maxHeapBytes)
+    {
+        this(codec, maxHeapBytes, null, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param codec         writes and reads the elements
+     * @param maxHeapBytes  the most serialized bytes to keep on the heap before spilling
+     * @param directory     where to create the spill file, or <tt>null</tt> for the default temporary directory
+     * @param segmentSize   the size of each mapped region of the spill file
+     */
+    public SpillableList(Codec<E> codec, int maxHeapBytes, File directory, int segmentSize)
+    {
+        if (maxHeapBytes < 0 || segmentSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid sizes: maxHeapBytes=" + maxHeapBytes + ", segmentSize=" + segmentSize);
+        }
+        this.codec = codec;
+        this.maxHeapBytes = maxHeapBytes;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.heap = new byte[Math.min(maxHeapBytes, 1024)];
+    }
+
+    /**
+     * @param element   the element to append
+     */
+    public void add(E element)
+    {
+        checkNotClosed();
+        recordOutput.reset();
+        try
+        {
+            codec.write(element, dataOutput);
+            dataOutput.flush();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to write element: " + element, e);
+        }
+        int length = recordOutput.size();
+        if (segments.isEmpty() && heapLength + LENGTH_BYTES + length <= maxHeapBytes)
+        {
+            appendToHeap(recordOutput.buffer(), length);
+            heapCount++;
+        }
+        else
+        {
+            appendToFile(recordOutput.buffer(), length);
+        }
+        size++;
+    }
+
+    private void appendToHeap(byte[] record, int length)
+    {
+        int required = heapLength + LENGTH_BYTES + length;
+        if (required > heap.length)
+        {
+            heap = Arrays.copyOf(heap, (int) Math.min(maxHeapBytes, Math.max(required, 2L * heap.length)));
+        }
+        ByteBuffer.wrap(heap, heapLength, LENGTH_BYTES).putInt(length);
+        System.arraycopy(record, 0, heap, heapLength + LENGTH_BYTES, length);
+        heapLength = required;
+    }
+
+    private void appendToFile(byte[] record, int length)
+    {
+        MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.remaining() < LENGTH_BYTES + length)
+        {
+            segment = mapSegment(Math.max(segmentSize, LENGTH_BYTES + length));
+        }
+        segment.putInt(length);
+        segment.put(record, 0, length);
+    }
+
+    private MappedByteBuffer mapSegment(int length)
+    {
+        try
+        {
+            if (raf == null)
+            {
+                file = File.createTempFile("txn-spill-", ".dat", directory);
+                raf = new RandomAccessFile(file, "rw");
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Spilling transactional list to disk: \n" +
+                            "   file: " + file + "\n" +
+                            "   heap bytes: " + heapLength + "\n" +
+                            "   elements: " + size);
+                }
+            }
+            MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, mappedLength, length);
+            mappedLength += length;
+            segments.add(segment);
+            return segment;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to extend spill file: " + file, e);
+        }
+    }
+
+    /**
+     * @return Returns the number of elements added
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return Returns <tt>true</tt> if any elements have been spilled to disk
+     */
+    public boolean isSpilled()
+    {
+        return !segments.isEmpty();
+    }
+
+    /**
+     * @return Returns the number of serialized bytes held on the heap
+     */
+    public int getHeapBytes()
+    {
+        return heapLength;
+    }
+
+    /**
+     * @return Returns the number of serialized bytes written to the spill file
+     */
+    public long getSpilledBytes()
+    {
+        long spilled = 0L;
+        for (MappedByteBuffer segment : segments)
+        {
+            spilled += segment.position();
+        }
+        return spilled;
+    }
+
+    /**
+     * @return Returns an iterator over the elements added so far, in the order added
+     */
+    public Iterator<E> iterator()
+    {
+        checkNotClosed();
+        return new RecordIterator(size);
+    }
+
+    /**
+     * Releases the heap buffer and deletes the spill file, if there is one.  The list cannot be
+     * used afterwards.
+     */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        heap = null;
+        segments.clear();
+        if (raf != null)
+        {
+            try
+            {
+                raf.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close spill file: " + file, e);
+            }
+            // the mapping itself is only released when the buffers are collected
+            if (!file.delete())
+            {
+                logger.warn("Failed to delete spill file, it will be deleted on exit: " + file);
+                file.deleteOnExit();
+            }
+            raf = null;
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * @return Returns the spill file, or <tt>null</tt> if nothing has been spilled
+     */
+    File getSpillFile()
+    {
+        return file;
+    }
+
+    private void checkNotClosed()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Spillable list used after close: " + file);
+        }
+    }
+
+    /**
+     * @return Returns the current end of the list, for undoing additions made under a savepoint
+     */
+    Mark copy()
+    {
+        MappedByteBuffer last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        return new Mark(size, heapCount, heapLength, segments.size(), last == null ? 0 : last.position());
+    }
+
+    /**
+     * Drops the elements added since a mark was taken.  The spill file keeps its length.
+     */
+    void restore(Mark mark)
+    {
+        size = mark.size;
+        heapCount = mark.heapCount;
+        heapLength = mark.heapLength;
+        while (segments.size() > mark.segmentCount)
+        {
+            segments.remove(segments.size() - 1);
+        }
+        if (!segments.isEmpty())
+        {
+            segments.get(segments.size() - 1).position(mark.segmentPosition);
+        }
+        // later segments may be mapped again over the same region of the file
+        mappedLength = 0L;
+        for (MappedByteBuffer segment : segments)
+        {
+            mappedLength += segment.capacity();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SpillableList[size=" + size + ", heapBytes=" + heapLength + ", spilledBytes=" + getSpilledBytes() + "]";
+    }
+
+    /**
+     * The end of a list at some point in time
+     */
+    static class Mark
+    {
+        private final int size;
+        private final int heapCount;
+        private final int heapLength;
+        private final int segmentCount;
+        private final int segmentPosition;
+
+        private Mark(int size, int heapCount, int heapLength, int segmentCount, int segmentPosition)
+        {
+            this.size = size;
+            this.heapCount = heapCount;
+            this.heapLength = heapLength;
+            this.segmentCount = segmentCount;
+            this.segmentPosition = segmentPosition;
+        }
+    }
+
+    /**
+     * Deletes a transaction's spill file after the binding's own synchronization has called
+     * the <tt>afterCommit</tt> and <tt>afterRollback</tt> listeners
+     */
+    static class Closer extends TransactionSynchronizationAdapter
+    {
+        private final SpillableList<?> list;
+
+        Closer(SpillableList<?> list)
+        {
+            this.list = list;
+        }
+
+        @Override
+        public int getOrder()
+        {
+            return Ordered.LOWEST_PRECEDENCE;
+        }
+
+        @Override
+        public void afterCompletion(int status)
+        {
+            list.close();
+        }
+    }
+
+    /**
+     * Reads the records back, from the heap and then from each segment in turn
+     */
+    private class RecordIterator implements Iterator<E>
+    {
+        private final RecordInput recordInput = new RecordInput();
+        private final DataInputStream dataInput = new DataInputStream(recordInput);
+        private final int end;
+        private int index;
+        private int segmentIndex = -1;
+        private ByteBuffer current;
+
+        private RecordIterator(int end)
+        {
+            this.end = end;
+            this.current = ByteBuffer.wrap(heap, 0, heapLength);
+        }
+
+        public boolean hasNext()
+        {
+            return index < end;
+        }
+
+        public E next()
+        {
+            if (index >= end)
+            {
+                throw new NoSuchElementException();
+            }
+            checkNotClosed();
+            if ((index == heapCount && segmentIndex < 0) || (current.remaining() == 0 && segmentIndex >= 0))
+            {
+                nextSegment();
+            }
+            int length = current.getInt();
+            recordInput.reset(current, length);
+            E element;
+            try
+            {
+                element = codec.read(dataInput);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Failed to read element " + index + " of " + SpillableList.this, e);
+            }
+            recordInput.skipRemaining();
+            index++;
+            return element;
+        }
+
+        private void nextSegment()
+        {
+            do
+            {
+                MappedByteBuffer segment = segments.get(++segmentIndex);
+                current = segment.duplicate();
+                current.flip();
+            }
+            while (current.remaining() == 0);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("Spillable lists are append-only");
+        }
+    }
+
+    /**
+     * Collects one record's bytes, exposing the buffer so that it is not copied
+     */
+    private static class RecordOutput extends ByteArrayOutputStream
+    {
+        private RecordOutput()
+        {
+            super(64);
+        }
+
+        private byte[] buffer()
+        {
+            return buf;
+        }
+    }
+
+    /**
+     * Reads one record from a buffer, stopping at the end of the record
+     */
+    private static class RecordInput extends InputStream
+    {
+        private ByteBuffer buffer;
+        private int remaining;
+
+        private void reset(ByteBuffer buffer, int length)
+        {
+            this.buffer = buffer;
+            this.remaining = length;
+        }
+
+        private void skipRemaining()
+        {
+            buffer.position(buffer.position() + remaining);
+            remaining = 0;
+        }
+
+        @Override
+        public int read()
+        {
+            if (remaining == 0)
+            {
+                return -1;
+            }
+            remaining--;
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (remaining == 0)
+            {
+                return -1;
+            }
+            int count = Math.min(len, remaining);
+            buffer.get(b, off, count);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return remaining;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Receives timings and counts from the transaction binding support.
+ * <p>
+ * Arguments are primitives, shared constants or objects the caller already holds, so nothing
+ * is allocated on behalf of an implementation.  Calls are made on the thread running the
+ * transaction, so implementations must be thread-safe and cheap.  When no metrics are configured none of
+ * these calls, nor the timing behind them, are made.
+ *
+ * @see TransactionBindingSupport#setTransactionBindingMetrics(TransactionBindingMetrics)
+ * @see TransactionBindingMetricsAdapter
+ * @see JmxTransactionBindingMetrics
+ *
+ * @author Ray Holder
+ */
+public interface TransactionBindingMetrics
+{
+    /**
+     * Called when a transaction is first bound
+     *
+     * @param txnId the transaction ID
+     */
+    void synchronizationRegistered(long txnId);
+
+    /**
+     * Called when a resource is bound to a transaction
+     *
+     * @param txnId the transaction ID
+     * @param key   the resource key
+     */
+    void resourceBound(long txnId, Object key);
+
+    /**
+     * Called when a resource is unbound from a transaction
+     *
+     * @param txnId the transaction ID
+     * @param key   the resource key
+     */
+    void resourceUnbound(long txnId, Object key);
+
+    /**
+     * Called when a transaction is suspended, e.g. for a <tt>PROPAGATION_REQUIRES_NEW</tt> call
+     *
+     * @param txnId the transaction ID
+     */
+    void synchronizationSuspended(long txnId);
+
+    /**
+     * Called when a suspended transaction is resumed
+     *
+     * @param txnId the transaction ID
+     */
+    void synchronizationResumed(long txnId);
+
+    /**
+     * Called just before each synchronous listener callback, which is always followed on the same
+     * thread by {@link #listenerInvoked(long, TransactionPhase, Class, long)} once the callback
+     * returns.  Implementations that time the callback themselves, such as profiling events,
+     * start the clock here.
+     *
+     * @param txnId         the transaction ID
+     * @param phase         the callback about to be made
+     * @param listenerClass the class of the listener
+     */
+    void listenerInvoking(long txnId, TransactionPhase phase, Class<?> listenerClass);
+
+    /**
+     * Called after each synchronous listener callback, whether or not it succeeded
+     *
+     * @param txnId         the transaction ID
+     * @param phase         the callback that was made
+     * @param listenerClass the class of the listener
+     * @param elapsedNanos  the time taken by the callback
+     */
+    void listenerInvoked(long txnId, TransactionPhase phase, Class<?> listenerClass, long elapsedNanos);
+
+    /**
+     * Called as a phase of listener callbacks starts, which is always followed on the same thread
+     * by the matching {@link #beforeCommitCompleted(long, int, long)},
+     * {@link #beforeCompletionCompleted(long, int, long)} or
+     * {@link #transactionCompleted(long, int, long, int, int, long)} once the phase is over.  The
+     * listener callbacks of the phase are reported between the two.
+     *
+     * @param txnId the transaction ID
+     * @param phase the phase, where <tt>AFTER_COMMIT</tt> or <tt>AFTER_ROLLBACK</tt> is the
+     *      completion of the transaction
+     */
+    void phaseStarting(long txnId, TransactionPhase phase);
+
+    /**
+     * Called once all listeners have completed <tt>beforeCommit</tt>, or one of them has failed
+     *
+     * @param txnId         the transaction ID
+     * @param listenerCount the number of listeners called, including those bound during the phase
+     * @param elapsedNanos  the time taken by the phase
+     */
+    void beforeCommitCompleted(long txnId, int listenerCount, long elapsedNanos);
+
+    /**
+     * Called once all listeners have completed <tt>beforeCompletion</tt>, or one of them has failed
+     *
+     * @param txnId         the transaction ID
+     * @param listenerCount the number of listeners called
+     * @param elapsedNanos  the time taken by the phase
+     */
+    void beforeCompletionCompleted(long txnId, int listenerCount, long elapsedNanos);
+
+    /**
+     * Called once all listeners have completed <tt>afterCommit</tt> or <tt>afterRollback</tt>
+     *
+     * @param txnId         the transaction ID
+     * @param status        the <tt>TransactionSynchronization</tt> completion status
+     * @param durationMs    the time since the transaction was bound
+     * @param listenerCount the number of listeners bound to the transaction
+     * @param resourceCount the number of resources bound to the transaction
+     * @param elapsedNanos  the time taken by the phase
+     */
+    void transactionCompleted(long txnId, int status, long durationMs, int listenerCount, int resourceCount, long elapsedNanos);
+}
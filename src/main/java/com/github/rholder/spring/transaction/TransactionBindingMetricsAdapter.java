@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * NO-OP metrics.
+ *
+ * @author Ray Holder
+ */
+public abstract class TransactionBindingMetricsAdapter implements TransactionBindingMetrics
+{
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationRegistered(long txnId)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void resourceBound(long txnId, Object key)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void resourceUnbound(long txnId, Object key)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationSuspended(long txnId)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronizationResumed(long txnId)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void listenerInvoking(long txnId, TransactionPhase phase, Class<?> listenerClass)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void listenerInvoked(long txnId, TransactionPhase phase, Class<?> listenerClass, long elapsedNanos)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void phaseStarting(long txnId, TransactionPhase phase)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeCommitCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeCompletionCompleted(long txnId, int listenerCount, long elapsedNanos)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void transactionCompleted(long txnId, int status, long durationMs, int listenerCount, int resourceCount, long elapsedNanos)
+    {
+    }
+}
@@ -19,16 +19,30 @@
 package com.github.rholder.spring.transaction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.core.OrderComparator;
+import org.springframework.core.Ordered;
 import org.springframework.orm.hibernate3.SessionFactoryUtils;
 import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
@@ -55,6 +69,179 @@ public abstract class TransactionBindingSupport
     
     private static Log logger = LogFactory.getLog(TransactionBindingSupport.class);
     
+    /** source of the identifiers given to each new transaction */
+    private static volatile TransactionIdGenerator transactionIdGenerator = new DefaultTransactionIdGenerator();
+    
+    /**
+     * Replaces the generator used to identify new transactions.  Transactions that are already
+     * bound keep their current identifier.
+     * <p>
+     * A {@link DefaultTransactionIdGenerator} replacing another carries on past the sequences
+     * the other has handed out.  Any other generator must make sure itself that its sequences
+     * do not repeat those already handed out, if the primitive form of the IDs is relied on.
+     * 
+     * @param generator the generator to use from now on
+     */
+    public static synchronized void setTransactionIdGenerator(TransactionIdGenerator generator)
+    {
+        if (generator == null)
+        {
+            throw new IllegalArgumentException("TransactionIdGenerator may not be null");
+        }
+        TransactionIdGenerator previous = transactionIdGenerator;
+        if (generator != previous &&
+                generator instanceof DefaultTransactionIdGenerator &&
+                previous instanceof DefaultTransactionIdGenerator)
+        {
+            ((DefaultTransactionIdGenerator) generator).skipTo(((DefaultTransactionIdGenerator) previous).getReservedLimit());
+        }
+        transactionIdGenerator = generator;
+    }
+    
+    /** whether completed synchronizations are kept for reuse by the next transaction on the thread */
+    private static volatile boolean recycleSynchronizations = false;
+    
+    /** a completed synchronization waiting to be reused by the next transaction on this thread */
+    private static final ThreadLocal<TransactionSynchronizationImpl> recycledSynchronization =
+        new ThreadLocal<TransactionSynchronizationImpl>();
+    
+    /** receives timings and counts, if set */
+    private static volatile TransactionBindingMetrics transactionBindingMetrics;
+    
+    /**
+     * Sets the metrics that are told about each transaction and listener callback.  Transactions
+     * already bound keep reporting to the metrics that were set when they were bound.
+     * 
+     * @param metrics the metrics to report to, or <tt>null</tt> to disable metrics
+     */
+    public static void setTransactionBindingMetrics(TransactionBindingMetrics metrics)
+    {
+        transactionBindingMetrics = metrics;
+    }
+    
+    /** the default time allowed for each listener callback in milliseconds, or zero for none */
+    private static volatile long listenerTimeBudgetMs = 0L;
+    
+    /** skips the post-completion callbacks of misbehaving listener classes, if set */
+    private static volatile ListenerCircuitBreaker listenerCircuitBreaker;
+    
+    /**
+     * Sets the time each listener callback is expected to complete within.  Callbacks that
+     * take longer are logged along with the transaction ID.  Listeners can set their own
+     * budget by implementing {@link TimeBudgetedTransactionListener}.
+     * 
+     * @param budgetMs the budget in milliseconds, or zero to disable the check
+     */
+    public static void setListenerTimeBudget(long budgetMs)
+    {
+        listenerTimeBudgetMs = budgetMs;
+    }
+    
+    /**
+     * Sets the circuit breaker consulted before each <tt>afterCommit</tt> and <tt>afterRollback</tt>
+     * callback.  Callbacks that fail or exceed their time budget count against the listener class.
+     * 
+     * @param circuitBreaker the circuit breaker, or <tt>null</tt> to always make the callbacks
+     */
+    public static void setListenerCircuitBreaker(ListenerCircuitBreaker circuitBreaker)
+    {
+        listenerCircuitBreaker = circuitBreaker;
+    }
+    
+    /** runs the post-completion callbacks of asynchronous listeners, if set */
+    private static volatile Executor asyncListenerExecutor;
+    
+    /** the context captured from another thread's transaction that a worker task is running in */
+    private static final ThreadLocal<CapturedContext> workerContext = new ThreadLocal<CapturedContext>();
+    
+    /**
+     * Sets the executor that runs the <tt>afterCommit</tt> and <tt>afterRollback</tt> callbacks of
+     * {@link AsyncTransactionListener}s.  With no executor set, these are called inline like
+     * those of any other listener.
+     * 
+     * @param executor the executor to use, or <tt>null</tt> to call asynchronous listeners inline
+     * 
+     * @see AsyncTransactionListenerExecutor
+     */
+    public static void setAsyncListenerExecutor(Executor executor)
+    {
+        asyncListenerExecutor = executor;
+    }
+    
+    /** runs the <tt>beforeCommit</tt> callbacks of parallel-safe listeners, if set */
+    private static volatile ExecutorService parallelListenerExecutor;
+    
+    /** holds resources without a full synchronization until one is needed, if enabled */
+    private static volatile boolean lazyRegistration = false;
+    
+    /** tracks the open transactions across all threads, if set */
+    private static volatile LiveTransactionRegistry liveTransactionRegistry;
+    
+    /**
+     * Sets the executor that runs the <tt>beforeCommit</tt> callbacks of adjacent
+     * {@link ParallelSafeTransactionListener}s concurrently.  With no executor set, these are
+     * called one at a time like those of any other listener.  The committing thread waits for
+     * the executor, so it must not be a bounded pool that committing threads also run on.
+     * 
+     * @param executor the executor to use, a <tt>ForkJoinPool</tt> for example, or <tt>null</tt>
+     *      to call parallel-safe listeners one at a time
+     */
+    public static void setParallelListenerExecutor(ExecutorService executor)
+    {
+        parallelListenerExecutor = executor;
+    }
+    
+    /**
+     * Sets the registry that each transaction is added to when it is bound and removed from
+     * when it completes.  Transactions already bound stay in the registry that was set when
+     * they were bound.
+     * 
+     * @param registry the registry to use, or <tt>null</tt> to stop tracking transactions
+     */
+    public static void setLiveTransactionRegistry(LiveTransactionRegistry registry)
+    {
+        liveTransactionRegistry = registry;
+    }
+    
+    /**
+     * Enables or disables lazy registration.  When enabled, a transaction that only gets and
+     * binds resources keeps them in a minimal holder, registered with Spring to clean up at
+     * completion and to handle suspension but with none of the listener bookkeeping, and
+     * without generating a transaction ID.  The full synchronization is registered, taking
+     * over the resources already bound and the start time, as soon as anything else is used: a
+     * listener, the transaction ID, a resource layer, a captured or current context.
+     * <p>
+     * Lazy registration is skipped while {@link #setTransactionBindingMetrics(TransactionBindingMetrics) metrics}
+     * or a {@link #setLiveTransactionRegistry(LiveTransactionRegistry) live transaction registry}
+     * are set, as both expect to see every transaction.  Disabled by default.
+     * 
+     * @param lazy <tt>true</tt> to defer the full synchronization until it is needed
+     */
+    public static void setLazyRegistration(boolean lazy)
+    {
+        lazyRegistration = lazy;
+    }
+    
+    /**
+     * Enables or disables recycling of the per-transaction bookkeeping.  When enabled, the
+     * synchronization and its listener and resource containers are reset after completion and
+     * kept for the next transaction started on the same thread, rather than being left for
+     * the garbage collector.
+     * <p>
+     * Only the internal containers are reused; resources bound to the transaction are
+     * dropped as usual.  Disabled by default.
+     * 
+     * @param recycle <tt>true</tt> to reuse synchronizations on each thread
+     */
+    public static void setRecycleSynchronizations(boolean recycle)
+    {
+        recycleSynchronizations = recycle;
+        if (!recycle)
+        {
+            recycledSynchronization.remove();
+        }
+    }
+    
     /**
      * @return Returns the system time when the transaction started, or -1 if there is no current transaction.
      */
@@ -63,14 +250,13 @@ public abstract class TransactionBindingSupport
         /*
          * This method can be called outside of a transaction, so we can go direct to the synchronizations.
          */
-        TransactionSynchronizationImpl txnSynch =
-            (TransactionSynchronizationImpl) TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
+        TransactionSynchronizationImpl txnSynch = getBoundSynchronization();
         if (txnSynch == null)
         {
             if (TransactionSynchronizationManager.isSynchronizationActive())
             {
-                // need to lazily register synchronizations
-                return registerSynchronizations().getTransactionStartTime();
+                // need to lazily register synchronizations, or only the resource holder if registration is lazy
+                return getResourceBinding(true).getTransactionStartTime();
             }
             else
             {
@@ -96,8 +282,7 @@ public abstract class TransactionBindingSupport
          * This method is heavily used, so the simple Map lookup on the ThreadLocal is the fastest.
          */
         
-        TransactionSynchronizationImpl txnSynch =
-                (TransactionSynchronizationImpl) TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
+        TransactionSynchronizationImpl txnSynch = getBoundSynchronization();
         if (txnSynch == null)
         {
             if (TransactionSynchronizationManager.isSynchronizationActive())
@@ -107,7 +292,8 @@ public abstract class TransactionBindingSupport
             }
             else
             {
-                return null;   // not in a transaction
+                CapturedContext context = workerContext.get();
+                return context == null ? null : context.getTransactionId();   // not in a transaction
             }
         }
         else
@@ -116,6 +302,35 @@ public abstract class TransactionBindingSupport
         }
     }
     
+    /**
+     * Get the primitive form of the identifier associated with each transaction of each thread.
+     * This is the sequence part of {@link #getTransactionId()} and is unique within the node,
+     * making it a cheap key for maps.
+     * 
+     * @return Returns the transaction ID, or -1 if no transaction is present
+     */
+    public static long getTransactionIdAsLong()
+    {
+        TransactionSynchronizationImpl txnSynch = getBoundSynchronization();
+        if (txnSynch == null)
+        {
+            if (TransactionSynchronizationManager.isSynchronizationActive())
+            {
+                // need to lazily register synchronizations
+                return registerSynchronizations().getTransactionIdAsLong();
+            }
+            else
+            {
+                CapturedContext context = workerContext.get();
+                return context == null ? -1 : context.getTransactionIdAsLong();   // not in a transaction
+            }
+        }
+        else
+        {
+            return txnSynch.getTransactionIdAsLong();
+        }
+    }
+    
     /**
      * 
      * @author Derek Hulley
@@ -190,9 +405,9 @@ public abstract class TransactionBindingSupport
     public static <R extends Object> R getResource(Object key)
     {
         // get the synchronization
-        TransactionSynchronizationImpl txnSynch = getSynchronization();
+        ResourceBinding txnSynch = getResourceBinding(false);
         // get the resource
-        Object resource = txnSynch.resources.get(key);
+        Object resource = txnSynch.getResource(key);
         // done
         if (logger.isDebugEnabled())
         {
@@ -214,9 +429,9 @@ public abstract class TransactionBindingSupport
     public static void bindResource(Object key, Object resource)
     {
         // get the synchronization
-        TransactionSynchronizationImpl txnSynch = getSynchronization();
+        ResourceBinding txnSynch = getResourceBinding(true);
         // bind the resource
-        txnSynch.resources.put(key, resource);
+        txnSynch.bindResource(key, resource);
         // done
         if (logger.isDebugEnabled())
         {
@@ -236,9 +451,9 @@ public abstract class TransactionBindingSupport
     public static void unbindResource(Object key)
     {
         // get the synchronization
-        TransactionSynchronizationImpl txnSynch = getSynchronization();
+        ResourceBinding txnSynch = getResourceBinding(true);
         // remove the resource
-        txnSynch.resources.remove(key);
+        txnSynch.unbindResource(key);
         // done
         if (logger.isDebugEnabled())
         {
@@ -247,6 +462,210 @@ public abstract class TransactionBindingSupport
         }
     }
     
+    /**
+     * Gets a resource bound against a typed key in the current transaction, which must be active.
+     * <p>
+     * All necessary synchronization instances will be registered automatically, if required.
+     * 
+     * @param key the typed resource key
+     * @return Returns the resource or null if not present
+     */
+    public static <T> T getResource(TransactionResourceKey<T> key)
+    {
+        // get the synchronization
+        ResourceBinding txnSynch = getResourceBinding(false);
+        // get the resource
+        T resource = txnSynch.getSlotResource(key);
+        // done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Fetched resource: \n" +
+                    "   key: " + key + "\n" +
+                    "   resource: " + resource);
+        }
+        return resource;
+    }
+    
+    /**
+     * Binds a resource against a typed key in the current transaction, which must be active.
+     * <p>
+     * All necessary synchronization instances will be registered automatically, if required.
+     * 
+     * @param key the typed resource key
+     * @param resource the resource to bind
+     */
+    public static <T> void bindResource(TransactionResourceKey<T> key, T resource)
+    {
+        // get the synchronization
+        ResourceBinding txnSynch = getResourceBinding(true);
+        // bind the resource
+        txnSynch.setSlotResource(key, resource);
+        // done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Bound resource: \n" +
+                    "   key: " + key + "\n" +
+                    "   resource: " + resource);
+        }
+    }
+    
+    /**
+     * Fetches a resource for one of the {@link TransactionalResourceHelper} collections.  While a
+     * resource layer is open, the collection is returned in a form that records each change it
+     * makes for the layer to undo.
+     * 
+     * @see #beginResourceLayer()
+     */
+    @SuppressWarnings("unchecked")
+    static <R extends Object> R getLayeredResource(Object key)
+    {
+        ResourceBinding binding = getResourceBinding(false);
+        if (!(binding instanceof TransactionSynchronizationImpl))
+        {
+            // a lazily registered transaction has no layers
+            return (R) binding.getResource(key);
+        }
+        TransactionSynchronizationImpl txnSynch = (TransactionSynchronizationImpl) binding;
+        if (txnSynch.isShared() && workerContext.get() != null)
+        {
+            // workers only read, so there is nothing for a layer to undo
+            return (R) txnSynch.getResource(key);
+        }
+        return (R) txnSynch.getLayeredResource(key);
+    }
+    
+    /**
+     * Binds a resource against a typed key unless one is bound already, as a single step.  Unlike
+     * {@link #bindResource(TransactionResourceKey, Object)}, the worker threads of a
+     * {@link #captureContext() captured context} may call this, so the resource must be thread-safe.
+     * A resource bound by a worker is not undone if a resource layer is rolled back.
+     * 
+     * @return Returns the resource now bound against the key, which is the given one unless
+     *      another was bound first
+     */
+    static <T> T bindResourceIfAbsent(TransactionResourceKey<T> key, T resource)
+    {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            CapturedContext context = workerContext.get();
+            if (context != null)
+            {
+                return context.getSynchronization().bindSlotResourceIfAbsent(key, resource, true);
+            }
+        }
+        ResourceBinding binding = getResourceBinding(true);
+        if (binding instanceof TransactionSynchronizationImpl)
+        {
+            return ((TransactionSynchronizationImpl) binding).bindSlotResourceIfAbsent(key, resource, false);
+        }
+        T existing = binding.getSlotResource(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+        binding.setSlotResource(key, resource);
+        return resource;
+    }
+    
+    /**
+     * Stops a transactional component from treating a change made on the worker thread of a
+     * {@link #captureContext() captured context} as one made outside of any transaction, which
+     * would apply it straight away even if the captured transaction rolls back.  Components
+     * call this when they find no transaction, before applying a change directly.
+     * 
+     * @param component the component being changed, for the message
+     * @throws IllegalStateException if the calling thread is running a task for a captured context
+     */
+    static void checkNotCapturedWorker(Object component)
+    {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() && workerContext.get() != null)
+        {
+            throw new IllegalStateException("Transactional components cannot be changed from a captured context: \n" +
+                    "   transaction: " + workerContext.get().getTransactionId() + "\n" +
+                    "   component: " + component);
+        }
+    }
+    
+    /**
+     * Gives the transactional components somewhere to record their own changes for a resource
+     * layer to undo.  Only the thread that owns the transaction records changes.
+     * 
+     * @return Returns the journal of the innermost resource layer, or <tt>null</tt> if no layer
+     *      is open or the calling thread does not own the transaction
+     */
+    static ResourceJournal getRecordingJournal()
+    {
+        TransactionSynchronizationImpl txnSynch = getBoundSynchronization();
+        return txnSynch == null ? null : txnSynch.getRecordingJournal();
+    }
+    
+    /**
+     * Opens a resource layer for a savepoint in the current transaction, which must be active.
+     * <p>
+     * Until the layer is {@link #releaseResourceLayer() released} or
+     * {@link #rollbackResourceLayer() rolled back}, every resource that is bound or unbound is
+     * recorded, as is each entry changed in a {@link TransactionalResourceHelper} collection
+     * fetched through the helper while a layer is open.  Rolling back the layer undoes just those
+     * changes, so the cost follows what was modified rather than how much is bound; fetching a
+     * collection only to read it costs nothing extra.  Listeners bound in the layer are dropped,
+     * and the transactional components, such as {@link TransactionalCounter},
+     * {@link TransactionalCache} and {@link JdbcWriteBuffer}, undo what they recorded in it.
+     * Changes made inside other resources, and to a collection reference obtained before any
+     * layer was opened, are not undone.
+     * <p>
+     * Layers nest.  {@link SavepointTransactionTemplate} opens one around each
+     * <tt>PROPAGATION_NESTED</tt> call.
+     * 
+     * @return Returns the number of layers now open
+     */
+    public static int beginResourceLayer()
+    {
+        int depth = getSynchronization().beginLayer();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Began resource layer: \n" +
+                    "   depth: " + depth);
+        }
+        return depth;
+    }
+    
+    /**
+     * Closes the innermost resource layer, keeping its changes.  They become part of the
+     * enclosing layer, if there is one.
+     * 
+     * @throws IllegalStateException if no layer is open
+     */
+    public static void releaseResourceLayer()
+    {
+        getSynchronization().releaseLayer();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Released resource layer");
+        }
+    }
+    
+    /**
+     * Closes the innermost resource layer, undoing the changes made since it was opened.
+     * 
+     * @throws IllegalStateException if no layer is open
+     */
+    public static void rollbackResourceLayer()
+    {
+        getSynchronization().rollbackLayer();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Rolled back resource layer");
+        }
+    }
+    
+    /**
+     * @return Returns the number of resource layers open in the current transaction
+     */
+    public static int getResourceLayerDepth()
+    {
+        return getSynchronization().getLayerDepth();
+    }
+    
     /**
      * Method that registers a <tt>TransactionListener</tt> against the
      * transaction.
@@ -263,10 +682,19 @@ public abstract class TransactionBindingSupport
     public static void bindListener(TransactionListener listener)
     {
         // get transaction-local synchronization
-        TransactionSynchronizationImpl synch = getSynchronization();
+        TransactionSynchronizationImpl synch = getReadableSynchronization();
         
-        // bind the service in
-        boolean bound = synch.addListener(listener);
+        // bind the service in, or queue it for the owning thread if this is a worker
+        boolean bound;
+        if (synch.isShared() && workerContext.get() != null)
+        {
+            synch.queueListener(listener);
+            bound = true;
+        }
+        else
+        {
+            bound = synch.addListener(listener);
+        }
         
         // done
         if (logger.isDebugEnabled())
@@ -313,160 +741,1764 @@ public abstract class TransactionBindingSupport
     }
     
     /**
-     * Binds the Alfresco-specific to the transaction resources
+     * As {@link #getSynchronization()}, but on a thread without a transaction of its own this
+     * falls back to the transaction of a {@link #captureContext() captured context} that the
+     * thread is running a task for.  Only use it for reads and for queueing listeners.
      * 
-     * @return Returns the current or new synchronization implementation
+     * @return Returns the synchronization of this thread's transaction or of the captured one
      */
-    private static TransactionSynchronizationImpl registerSynchronizations()
+    private static TransactionSynchronizationImpl getReadableSynchronization()
     {
-        /*
-         * No thread synchronization or locking required as the resources are all threadlocal
-         */
         if (!TransactionSynchronizationManager.isSynchronizationActive())
         {
-            Thread currentThread = Thread.currentThread();
-            throw new RuntimeException("Transaction must be active and synchronization is required: " + currentThread);
+            CapturedContext context = workerContext.get();
+            if (context != null)
+            {
+                return context.getSynchronization();
+            }
+        }
+        return registerSynchronizations();
+    }
+    
+    /**
+     * Gets what holds the current transaction's resources: the full synchronization, or with
+     * {@link #setLazyRegistration(boolean) lazy registration} a minimal holder if nothing has
+     * needed the full synchronization yet.
+     * 
+     * @param write <tt>true</tt> to bind or unbind, which a worker thread may not do
+     * @return Returns the resource holder for the current transaction
+     */
+    private static ResourceBinding getResourceBinding(boolean write)
+    {
+        if (!lazyRegistration || !TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            return write ? getSynchronization() : getReadableSynchronization();
         }
-        TransactionSynchronizationImpl txnSynch =
-            (TransactionSynchronizationImpl) TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
-        if (txnSynch != null)
+        ResourceBinding binding = (ResourceBinding) TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
+        if (binding != null)
         {
-            // synchronization already registered
-            return txnSynch;
+            return binding;
         }
-        // we need a unique ID for the transaction
-        String txnId = UUID.randomUUID().toString();
-        // register the synchronization
-        txnSynch = new TransactionSynchronizationImpl(txnId);
-        TransactionSynchronizationManager.registerSynchronization(txnSynch);
-        // register the resource that will ensure we don't duplication the synchronization
-        TransactionSynchronizationManager.bindResource(RESOURCE_KEY_TXN_SYNCH, txnSynch);
-        // done
+        if (transactionBindingMetrics != null || liveTransactionRegistry != null)
+        {
+            return registerSynchronizations();
+        }
+        ResourceHolderSynchronization holder = new ResourceHolderSynchronization();
+        TransactionSynchronizationManager.registerSynchronization(holder);
+        TransactionSynchronizationManager.bindResource(RESOURCE_KEY_TXN_SYNCH, holder);
         if (logger.isDebugEnabled())
         {
-            logger.debug("Bound txn synch: " + txnSynch);
+            logger.debug("Bound txn resource holder: " + holder);
         }
-        return txnSynch;
+        return holder;
     }
     
     /**
-     * Cleans out transaction resources if present
+     * @return Returns the full synchronization bound to the thread, or <tt>null</tt> if there is
+     *      none or only a lazily registered resource holder
      */
-    private static void clearSynchronization()
+    private static TransactionSynchronizationImpl getBoundSynchronization()
     {
-        if (TransactionSynchronizationManager.hasResource(RESOURCE_KEY_TXN_SYNCH))
-        {
-            Object txnSynch = TransactionSynchronizationManager.unbindResource(RESOURCE_KEY_TXN_SYNCH);
-            // done
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Unbound txn synch:" + txnSynch);
-            }
-        }
+        Object binding = TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
+        return binding instanceof TransactionSynchronizationImpl ? (TransactionSynchronizationImpl) binding : null;
     }
     
     /**
-     * Helper method to rebind the synchronization to the transaction
+     * Captures the current transaction, which must be active, so that tasks running on other
+     * threads can see it.
+     * <p>
+     * Tasks {@link CapturedContext#wrap(Runnable) wrapped} by the context can
+     * {@link #getResource(Object) read} the transaction's resources, including through the
+     * {@link TransactionalResourceHelper} getters, and {@link #bindListener(TransactionListener) bind}
+     * listeners, which are queued and joined to the transaction the next time it runs its
+     * callbacks.  They cannot bind or unbind resources, nor make changes through the
+     * transactional components, such as {@link TransactionalCounter#add(long)}, which would
+     * otherwise take effect straight away as if there were no transaction.
+     * <p>
+     * From the first capture until the transaction completes its resources are kept in a
+     * concurrent map, so that the owning thread can carry on binding while tasks read.  The
+     * resources themselves are shared as they are, so the tasks must only read them or use
+     * resources that are thread-safe.  Tasks must finish before the transaction completes.
+     * 
+     * @return Returns a handle on the current transaction for worker tasks
+     */
+    public static CapturedContext captureContext()
+    {
+        TransactionSynchronizationImpl txnSynch = getSynchronization();
+        txnSynch.share();
+        return new CapturedContext(txnSynch);
+    }
+    
+    /**
+     * A handle on a transaction captured by {@link TransactionBindingSupport#captureContext()}
+     * that carries it to tasks on other threads.  It is only valid until the transaction completes.
+     */
+    public static final class CapturedContext
+    {
+        private final TransactionSynchronizationImpl txnSynch;
+        private final int generation;
+        private final String txnId;
+        private final long txnIdAsLong;
+        
+        private CapturedContext(TransactionSynchronizationImpl txnSynch)
+        {
+            this.txnSynch = txnSynch;
+            this.generation = txnSynch.getGeneration();
+            this.txnId = txnSynch.getTransactionId();
+            this.txnIdAsLong = txnSynch.getTransactionIdAsLong();
+        }
+        
+        /**
+         * @return Returns the ID of the captured transaction
+         */
+        public String getTransactionId()
+        {
+            return txnId;
+        }
+        
+        /**
+         * @return Returns the primitive ID of the captured transaction
+         */
+        public long getTransactionIdAsLong()
+        {
+            return txnIdAsLong;
+        }
+        
+        /**
+         * @return Returns <tt>true</tt> until the captured transaction completes
+         */
+        public boolean isValid()
+        {
+            return txnSynch.getGeneration() == generation;
+        }
+        
+        private TransactionSynchronizationImpl getSynchronization()
+        {
+            if (!isValid())
+            {
+                throw new IllegalStateException("Captured transaction has already completed: " + txnId);
+            }
+            return txnSynch;
+        }
+        
+        /**
+         * @param task  the task to run in the captured transaction
+         * @return Returns a task that runs the given one with this context
+         */
+        public Runnable wrap(final Runnable task)
+        {
+            return new Runnable()
+            {
+                public void run()
+                {
+                    CapturedContext previous = enter();
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        exit(previous);
+                    }
+                }
+            };
+        }
+        
+        /**
+         * @param task  the task to run in the captured transaction
+         * @return Returns a task that runs the given one with this context
+         */
+        public <V> Callable<V> wrap(final Callable<V> task)
+        {
+            return new Callable<V>()
+            {
+                public V call() throws Exception
+                {
+                    CapturedContext previous = enter();
+                    try
+                    {
+                        return task.call();
+                    }
+                    finally
+                    {
+                        exit(previous);
+                    }
+                }
+            };
+        }
+        
+        private CapturedContext enter()
+        {
+            getSynchronization();
+            CapturedContext previous = workerContext.get();
+            workerContext.set(this);
+            return previous;
+        }
+        
+        private void exit(CapturedContext previous)
+        {
+            if (previous == null)
+            {
+                workerContext.remove();
+            }
+            else
+            {
+                workerContext.set(previous);
+            }
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "CapturedContext[" + txnId + (isValid() ? "" : ", completed") + "]";
+        }
+    }
+    
+    /**
+     * Resolves the current transaction, which must be active, once for a series of calls.
+     * <p>
+     * Each of the static methods looks the transaction up again through Spring's thread-bound
+     * resources.  Code that gets and binds resources in a tight loop can instead hold the handle
+     * returned here, which goes straight to the transaction.  The handle may only be used on
+     * the thread that obtained it and only until the transaction completes; after that every
+     * call fails rather than reaching whatever transaction the thread runs next.
+     * 
+     * @return Returns a handle on the current transaction
+     */
+    public static TransactionContext currentContext()
+    {
+        return new TransactionContext(getSynchronization());
+    }
+    
+    /**
+     * A handle on the current transaction, returned by {@link TransactionBindingSupport#currentContext()},
+     * with the resource and listener methods of {@link TransactionBindingSupport} minus the
+     * lookup of the transaction.  Unlike the static methods these do no debug logging.
+     */
+    public static final class TransactionContext
+    {
+        private final TransactionSynchronizationImpl txnSynch;
+        private final int generation;
+        private final long txnIdAsLong;
+        private final Thread owner;
+        
+        private TransactionContext(TransactionSynchronizationImpl txnSynch)
+        {
+            this.txnSynch = txnSynch;
+            this.generation = txnSynch.getGeneration();
+            this.txnIdAsLong = txnSynch.getTransactionIdAsLong();
+            this.owner = Thread.currentThread();
+        }
+        
+        /**
+         * @return Returns <tt>true</tt> until the transaction completes
+         */
+        public boolean isValid()
+        {
+            return txnSynch.getGeneration() == generation;
+        }
+        
+        private TransactionSynchronizationImpl getSynchronization()
+        {
+            if (txnSynch.getGeneration() != generation)
+            {
+                throw new IllegalStateException("Transaction context used after its transaction completed: " + this);
+            }
+            if (Thread.currentThread() != owner)
+            {
+                throw new IllegalStateException("Transaction context used on another thread: \n" +
+                        "   context: " + this + "\n" +
+                        "   thread: " + Thread.currentThread());
+            }
+            return txnSynch;
+        }
+        
+        /**
+         * @see TransactionBindingSupport#getTransactionId()
+         */
+        public String getTransactionId()
+        {
+            return getSynchronization().getTransactionId();
+        }
+        
+        /**
+         * @see TransactionBindingSupport#getTransactionIdAsLong()
+         */
+        public long getTransactionIdAsLong()
+        {
+            getSynchronization();
+            return txnIdAsLong;
+        }
+        
+        /**
+         * @see TransactionBindingSupport#getResource(Object)
+         */
+        @SuppressWarnings("unchecked")
+        public <R extends Object> R getResource(Object key)
+        {
+            return (R) getSynchronization().getResource(key);
+        }
+        
+        /**
+         * @see TransactionBindingSupport#getResource(TransactionResourceKey)
+         */
+        public <T> T getResource(TransactionResourceKey<T> key)
+        {
+            return getSynchronization().getSlotResource(key);
+        }
+        
+        /**
+         * @see TransactionBindingSupport#bindResource(Object, Object)
+         */
+        public void bindResource(Object key, Object resource)
+        {
+            getSynchronization().bindResource(key, resource);
+        }
+        
+        /**
+         * @see TransactionBindingSupport#bindResource(TransactionResourceKey, Object)
+         */
+        public <T> void bindResource(TransactionResourceKey<T> key, T resource)
+        {
+            getSynchronization().setSlotResource(key, resource);
+        }
+        
+        /**
+         * @see TransactionBindingSupport#unbindResource(Object)
+         */
+        public void unbindResource(Object key)
+        {
+            getSynchronization().unbindResource(key);
+        }
+        
+        /**
+         * @see TransactionBindingSupport#bindListener(TransactionListener)
+         */
+        public void bindListener(TransactionListener listener)
+        {
+            getSynchronization().addListener(listener);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "TransactionContext[" + txnIdAsLong + ", " + owner.getName() + (isValid() ? "" : ", completed") + "]";
+        }
+    }
+    
+    /**
+     * Binds the Alfresco-specific to the transaction resources
+     * 
+     * @return Returns the current or new synchronization implementation
+     */
+    private static TransactionSynchronizationImpl registerSynchronizations()
+    {
+        /*
+         * No thread synchronization or locking required as the resources are all threadlocal
+         */
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            Thread currentThread = Thread.currentThread();
+            throw new RuntimeException("Transaction must be active and synchronization is required: " + currentThread);
+        }
+        Object binding = TransactionSynchronizationManager.getResource(RESOURCE_KEY_TXN_SYNCH);
+        if (binding instanceof TransactionSynchronizationImpl)
+        {
+            // synchronization already registered
+            return (TransactionSynchronizationImpl) binding;
+        }
+        // we need a unique ID for the transaction
+        TransactionIdGenerator generator = transactionIdGenerator;
+        long txnId = generator.nextTransactionId();
+        // register the synchronization
+        TransactionSynchronizationImpl txnSynch = obtainSynchronization(generator.getNodeId(), txnId);
+        TransactionBindingMetrics metrics = transactionBindingMetrics;
+        txnSynch.metrics = metrics;
+        txnSynch.timeBudgetNanos = listenerTimeBudgetMs * 1000000L;
+        txnSynch.circuitBreaker = listenerCircuitBreaker;
+        if (binding != null)
+        {
+            // take over the resources and start time of the lazily registered holder
+            ResourceHolderSynchronization holder = (ResourceHolderSynchronization) binding;
+            holder.handOver(txnSynch);
+            TransactionSynchronizationManager.unbindResource(RESOURCE_KEY_TXN_SYNCH);
+        }
+        LiveTransactionRegistry registry = liveTransactionRegistry;
+        if (registry != null)
+        {
+            txnSynch.registry = registry;
+            txnSynch.registrySlot = registry.add(txnSynch);
+        }
+        TransactionSynchronizationManager.registerSynchronization(txnSynch);
+        // register the resource that will ensure we don't duplication the synchronization
+        TransactionSynchronizationManager.bindResource(RESOURCE_KEY_TXN_SYNCH, txnSynch);
+        if (metrics != null)
+        {
+            metrics.synchronizationRegistered(txnId);
+        }
+        // done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Bound txn synch: " + txnSynch);
+        }
+        return txnSynch;
+    }
+    
+    /**
+     * @return Returns the string form of a transaction ID, as given by {@link #getTransactionId()}
+     */
+    static String formatTransactionId(long nodeId, long txnId)
+    {
+        return Long.toHexString(nodeId) + "-" + Long.toHexString(txnId);
+    }
+    
+    /**
+     * Reuses this thread's recycled synchronization, if recycling is enabled and one is
+     * available, or else creates a new one
+     * 
+     * @param nodeId the node part of the new transaction ID
+     * @param txnId  the new transaction ID
+     * @return Returns a synchronization ready for the new transaction
+     */
+    private static TransactionSynchronizationImpl obtainSynchronization(long nodeId, long txnId)
+    {
+        if (recycleSynchronizations)
+        {
+            TransactionSynchronizationImpl txnSynch = recycledSynchronization.get();
+            if (txnSynch != null)
+            {
+                recycledSynchronization.remove();
+                txnSynch.reuse(nodeId, txnId);
+                return txnSynch;
+            }
+        }
+        return new TransactionSynchronizationImpl(nodeId, txnId);
+    }
+    
+    /**
+     * Releases a completed synchronization, which must already be unbound from the thread,
+     * keeping it for reuse if recycling is enabled
+     * 
+     * @param txnSynch the synchronization that has completed
+     */
+    private static void releaseSynchronization(TransactionSynchronizationImpl txnSynch)
+    {
+        boolean recyclable = txnSynch.release();
+        if (recyclable && recycleSynchronizations)
+        {
+            recycledSynchronization.set(txnSynch);
+        }
+    }
+    
+    /**
+     * Cleans out transaction resources if present
+     */
+    private static void clearSynchronization()
+    {
+        if (TransactionSynchronizationManager.hasResource(RESOURCE_KEY_TXN_SYNCH))
+        {
+            Object txnSynch = TransactionSynchronizationManager.unbindResource(RESOURCE_KEY_TXN_SYNCH);
+            // done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Unbound txn synch:" + txnSynch);
+            }
+        }
+    }
+    
+    /**
+     * Helper method to rebind the synchronization to the transaction
      * 
      * @param txnSynch
      */
-    private static void rebindSynchronization(TransactionSynchronizationImpl txnSynch)
+    private static void rebindSynchronization(ResourceBinding txnSynch)
     {
         TransactionSynchronizationManager.bindResource(RESOURCE_KEY_TXN_SYNCH, txnSynch);
         if (logger.isDebugEnabled())
         {
-            logger.debug("Bound txn synch: " + txnSynch);
+            logger.debug("Bound txn synch: " + txnSynch);
+        }
+    }
+    
+    /**
+     * Hands a listener's post-completion callback to the asynchronous executor
+     * 
+     * @param executor  the executor to run the callback
+     * @param listener  the asynchronous listener
+     * @param committed <tt>true</tt> to call <tt>afterCommit</tt>, otherwise <tt>afterRollback</tt>
+     * @param statusStr the completion status, for logging
+     * @param circuitBreaker told about the outcome of the callback, if not null
+     */
+    private static void dispatchAsync(
+            Executor executor,
+            TransactionListener listener,
+            boolean committed,
+            String statusStr,
+            ListenerCircuitBreaker circuitBreaker)
+    {
+        try
+        {
+            executor.execute(new AsyncCompletionTask(listener, committed, statusStr, circuitBreaker));
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.error("After completion (" + statusStr + ") listener rejected by executor: \n" +
+                    "   listener: " + listener,
+                    e);
+        }
+    }
+    
+    /**
+     * Runs the post-completion callback of an asynchronous listener, logging any failure in
+     * the same way as the inline callbacks
+     */
+    private static class AsyncCompletionTask implements Runnable
+    {
+        private final TransactionListener listener;
+        private final boolean committed;
+        private final String statusStr;
+        private final ListenerCircuitBreaker circuitBreaker;
+        
+        public AsyncCompletionTask(
+                TransactionListener listener,
+                boolean committed,
+                String statusStr,
+                ListenerCircuitBreaker circuitBreaker)
+        {
+            this.listener = listener;
+            this.committed = committed;
+            this.statusStr = statusStr;
+            this.circuitBreaker = circuitBreaker;
+        }
+        
+        public void run()
+        {
+            try
+            {
+                if (committed)
+                {
+                    listener.afterCommit();
+                }
+                else
+                {
+                    listener.afterRollback();
+                }
+                if (circuitBreaker != null)
+                {
+                    circuitBreaker.recordSuccess(listener.getClass());
+                }
+            }
+            catch (RuntimeException e)
+            {
+                if (circuitBreaker != null)
+                {
+                    circuitBreaker.recordFailure(listener.getClass());
+                }
+                logger.error("After completion (" + statusStr + ") listener exception: \n" +
+                        "   listener: " + listener,
+                        e);
+            }
+        }
+    }
+    
+    /**
+     * Copies the contents of a helper collection that is about to change as a whole, so they
+     * can be put back later
+     * 
+     * @return Returns the copy, or <tt>null</tt> if the resource is not a supported collection
+     */
+    private static Object copyContents(Object resource)
+    {
+        if (resource instanceof Map<?, ?>)
+        {
+            return new LinkedHashMap<Object, Object>((Map<?, ?>) resource);
+        }
+        else if (resource instanceof Collection<?>)
+        {
+            return new ArrayList<Object>((Collection<?>) resource);
+        }
+        else if (resource instanceof LongHashSet)
+        {
+            return ((LongHashSet) resource).copy();
+        }
+        else if (resource instanceof LongArrayList)
+        {
+            return ((LongArrayList) resource).copy();
+        }
+        else if (resource instanceof LongObjectHashMap<?>)
+        {
+            return ((LongObjectHashMap<?>) resource).copy();
+        }
+        else if (resource instanceof IntCounterMap<?>)
+        {
+            return ((IntCounterMap<?>) resource).copy();
+        }
+        else if (resource instanceof SpillableList<?>)
+        {
+            return ((SpillableList<?>) resource).copy();
+        }
+        return null;
+    }
+    
+    /**
+     * Puts back contents copied by {@link #copyContents(Object)}, keeping the same instance so
+     * that references to it stay valid
+     */
+    @SuppressWarnings("unchecked")
+    private static void restoreContents(Object resource, Object snapshot)
+    {
+        if (resource instanceof Map<?, ?>)
+        {
+            Map<Object, Object> map = (Map<Object, Object>) resource;
+            map.clear();
+            map.putAll((Map<Object, Object>) snapshot);
+        }
+        else if (resource instanceof Collection<?>)
+        {
+            Collection<Object> collection = (Collection<Object>) resource;
+            collection.clear();
+            collection.addAll((Collection<Object>) snapshot);
+        }
+        else if (resource instanceof LongHashSet)
+        {
+            ((LongHashSet) resource).restore((LongHashSet) snapshot);
+        }
+        else if (resource instanceof LongArrayList)
+        {
+            ((LongArrayList) resource).restore((LongArrayList) snapshot);
+        }
+        else if (resource instanceof LongObjectHashMap<?>)
+        {
+            ((LongObjectHashMap<Object>) resource).restore((LongObjectHashMap<Object>) snapshot);
+        }
+        else if (resource instanceof IntCounterMap<?>)
+        {
+            ((IntCounterMap<Object>) resource).restore((IntCounterMap<Object>) snapshot);
+        }
+        else if (resource instanceof SpillableList<?>)
+        {
+            ((SpillableList<?>) resource).restore((SpillableList.Mark) snapshot);
+        }
+    }
+    
+    /**
+     * A savepoint's place in the undo log
+     */
+    private static class ResourceLayer
+    {
+        private final int undoMark;
+        /** the resources already snapshotted in this layer, by identity */
+        private Map<Object, Object> snapshotted;
+        
+        private ResourceLayer(int undoMark)
+        {
+            this.undoMark = undoMark;
+        }
+    }
+    
+    /**
+     * A binding replaced under a resource layer
+     */
+    private static class UndoEntry implements ResourceJournal.Undo
+    {
+        /** marks a key that had nothing bound */
+        private static final Object UNBOUND = new Object();
+        
+        private final TransactionSynchronizationImpl txnSynch;
+        private final Object key;
+        /** the previous binding, or {@link #UNBOUND} */
+        private final Object previous;
+        
+        private UndoEntry(TransactionSynchronizationImpl txnSynch, Object key, Object previous)
+        {
+            this.txnSynch = txnSynch;
+            this.key = key;
+            this.previous = previous;
+        }
+        
+        public void undo()
+        {
+            if (previous == UNBOUND)
+            {
+                txnSynch.removeResource(key);
+            }
+            else
+            {
+                txnSynch.putResource(key, previous);
+            }
+        }
+    }
+    
+    /**
+     * The contents of a collection before it changed as a whole under a resource layer
+     */
+    private static class SnapshotUndo implements ResourceJournal.Undo
+    {
+        private final Object resource;
+        private final Object snapshot;
+        
+        private SnapshotUndo(Object resource, Object snapshot)
+        {
+            this.resource = resource;
+            this.snapshot = snapshot;
+        }
+        
+        public void undo()
+        {
+            restoreContents(resource, snapshot);
+        }
+    }
+    
+    /**
+     * The resource methods common to the full synchronization and the lazily registered holder
+     */
+    private abstract static class ResourceBinding extends TransactionSynchronizationAdapter
+    {
+        public abstract Object getResource(Object key);
+        
+        public abstract <T> T getSlotResource(TransactionResourceKey<T> key);
+        
+        public abstract void bindResource(Object key, Object resource);
+        
+        public abstract void setSlotResource(TransactionResourceKey<?> key, Object resource);
+        
+        public abstract void unbindResource(Object key);
+        
+        /**
+         * @return Returns the system time when the transaction was first bound
+         */
+        public abstract long getTransactionStartTime();
+        
+        /**
+         * @see TransactionBindingSupport#SESSION_SYNCHRONIZATION_ORDER
+         */
+        @Override
+        public int getOrder()
+        {
+            return TransactionBindingSupport.SESSION_SYNCHRONIZATION_ORDER;
+        }
+    }
+    
+    /**
+     * Holds the resources of a transaction that has not needed the full synchronization.  It
+     * is registered with Spring only to follow suspension and to unbind itself on completion,
+     * and goes quiet once it has {@link #handOver(TransactionSynchronizationImpl) handed over}
+     * to the full synchronization.
+     */
+    private static class ResourceHolderSynchronization extends ResourceBinding
+    {
+        /** carried over to the full synchronization, so the transaction's age counts from here */
+        private final long txnStartTime = System.currentTimeMillis();
+        private Map<Object, Object> resources;
+        private Object[] slotResources = TransactionSynchronizationImpl.EMPTY_SLOTS;
+        private boolean handedOver;
+        
+        public long getTransactionStartTime()
+        {
+            return txnStartTime;
+        }
+        
+        public Object getResource(Object key)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                return getSlotResource((TransactionResourceKey<?>) key);
+            }
+            return resources == null ? null : resources.get(key);
+        }
+        
+        @SuppressWarnings("unchecked")
+        public <T> T getSlotResource(TransactionResourceKey<T> key)
+        {
+            int slot = key.getSlot();
+            return slot < slotResources.length ? (T) slotResources[slot] : null;
+        }
+        
+        public void bindResource(Object key, Object resource)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                setSlotResource((TransactionResourceKey<?>) key, resource);
+                return;
+            }
+            if (resources == null)
+            {
+                resources = new HashMap<Object, Object>(17);
+            }
+            resources.put(key, resource);
+        }
+        
+        public void setSlotResource(TransactionResourceKey<?> key, Object resource)
+        {
+            int slot = key.getSlot();
+            if (slot >= slotResources.length)
+            {
+                if (resource == null)
+                {
+                    return;     // nothing to unbind
+                }
+                Object[] grown = new Object[Math.max(slot + 1, slotResources.length * 2)];
+                System.arraycopy(slotResources, 0, grown, 0, slotResources.length);
+                slotResources = grown;
+            }
+            slotResources[slot] = resource;
+        }
+        
+        public void unbindResource(Object key)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                setSlotResource((TransactionResourceKey<?>) key, null);
+            }
+            else if (resources != null)
+            {
+                resources.remove(key);
+            }
+        }
+        
+        /**
+         * Moves the resources and the start time into the full synchronization that replaces
+         * this holder
+         */
+        private void handOver(TransactionSynchronizationImpl txnSynch)
+        {
+            txnSynch.txnStartTime = txnStartTime;
+            if (resources != null)
+            {
+                for (Map.Entry<Object, Object> entry : resources.entrySet())
+                {
+                    txnSynch.putResource(entry.getKey(), entry.getValue());
+                }
+            }
+            if (slotResources.length > txnSynch.slotResources.length)
+            {
+                txnSynch.slotResources = slotResources;
+            }
+            else
+            {
+                System.arraycopy(slotResources, 0, txnSynch.slotResources, 0, slotResources.length);
+            }
+            resources = null;
+            slotResources = TransactionSynchronizationImpl.EMPTY_SLOTS;
+            handedOver = true;
+        }
+        
+        @Override
+        public void suspend()
+        {
+            if (!handedOver)
+            {
+                TransactionBindingSupport.clearSynchronization();
+            }
+        }
+        
+        @Override
+        public void resume()
+        {
+            if (!handedOver)
+            {
+                TransactionBindingSupport.rebindSynchronization(this);
+            }
+        }
+        
+        @Override
+        public void afterCompletion(int status)
+        {
+            if (!handedOver)
+            {
+                TransactionBindingSupport.clearSynchronization();
+                resources = null;
+                slotResources = TransactionSynchronizationImpl.EMPTY_SLOTS;
+            }
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "ResourceHolderSynchronization[ resources=" + resources +
+                    ", slotResources=" + Arrays.asList(slotResources) + "]";
+        }
+    }
+    
+    /**
+     * Handler of txn synchronization callbacks specific to internal
+     * application requirements
+     */
+    private static class TransactionSynchronizationImpl extends ResourceBinding
+            implements LiveTransactionRegistry.TrackedTransaction
+    {
+        private static final Object[] EMPTY_SLOTS = new Object[0];
+        /**
+         * stands in for a <tt>null</tt> key or resource, which the concurrent map used once the
+         * transaction is shared cannot hold
+         */
+        private static final Object NULL = new Object()
+        {
+            @Override
+            public String toString()
+            {
+                return "null";
+            }
+        };
+        /** containers that grew beyond this are left for the garbage collector rather than recycled */
+        private static final int MAX_RECYCLED_SIZE = 256;
+        
+        private long txnStartTime;
+        private long nodeId;
+        private long txnId;
+        private String txnIdStr;
+        private final Set<TransactionListener> listeners;
+        private final List<TransactionListener> listenerSequence;
+        private boolean orderedListenerBound;
+        private Map<Object, Object> resources;
+        private Object[] slotResources;
+        /** <tt>true</tt> once the transaction has been captured for worker threads */
+        private boolean shared;
+        /** republished after each slot change while shared, so that workers see the change */
+        private volatile Object[] sharedSlots;
+        /** listeners bound by worker threads, waiting to be joined to the transaction */
+        private ConcurrentLinkedQueue<TransactionListener> queuedListeners;
+        /** the metrics in force when the transaction was bound, or null */
+        private TransactionBindingMetrics metrics;
+        /** the default listener time budget when the transaction was bound, or zero */
+        private long timeBudgetNanos;
+        /** the circuit breaker in force when the transaction was bound, or null */
+        private ListenerCircuitBreaker circuitBreaker;
+        /** the registry the transaction was added to, or null */
+        private LiveTransactionRegistry registry;
+        /** the transaction's slot in the registry, or -1 if it is not tracked */
+        private int registrySlot = -1;
+        /** incremented each time the instance is released, so stale users can be detected */
+        private volatile int generation;
+        private boolean released;
+        /** the open savepoint layers, innermost last, or null if there are none */
+        private List<ResourceLayer> layers;
+        /** the changes made while layers are open, oldest first */
+        private List<ResourceJournal.Undo> undoLog;
+        /** records changes to the helper collections for the layers, once a layer has been opened */
+        private Journal journal;
+        /** <tt>true</tt> while a layer's changes are being undone, so the undo is not recorded */
+        private boolean undoing;
+        
+        /**
+         * Sets up the resource map
+         * 
+         * @param nodeId
+         * @param txnId
+         */
+        public TransactionSynchronizationImpl(long nodeId, long txnId)
+        {
+            this.txnStartTime = System.currentTimeMillis();
+            this.nodeId = nodeId;
+            this.txnId = txnId;
+            listeners = new HashSet<TransactionListener>(5);
+            listenerSequence = new ArrayList<TransactionListener>(5);
+            resources = new HashMap<Object, Object>(17);
+            slotResources = EMPTY_SLOTS;
+        }
+        
+        /**
+         * Prepares a released instance for a new transaction
+         * 
+         * @param nodeId
+         * @param txnId
+         */
+        private void reuse(long nodeId, long txnId)
+        {
+            if (!released)
+            {
+                throw new IllegalStateException("Transaction synchronization reused before release: " + this);
+            }
+            this.txnStartTime = System.currentTimeMillis();
+            this.nodeId = nodeId;
+            this.txnId = txnId;
+            this.txnIdStr = null;
+            this.released = false;
+        }
+        
+        /**
+         * Marks the instance as finished with and drops all references held for the transaction
+         * 
+         * @return Returns <tt>true</tt> if the containers are small enough to be worth recycling
+         */
+        private boolean release()
+        {
+            boolean recyclable =
+                    listeners.size() <= MAX_RECYCLED_SIZE &&
+                    resources.size() <= MAX_RECYCLED_SIZE &&
+                    slotResources.length <= MAX_RECYCLED_SIZE;
+            listeners.clear();
+            listenerSequence.clear();
+            orderedListenerBound = false;
+            if (shared)
+            {
+                resources = new HashMap<Object, Object>(17);
+                shared = false;
+                sharedSlots = null;
+                queuedListeners = null;
+            }
+            else
+            {
+                resources.clear();
+            }
+            Arrays.fill(slotResources, null);
+            metrics = null;
+            circuitBreaker = null;
+            registry = null;
+            registrySlot = -1;
+            layers = null;
+            undoLog = null;
+            journal = null;
+            generation++;
+            released = true;
+            return recyclable;
+        }
+        
+        /**
+         * @return Returns the number of times this instance has been released
+         */
+        public int getGeneration()
+        {
+            return generation;
+        }
+        
+        /**
+         * Guards against callbacks reaching an instance that has already completed
+         */
+        private void checkNotReleased()
+        {
+            if (released)
+            {
+                throw new IllegalStateException("Transaction synchronization used after release: generation " + generation);
+            }
+        }
+        
+        public long getTransactionStartTime()
+        {
+            return txnStartTime;
+        }
+
+        /**
+         * @return Returns the string form of the ID, built on first use
+         */
+        public String getTransactionId()
+        {
+            if (txnIdStr == null)
+            {
+                txnIdStr = formatTransactionId(nodeId, txnId);
+            }
+            return txnIdStr;
+        }
+        
+        public long getNodeId()
+        {
+            return nodeId;
+        }
+        
+        public long getTransactionIdAsLong()
+        {
+            return txnId;
+        }
+        
+        /**
+         * Fetches a resource, using the slot array for typed keys and the map for all others
+         */
+        public Object getResource(Object key)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                return getSlotResource((TransactionResourceKey<?>) key);
+            }
+            return unmaskNull(resources.get(maskNull(key)));
+        }
+        
+        public void bindResource(Object key, Object resource)
+        {
+            if (layers != null)
+            {
+                recordBinding(key);
+            }
+            putResource(key, resource);
+            if (metrics != null)
+            {
+                metrics.resourceBound(txnId, key);
+            }
+        }
+        
+        public void unbindResource(Object key)
+        {
+            if (layers != null)
+            {
+                recordBinding(key);
+            }
+            removeResource(key);
+            if (metrics != null)
+            {
+                metrics.resourceUnbound(txnId, key);
+            }
+        }
+        
+        private void putResource(Object key, Object resource)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                storeSlotResource((TransactionResourceKey<?>) key, resource);
+            }
+            else
+            {
+                resources.put(maskNull(key), maskNull(resource));
+            }
+        }
+        
+        private void removeResource(Object key)
+        {
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                storeSlotResource((TransactionResourceKey<?>) key, null);
+            }
+            else
+            {
+                resources.remove(maskNull(key));
+            }
+        }
+        
+        private static Object maskNull(Object value)
+        {
+            return value == null ? NULL : value;
+        }
+        
+        private static Object unmaskNull(Object value)
+        {
+            return value == NULL ? null : value;
+        }
+        
+        @SuppressWarnings("unchecked")
+        public <T> T getSlotResource(TransactionResourceKey<T> key)
+        {
+            int slot = key.getSlot();
+            Object[] slots = shared ? sharedSlots : slotResources;
+            return slot < slots.length ? (T) slots[slot] : null;
+        }
+        
+        public void setSlotResource(TransactionResourceKey<?> key, Object resource)
+        {
+            if (layers != null)
+            {
+                recordBinding(key);
+            }
+            storeSlotResource(key, resource);
+            if (metrics != null)
+            {
+                if (resource == null)
+                {
+                    metrics.resourceUnbound(txnId, key);
+                }
+                else
+                {
+                    metrics.resourceBound(txnId, key);
+                }
+            }
+        }
+        
+        /**
+         * Binds a resource in the key's slot if it is empty.  While the transaction is shared, worker
+         * threads may call this too, so slot changes are made under the instance's lock; a worker's
+         * binding is neither recorded for the layers nor reported to the metrics.
+         * 
+         * @param worker    <tt>true</tt> if the caller is a worker thread rather than the owner
+         * @return Returns the resource now in the slot
+         */
+        public synchronized <T> T bindSlotResourceIfAbsent(TransactionResourceKey<T> key, T resource, boolean worker)
+        {
+            T existing = getSlotResource(key);
+            if (existing != null)
+            {
+                return existing;
+            }
+            if (worker)
+            {
+                storeSlotResource(key, resource);
+            }
+            else
+            {
+                setSlotResource(key, resource);
+            }
+            return resource;
+        }
+        
+        /**
+         * Stores a resource in the key's slot, growing the slot array to cover all keys created so far
+         */
+        private void storeSlotResource(TransactionResourceKey<?> key, Object resource)
+        {
+            if (shared)
+            {
+                // workers may be binding through bindSlotResourceIfAbsent
+                synchronized (this)
+                {
+                    storeSlot(key, resource);
+                }
+            }
+            else
+            {
+                storeSlot(key, resource);
+            }
+        }
+        
+        private void storeSlot(TransactionResourceKey<?> key, Object resource)
+        {
+            int slot = key.getSlot();
+            if (slot >= slotResources.length)
+            {
+                if (resource == null)
+                {
+                    return;     // nothing to unbind
+                }
+                Object[] grown = new Object[Math.max(slot + 1, slotResources.length * 2)];
+                System.arraycopy(slotResources, 0, grown, 0, slotResources.length);
+                slotResources = grown;
+            }
+            slotResources[slot] = resource;
+            if (shared)
+            {
+                sharedSlots = slotResources;
+            }
+        }
+        
+        /**
+         * Moves the resources into a concurrent map, so that worker threads can read them
+         * while the owning thread carries on binding
+         */
+        public void share()
+        {
+            if (shared)
+            {
+                return;
+            }
+            // keys and resources are already masked, so nulls bound so far carry over
+            resources = new ConcurrentHashMap<Object, Object>(resources);
+            queuedListeners = new ConcurrentLinkedQueue<TransactionListener>();
+            sharedSlots = slotResources;
+            shared = true;
+        }
+        
+        public boolean isShared()
+        {
+            return shared;
+        }
+        
+        /**
+         * Queues a listener bound by a worker thread
+         */
+        public void queueListener(TransactionListener listener)
+        {
+            queuedListeners.add(listener);
+        }
+        
+        /**
+         * Joins the listeners queued by worker threads to the transaction, on the owning thread
+         */
+        private void drainQueuedListeners()
+        {
+            if (queuedListeners == null)
+            {
+                return;
+            }
+            TransactionListener listener;
+            while ((listener = queuedListeners.poll()) != null)
+            {
+                addListener(listener);
+            }
+        }
+        
+        /**
+         * Fetches a resource and, if a layer is open, hands out a helper collection in a form
+         * that records its changes for the layers to undo
+         */
+        public Object getLayeredResource(Object key)
+        {
+            Object resource = getResource(key);
+            if (layers == null || resource == null)
+            {
+                return resource;
+            }
+            if (resource instanceof LayeredCollections.LayeredTreeSet<?>)
+            {
+                ((LayeredCollections.LayeredTreeSet<?>) resource).journal = journal;
+            }
+            else if (resource instanceof LongHashSet)
+            {
+                ((LongHashSet) resource).journal = journal;
+            }
+            else if (resource instanceof LongArrayList)
+            {
+                ((LongArrayList) resource).journal = journal;
+            }
+            else if (resource instanceof LongObjectHashMap<?>)
+            {
+                ((LongObjectHashMap<?>) resource).journal = journal;
+            }
+            else if (resource instanceof IntCounterMap<?>)
+            {
+                ((IntCounterMap<?>) resource).journal = journal;
+            }
+            else if (resource instanceof MemoTable)
+            {
+                ((MemoTable) resource).journal = journal;
+            }
+            else if (resource instanceof SpillableList<?> || resource instanceof TreeSet<?>)
+            {
+                // a spillable list is marked rather than copied, a plain tree set cannot be
+                // wrapped without changing its type
+                journal.snapshot(resource);
+            }
+            else
+            {
+                if (journal.views == null)
+                {
+                    journal.views = new IdentityHashMap<Object, Object>(8);
+                }
+                Object view = journal.views.get(resource);
+                if (view == null)
+                {
+                    view = LayeredCollections.view(resource, journal);
+                    if (view == null)
+                    {
+                        return resource;
+                    }
+                    journal.views.put(resource, view);
+                }
+                return view;
+            }
+            return resource;
+        }
+        
+        /**
+         * Records changes to the helper collections into the undo log of the innermost layer.
+         * A collection keeps its journal after the layers close, so recording also checks that
+         * the transaction is still the one the journal was made for.  Layers belong to the
+         * owning thread, so changes made on worker threads, such as values they memoize, are
+         * never recorded.
+         */
+        private class Journal implements ResourceJournal
+        {
+            private final int journalGeneration = generation;
+            private final Thread owner = Thread.currentThread();
+            /** the recording views handed out for maps, lists and sets, by collection */
+            private Map<Object, Object> views;
+            
+            public boolean isRecording()
+            {
+                return Thread.currentThread() == owner && layers != null && !undoing && generation == journalGeneration;
+            }
+            
+            public void record(Undo undo)
+            {
+                if (isRecording())
+                {
+                    undoLog.add(undo);
+                }
+            }
+            
+            public void snapshot(Object resource)
+            {
+                if (!isRecording())
+                {
+                    return;
+                }
+                ResourceLayer layer = layers.get(layers.size() - 1);
+                if (layer.snapshotted == null)
+                {
+                    layer.snapshotted = new IdentityHashMap<Object, Object>(8);
+                }
+                if (layer.snapshotted.put(resource, resource) == null)
+                {
+                    Object snapshot = copyContents(resource);
+                    if (snapshot != null)
+                    {
+                        undoLog.add(new SnapshotUndo(resource, snapshot));
+                    }
+                }
+            }
         }
-    }
-    
-    /**
-     * Handler of txn synchronization callbacks specific to internal
-     * application requirements
-     */
-    private static class TransactionSynchronizationImpl extends TransactionSynchronizationAdapter
-    {
-        private long txnStartTime;
-        private final String txnId;
-        private final LinkedHashSet<TransactionListener> listeners;
-        private final Map<Object, Object> resources;
         
         /**
-         * Sets up the resource map
-         * 
-         * @param txnId
+         * Remembers the current binding of a key, before it is changed under a layer
          */
-        public TransactionSynchronizationImpl(String txnId)
+        private void recordBinding(Object key)
         {
-            this.txnStartTime = System.currentTimeMillis();
-            this.txnId = txnId;
-            listeners = new LinkedHashSet<TransactionListener>(5);
-            resources = new HashMap<Object, Object>(17);
+            Object previous;
+            if (key instanceof TransactionResourceKey<?>)
+            {
+                previous = getSlotResource((TransactionResourceKey<?>) key);
+            }
+            else
+            {
+                Object maskedKey = maskNull(key);
+                previous = resources.containsKey(maskedKey) ? unmaskNull(resources.get(maskedKey)) : UndoEntry.UNBOUND;
+            }
+            undoLog.add(new UndoEntry(this, key, previous == null ? UndoEntry.UNBOUND : previous));
         }
         
-        public long getTransactionStartTime()
+        /**
+         * @return Returns the number of layers open, including the new one
+         */
+        public int beginLayer()
         {
-            return txnStartTime;
+            if (layers == null)
+            {
+                layers = new ArrayList<ResourceLayer>(4);
+                undoLog = new ArrayList<ResourceJournal.Undo>(17);
+                if (journal == null)
+                {
+                    journal = new Journal();
+                }
+            }
+            layers.add(new ResourceLayer(undoLog.size()));
+            return layers.size();
         }
-
-        public String getTransactionId()
+        
+        /**
+         * Closes the innermost layer, keeping its changes as part of the enclosing layer, if any
+         */
+        public void releaseLayer()
         {
-            return txnId;
+            removeLayer();
+        }
+        
+        /**
+         * Closes the innermost layer, undoing its changes newest first
+         */
+        public void rollbackLayer()
+        {
+            ResourceLayer layer = layers == null ? null : layers.get(layers.size() - 1);
+            if (layer != null)
+            {
+                undoing = true;
+                try
+                {
+                    for (int i = undoLog.size() - 1; i >= layer.undoMark; i--)
+                    {
+                        undoLog.remove(i).undo();
+                    }
+                }
+                finally
+                {
+                    undoing = false;
+                }
+            }
+            removeLayer();
+        }
+        
+        private void removeLayer()
+        {
+            if (layers == null)
+            {
+                throw new IllegalStateException("No resource layer is open: " + getTransactionId());
+            }
+            layers.remove(layers.size() - 1);
+            if (layers.isEmpty())
+            {
+                layers = null;
+                undoLog = null;
+            }
+        }
+        
+        public int getLayerDepth()
+        {
+            return layers == null ? 0 : layers.size();
+        }
+        
+        /**
+         * @return Returns the journal if a layer is open to record changes in, or <tt>null</tt>
+         */
+        public ResourceJournal getRecordingJournal()
+        {
+            return layers != null && journal.isRecording() ? journal : null;
+        }
+        
+        /**
+         * @return Returns the number of listeners bound
+         */
+        public int getListenerCount()
+        {
+            return listeners.size();
+        }
+        
+        /**
+         * @return Returns the number of resources bound, by either type of key
+         */
+        public int getResourceCount()
+        {
+            int count = resources.size();
+            for (Object resource : slotResources)
+            {
+                if (resource != null)
+                {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        /**
+         * Calls <tt>beforeCommit</tt> on a run of parallel-safe listeners at the same time, the
+         * last on this thread and the others on the executor, and waits for all of them.  The
+         * first failure, in the order the listeners are called, is thrown once they have all
+         * finished, and any others are logged.
+         * 
+         * @param executor  the executor for all but the last listener
+         * @param wave      the listeners of the current wave, in the order they are called
+         * @param start     the index of the first listener in the run
+         * @param end       the index after the last listener in the run
+         * @param readOnly  passed to <tt>beforeCommit</tt>
+         */
+        private void invokeParallel(ExecutorService executor, List<TransactionListener> wave, int start, int end,
+                final boolean readOnly)
+        {
+            share();
+            CapturedContext context = new CapturedContext(this);
+            List<Future<?>> futures = new ArrayList<Future<?>>(end - start - 1);
+            for (int i = start; i < end - 1; i++)
+            {
+                final TransactionListener listener = wave.get(i);
+                Runnable task = context.wrap(new Runnable()
+                {
+                    public void run()
+                    {
+                        invokeListener(TransactionPhase.BEFORE_COMMIT, listener, readOnly);
+                    }
+                });
+                try
+                {
+                    futures.add(executor.submit(task));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // run it here instead, it is still safe to do so
+                    FutureTask<Object> inline = new FutureTask<Object>(task, null);
+                    inline.run();
+                    futures.add(inline);
+                }
+            }
+            Throwable lastFailure = null;
+            try
+            {
+                invokeListener(TransactionPhase.BEFORE_COMMIT, wave.get(end - 1), readOnly);
+            }
+            catch (Throwable e)
+            {
+                lastFailure = e;
+            }
+            // wait for every listener, even after a failure, so none is still running during rollback
+            Throwable failure = null;
+            boolean interrupted = false;
+            for (int i = 0; i < futures.size(); i++)
+            {
+                Future<?> future = futures.get(i);
+                while (true)
+                {
+                    try
+                    {
+                        future.get();
+                        break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                    catch (ExecutionException e)
+                    {
+                        failure = addParallelFailure(failure, e.getCause(), wave.get(start + i));
+                        break;
+                    }
+                }
+            }
+            if (lastFailure != null)
+            {
+                failure = addParallelFailure(failure, lastFailure, wave.get(end - 1));
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (failure instanceof RuntimeException)
+            {
+                throw (RuntimeException) failure;
+            }
+            else if (failure instanceof Error)
+            {
+                throw (Error) failure;
+            }
+            else if (failure != null)
+            {
+                throw new RuntimeException("Parallel beforeCommit listener failed", failure);
+            }
+        }
+        
+        /**
+         * Keeps the first failure of a parallel run to be thrown, logging any later one, as
+         * there is no way to attach it to the first
+         * 
+         * @return Returns the failure to throw once the run has finished
+         */
+        private Throwable addParallelFailure(Throwable failure, Throwable e, TransactionListener listener)
+        {
+            if (failure == null)
+            {
+                return e;
+            }
+            logger.error("Before commit listener exception, after an earlier failure in the same parallel run: \n" +
+                    "   listener: " + listener,
+                    e);
+            return failure;
         }
         
         /**
-         * @return Returns a set of <tt>TransactionListener<tt> instances that will be called
-         *      during end-of-transaction processing
+         * Makes a listener callback, timing it if metrics are enabled or the listener has a
+         * time budget
+         * 
+         * @param phase     the callback to make
+         * @param listener  the listener to call
+         * @param readOnly  passed to <tt>beforeCommit</tt>
+         * @return Returns <tt>false</tt> if the callback ran over its time budget
          */
-        public boolean addListener(TransactionListener listener)
+        private boolean invokeListener(TransactionPhase phase, TransactionListener listener, boolean readOnly)
+        {
+            long budgetNanos = timeBudgetNanos;
+            if (listener instanceof TimeBudgetedTransactionListener)
+            {
+                budgetNanos = ((TimeBudgetedTransactionListener) listener).getTimeBudgetMillis() * 1000000L;
+            }
+            if (metrics == null && budgetNanos <= 0L)
+            {
+                callListener(phase, listener, readOnly);
+                return true;
+            }
+            if (metrics != null)
+            {
+                metrics.listenerInvoking(txnId, phase, listener.getClass());
+            }
+            long start = System.nanoTime();
+            long elapsed;
+            try
+            {
+                callListener(phase, listener, readOnly);
+            }
+            finally
+            {
+                elapsed = System.nanoTime() - start;
+                if (metrics != null)
+                {
+                    metrics.listenerInvoked(txnId, phase, listener.getClass(), elapsed);
+                }
+            }
+            if (budgetNanos > 0L && elapsed > budgetNanos)
+            {
+                logger.warn("Listener exceeded time budget (" + phase + "): \n" +
+                        "   transaction: " + getTransactionId() + "\n" +
+                        "   listener: " + listener + "\n" +
+                        "   duration: " + (elapsed / 1000000L) + "ms\n" +
+                        "   budget: " + (budgetNanos / 1000000L) + "ms");
+                return false;
+            }
+            return true;
+        }
+        
+        private static void callListener(TransactionPhase phase, TransactionListener listener, boolean readOnly)
         {
-            return listeners.add(listener);
+            switch (phase)
+            {
+                case BEFORE_COMMIT:
+                    listener.beforeCommit(readOnly);
+                    break;
+                case BEFORE_COMPLETION:
+                    listener.beforeCompletion();
+                    break;
+                case AFTER_COMMIT:
+                    listener.afterCommit();
+                    break;
+                case AFTER_ROLLBACK:
+                    listener.afterRollback();
+                    break;
+                default:
+            }
         }
         
         /**
-         * @return Returns the listeners in a list disconnected from the original set
+         * Adds a listener to the end of the listener sequence, unless it is already bound.
+         * The sequence is only ever appended to, so callbacks can walk it by index while
+         * listeners bind further listeners; rolling back a resource layer only takes back the
+         * listeners bound since the layer was opened, which are at the end.
+         * 
+         * @return Returns <tt>true</tt> if the listener was not already bound
          */
-        private List<TransactionListener> getListenersIterable()
+        public boolean addListener(final TransactionListener listener)
         {
-            return new ArrayList<TransactionListener>(listeners);
+            if (!listeners.add(listener))
+            {
+                return false;
+            }
+            listenerSequence.add(listener);
+            if (listener instanceof Ordered)
+            {
+                orderedListenerBound = true;
+            }
+            if (layers != null && journal.isRecording())
+            {
+                // a listener bound under a layer that is rolled back is dropped with the layer
+                undoLog.add(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        listeners.remove(listener);
+                        listenerSequence.remove(listenerSequence.lastIndexOf(listener));
+                    }
+                });
+            }
+            return true;
         }
 
         public String toString()
         {
             StringBuilder sb = new StringBuilder(50);
             sb.append("TransactionSychronizationImpl")
-              .append("[ txnId=").append(txnId)
+              .append("[ txnId=").append(getTransactionId())
+              .append(", generation=").append(generation)
               .append(", resources=").append(resources)
+              .append(", slotResources=").append(Arrays.asList(slotResources))
               .append("]");
             return sb.toString();
         }
 
-        /**
-         * @see TransactionBindingSupport#SESSION_SYNCHRONIZATION_ORDER
-         */
-        @Override
-        public int getOrder()
-        {
-            return TransactionBindingSupport.SESSION_SYNCHRONIZATION_ORDER;
-        }
-
         @Override
         public void suspend()
         {
+            checkNotReleased();
             if (logger.isDebugEnabled())
             {
                 logger.debug("Suspending transaction: " + this);
             }
             TransactionBindingSupport.clearSynchronization();
+            if (metrics != null)
+            {
+                metrics.synchronizationSuspended(txnId);
+            }
         }
 
         @Override
         public void resume()
         {
+            checkNotReleased();
             if (logger.isDebugEnabled())
             {
                 logger.debug("Resuming transaction: " + this);
             }
             TransactionBindingSupport.rebindSynchronization(this);
+            if (metrics != null)
+            {
+                metrics.synchronizationResumed(txnId);
+            }
         }
 
         /**
@@ -478,6 +2510,7 @@ public abstract class TransactionBindingSupport
         @Override
         public void beforeCommit(boolean readOnly)
         {
+            checkNotReleased();
             if (logger.isDebugEnabled())
             {
                 logger.debug("Before commit " + (readOnly ? "read-only" : "" ) + ": " + this);
@@ -496,51 +2529,111 @@ public abstract class TransactionBindingSupport
         }
         
         /**
-         * Execute the beforeCommit event handlers for the registered listeners
+         * Executes the beforeCommit event handlers for the registered listeners.
+         * <p>
+         * Calling listeners may lead to more listeners being added, so the listeners are
+         * processed in waves: each wave is made up of the listeners that were bound when it
+         * started and any listeners bound during a wave are called in the next one.  A cursor
+         * into the listener sequence marks the start of each wave, so every listener is
+         * visited exactly once.
+         * <p>
+         * Within a wave, listeners implementing <tt>Ordered</tt> are called in order before
+         * any unordered listeners, which keep the order in which they were bound.  Only a copy of
+         * the wave is sorted: the sequence itself stays in the order the listeners were bound, so
+         * the <tt>beforeCompletion</tt> and <tt>afterCompletion</tt> callbacks are not reordered.
          * 
          * @param readOnly  is read only
          */
         private void doBeforeCommit(boolean readOnly)
         {
-            doBeforeCommit(new HashSet<TransactionListener>(listeners.size()), readOnly);
-        }
-        
-        /**
-         * Executes the beforeCommit event handlers for the outstanding listeners.
-         * This process is iterative as the process of calling listeners may lead to more listeners
-         * being added.  The new listeners will be processed until there no listeners remaining.
-         * 
-         * @param visitedListeners  a set containing the already visited listeners
-         * @param readOnly          is read only
-         */
-        private void doBeforeCommit(Set<TransactionListener> visitedListeners, boolean readOnly)
-        {
-            Set<TransactionListener> pendingListeners = new HashSet<TransactionListener>(listeners);
-            pendingListeners.removeAll(visitedListeners);
-            
-            if (pendingListeners.size() != 0)
+            long start = 0L;
+            if (metrics != null)
             {
-                for (TransactionListener listener : pendingListeners) 
+                metrics.phaseStarting(txnId, TransactionPhase.BEFORE_COMMIT);
+                start = System.nanoTime();
+            }
+            try
+            {
+                ExecutorService parallelExecutor = parallelListenerExecutor;
+                int waveStart = 0;
+                drainQueuedListeners();
+                while (waveStart < listenerSequence.size())
                 {
-                    listener.beforeCommit(readOnly);
-                    visitedListeners.add(listener);
+                    int waveEnd = listenerSequence.size();
+                    List<TransactionListener> wave = listenerSequence;
+                    int from = waveStart;
+                    int to = waveEnd;
+                    if (orderedListenerBound)
+                    {
+                        wave = new ArrayList<TransactionListener>(listenerSequence.subList(waveStart, waveEnd));
+                        OrderComparator.sort(wave);
+                        from = 0;
+                        to = wave.size();
+                    }
+                    for (int i = from; i < to; i++)
+                    {
+                        TransactionListener listener = wave.get(i);
+                        if (parallelExecutor != null && listener instanceof ParallelSafeTransactionListener)
+                        {
+                            int groupEnd = i + 1;
+                            while (groupEnd < to &&
+                                    wave.get(groupEnd) instanceof ParallelSafeTransactionListener)
+                            {
+                                groupEnd++;
+                            }
+                            if (groupEnd - i > 1)
+                            {
+                                invokeParallel(parallelExecutor, wave, i, groupEnd, readOnly);
+                                i = groupEnd - 1;
+                                continue;
+                            }
+                        }
+                        invokeListener(TransactionPhase.BEFORE_COMMIT, listener, readOnly);
+                    }
+                    waveStart = waveEnd;
+                    drainQueuedListeners();
+                }
+            }
+            finally
+            {
+                if (metrics != null)
+                {
+                    metrics.beforeCommitCompleted(txnId, listenerSequence.size(), System.nanoTime() - start);
                 }
-                
-                doBeforeCommit(visitedListeners, readOnly);
             }
         }
         
         @Override
         public void beforeCompletion()
         {
+            checkNotReleased();
             if (logger.isDebugEnabled())
             {
                 logger.debug("Before completion: " + this);
             }
-            // notify listeners
-            for (TransactionListener listener : getListenersIterable())
+            long start = 0L;
+            if (metrics != null)
+            {
+                metrics.phaseStarting(txnId, TransactionPhase.BEFORE_COMPLETION);
+                start = System.nanoTime();
+            }
+            int listenerCount = 0;
+            try
+            {
+                drainQueuedListeners();
+                // notify listeners, ignoring any bound during the callbacks
+                listenerCount = listenerSequence.size();
+                for (int i = 0; i < listenerCount; i++)
+                {
+                    invokeListener(TransactionPhase.BEFORE_COMPLETION, listenerSequence.get(i), false);
+                }
+            }
+            finally
             {
-                listener.beforeCompletion();
+                if (metrics != null)
+                {
+                    metrics.beforeCompletionCompleted(txnId, listenerCount, System.nanoTime() - start);
+                }
             }
         }
                
@@ -548,6 +2641,7 @@ public abstract class TransactionBindingSupport
         @Override
         public void afterCompletion(int status)
         {
+            checkNotReleased();
             String statusStr = "unknown";
             switch (status)
             {
@@ -564,31 +2658,42 @@ public abstract class TransactionBindingSupport
                 logger.debug("After completion (" + statusStr + "): " + this);
             }
                         
-            List<TransactionListener> iterableListeners = getListenersIterable();
-            // notify listeners
-            if (status  == TransactionSynchronization.STATUS_COMMITTED)
+            boolean committed = (status == TransactionSynchronization.STATUS_COMMITTED);
+            TransactionPhase phase = committed ? TransactionPhase.AFTER_COMMIT : TransactionPhase.AFTER_ROLLBACK;
+            long start = 0L;
+            if (metrics != null)
+            {
+                metrics.phaseStarting(txnId, phase);
+                start = System.nanoTime();
+            }
+            int listenerCount = 0;
+            try
             {
-                for (TransactionListener listener : iterableListeners)
+                drainQueuedListeners();
+                // notify listeners, ignoring any bound during the callbacks
+                listenerCount = listenerSequence.size();
+                Executor asyncExecutor = asyncListenerExecutor;
+                for (int i = 0; i < listenerCount; i++)
                 {
-                    try
+                    TransactionListener listener = listenerSequence.get(i);
+                    if (circuitBreaker != null && !circuitBreaker.allow(listener.getClass()))
                     {
-                        listener.afterCommit();
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("After completion (" + statusStr + ") listener skipped by circuit breaker: \n" +
+                                    "   listener: " + listener);
+                        }
+                        continue;
                     }
-                    catch (RuntimeException e)
+                    if (asyncExecutor != null && listener instanceof AsyncTransactionListener)
                     {
-                        logger.error("After completion (" + statusStr + ") listener exception: \n" +
-                                "   listener: " + listener,
-                                e);
+                        dispatchAsync(asyncExecutor, listener, committed, statusStr, circuitBreaker);
+                        continue;
                     }
-                }
-            }
-            else
-            {
-                for (TransactionListener listener : iterableListeners)
-                {
+                    boolean healthy = false;
                     try
                     {
-                        listener.afterRollback();
+                        healthy = invokeListener(phase, listener, false);
                     }
                     catch (RuntimeException e)
                     {
@@ -596,11 +2701,41 @@ public abstract class TransactionBindingSupport
                                 "   listener: " + listener,
                                 e);
                     }
+                    if (circuitBreaker != null)
+                    {
+                        if (healthy)
+                        {
+                            circuitBreaker.recordSuccess(listener.getClass());
+                        }
+                        else
+                        {
+                            circuitBreaker.recordFailure(listener.getClass());
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                if (metrics != null)
+                {
+                    metrics.transactionCompleted(
+                            txnId,
+                            status,
+                            System.currentTimeMillis() - txnStartTime,
+                            listenerCount,
+                            getResourceCount(),
+                            System.nanoTime() - start);
                 }
             }
             
+            if (registry != null)
+            {
+                registry.remove(registrySlot);
+            }
+            
             // clear the thread's registrations and synchronizations
             TransactionBindingSupport.clearSynchronization();
+            TransactionBindingSupport.releaseSynchronization(this);
         }
     }
 }
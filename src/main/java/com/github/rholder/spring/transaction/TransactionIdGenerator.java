@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * Source of the identifiers handed out to each transaction as it is bound.
+ * <p>
+ * An identifier is made up of two primitive parts: a node ID that is constant for
+ * the lifetime of the generator and a sequence that must be unique amongst all
+ * transactions generated by it.  Implementations are called once per transaction
+ * from whichever thread is starting it, so they must be thread-safe and should
+ * avoid any shared locking.
+ *
+ * @see TransactionBindingSupport#setTransactionIdGenerator(TransactionIdGenerator)
+ * @see DefaultTransactionIdGenerator
+ *
+ * @author Ray Holder
+ */
+public interface TransactionIdGenerator
+{
+    /**
+     * @return Returns the node ID used to distinguish transactions generated by
+     *      this instance from those of other processes
+     */
+    long getNodeId();
+
+    /**
+     * @return Returns the next non-negative transaction sequence, unique for this generator
+     */
+    long nextTransactionId();
+}
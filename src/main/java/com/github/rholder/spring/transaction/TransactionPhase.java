@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+/**
+ * The points at which a {@link TransactionListener} is called back.
+ *
+ * @author Ray Holder
+ */
+public enum TransactionPhase
+{
+    /** {@link TransactionListener#beforeCommit(boolean)} */
+    BEFORE_COMMIT,
+    /** {@link TransactionListener#beforeCompletion()} */
+    BEFORE_COMPLETION,
+    /** {@link TransactionListener#afterCommit()} */
+    AFTER_COMMIT,
+    /** {@link TransactionListener#afterRollback()} */
+    AFTER_ROLLBACK
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A typed key for resources bound to the current transaction.
+ * <p>
+ * Each key is given a dense slot number when it is created and the transaction keeps
+ * resources bound against these keys in an array indexed by that slot, so a lookup
+ * costs an array access rather than a hash lookup.  Slots are never reused, so keys
+ * are intended to be created once and held in constants:
+ * <pre>
+ *    private static final TransactionResourceKey&lt;Set&lt;Long&gt;&gt; KEY_TOUCHED_IDS =
+ *            new TransactionResourceKey&lt;Set&lt;Long&gt;&gt;("touchedIds");
+ * </pre>
+ * or in long-lived objects, such as the Spring singletons that own them.  A transaction's
+ * slot array grows to the highest slot bound in it, so creating keys over and over, for
+ * example one per request, leaks slots and makes transactions bigger.  A warning is logged
+ * once {@link #SLOT_WARNING_THRESHOLD} keys have been created, and again each time the
+ * number doubles.
+ * Keys may also be passed to the <tt>Object</tt>-keyed methods of
+ * {@link TransactionBindingSupport} and {@link TransactionalResourceHelper}, in which
+ * case the same slot is used.
+ *
+ * @param <T>   the type of the resource bound against the key
+ *
+ * @see TransactionBindingSupport#getResource(TransactionResourceKey)
+ * @see TransactionBindingSupport#bindResource(TransactionResourceKey, Object)
+ *
+ * @author Ray Holder
+ */
+public final class TransactionResourceKey<T>
+{
+    /** the number of keys after which creating more is logged as a likely leak */
+    public static final int SLOT_WARNING_THRESHOLD = 1024;
+
+    private static Log logger = LogFactory.getLog(TransactionResourceKey.class);
+
+    private static final AtomicInteger nextSlot = new AtomicInteger(0);
+
+    private final String name;
+    private final int slot;
+
+    /**
+     * @param name  a descriptive name for the key, used only for logging
+     */
+    public TransactionResourceKey(String name)
+    {
+        this.name = name;
+        this.slot = nextSlot.getAndIncrement();
+        if (slot >= SLOT_WARNING_THRESHOLD && Integer.bitCount(slot) == 1)
+        {
+            logger.warn("Transaction resource keys are never reclaimed and should be held in constants " +
+                    "or long-lived objects: \n" +
+                    "   keys created: " + (slot + 1) + "\n" +
+                    "   latest key: " + name);
+        }
+    }
+
+    /**
+     * @return Returns the descriptive name of this key
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return Returns the index of this key's resource in a transaction's slot array
+     */
+    int getSlot()
+    {
+        return slot;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TransactionResourceKey[" + name + "#" + slot + "]";
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadState;
+
+/**
+ * A cache whose changes are private to a transaction until it commits.
+ * <p>
+ * Within a transaction:
+ * <ul>
+ *   <li>values found in the shared cache or loaded by the {@link Loader} are remembered
+ *       for the rest of the transaction</li>
+ *   <li>{@link #put(Object, Object)} and {@link #remove(Object)} are only visible to the
+ *       same transaction, which always reads its own writes</li>
+ * </ul>
+ * After commit the written values are put into the {@link SharedCache}, removed keys are
+ * invalidated and loaded values are added if no other transaction has changed their key
+ * in the meantime.  After rollback everything the transaction did is dropped.  The shared
+ * cache is only ever updated in <tt>afterCommit</tt>.
+ * <p>
+ * Outside of a transaction the shared cache is used directly.
+ *
+ * @param <K>   the key type
+ * @param <V>   the value type
+ *
+ * @author Ray Holder
+ */
+public class TransactionalCache<K, V>
+{
+    /**
+     * Reads values that are not yet cached, e.g. from the database
+     *
+     * @param <K>   the key type
+     * @param <V>   the value type
+     */
+    public interface Loader<K, V>
+    {
+        /**
+         * @param key   the key to load
+         * @return Returns the value, or <tt>null</tt> if there is none
+         */
+        V load(K key);
+    }
+
+    /** the number of invalidation stripes, a power of two */
+    private static final int STRIPES = 1024;
+
+    /** marks a key removed by the transaction */
+    private static final Object REMOVED = new Object();
+
+    /** each cache's view in the current transaction, by cache */
+    private static final TransactionResourceKey<Map<Object, Object>> KEY_TXN_CACHES =
+            new TransactionResourceKey<Map<Object, Object>>("TransactionalCache.txnCaches");
+
+    private final SharedCache<K, V> sharedCache;
+    private final Loader<K, V> loader;
+    /**
+     * Counts the invalidations of keys hashing to each stripe, so a committing transaction can
+     * tell whether a value it loaded may have gone stale before promoting it
+     */
+    private final AtomicLongArray invalidations;
+
+    /**
+     * @param sharedCache   the cache shared between transactions
+     * @param loader        reads values that are not cached, or <tt>null</tt> for no read-through
+     */
+    public TransactionalCache(SharedCache<K, V> sharedCache, Loader<K, V> loader)
+    {
+        this.sharedCache = sharedCache;
+        this.loader = loader;
+        this.invalidations = new AtomicLongArray(STRIPES);
+    }
+
+    /**
+     * @return Returns the cache shared between transactions
+     */
+    public SharedCache<K, V> getSharedCache()
+    {
+        return sharedCache;
+    }
+
+    /**
+     * Gets a value, looking in this transaction's changes, then the shared cache and finally
+     * the loader
+     *
+     * @param key   the key
+     * @return Returns the value, or <tt>null</tt> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key)
+    {
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            V value = sharedCache.get(key);
+            if (value == null && loader != null)
+            {
+                long stamp = invalidationStamp(key);
+                value = loader.load(key);
+                if (value != null)
+                {
+                    promote(key, value, stamp);
+                }
+            }
+            return value;
+        }
+        TxnCache txnCache = getTxnCache();
+        Object written = txnCache.writes.get(key);
+        if (written != null)
+        {
+            return written == REMOVED ? null : (V) written;
+        }
+        V value = txnCache.reads.get(key);
+        if (value != null)
+        {
+            return value;
+        }
+        value = sharedCache.get(key);
+        if (value != null)
+        {
+            txnCache.reads.put(key, value);
+            return value;
+        }
+        if (loader != null)
+        {
+            // stamp before loading, so an invalidation that races with the load is noticed
+            long stamp = invalidationStamp(key);
+            value = loader.load(key);
+            if (value != null)
+            {
+                txnCache.reads.put(key, value);
+                txnCache.loadStamps.put(key, stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Sets a value for the current transaction, to be put into the shared cache on commit.
+     * Rolling back a resource layer takes back the values set and removed in it.
+     *
+     * @param key   the key
+     * @param value the value, never <tt>null</tt>
+     * @throws IllegalStateException if called from the worker thread of a captured context
+     */
+    public void put(K key, V value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Null values are not cached, use remove() instead: " + key);
+        }
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            TransactionBindingSupport.checkNotCapturedWorker(this);
+            invalidate(key);
+            sharedCache.put(key, value);
+            return;
+        }
+        getTxnCache().write(key, value);
+    }
+
+    /**
+     * Removes a value for the current transaction, to be invalidated in the shared cache on commit
+     *
+     * @param key   the key
+     * @throws IllegalStateException if called from the worker thread of a captured context
+     */
+    public void remove(K key)
+    {
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            TransactionBindingSupport.checkNotCapturedWorker(this);
+            invalidate(key);
+            sharedCache.remove(key);
+            return;
+        }
+        getTxnCache().write(key, REMOVED);
+    }
+
+    /**
+     * Adds a loaded value to the shared cache, unless its key was invalidated since the stamp
+     * was taken.  The stamp is checked again once the value is in, as an invalidation between
+     * the first check and the put would otherwise leave the stale value cached; in that case
+     * the key is removed, at worst costing the invalidating transaction's value a reload.
+     *
+     * @param key   the key
+     * @param value the loaded value
+     * @param stamp the invalidation stamp taken before the value was loaded
+     */
+    private void promote(K key, V value, long stamp)
+    {
+        if (invalidationStamp(key) != stamp)
+        {
+            return;
+        }
+        sharedCache.putIfAbsent(key, value);
+        if (invalidationStamp(key) != stamp)
+        {
+            sharedCache.remove(key);
+        }
+    }
+
+    private long invalidationStamp(K key)
+    {
+        return invalidations.get(stripe(key));
+    }
+
+    private void invalidate(K key)
+    {
+        invalidations.incrementAndGet(stripe(key));
+    }
+
+    private static int stripe(Object key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    /**
+     * @return Returns the current transaction's view of the cache, binding it if necessary
+     */
+    private TxnCache getTxnCache()
+    {
+        TxnCache txnCache = InstanceResources.get(KEY_TXN_CACHES, this);
+        if (txnCache == null)
+        {
+            txnCache = new TxnCache();
+            InstanceResources.bind(KEY_TXN_CACHES, this, txnCache);
+            TransactionBindingSupport.bindListener(txnCache);
+        }
+        return txnCache;
+    }
+
+    /**
+     * One transaction's view of the cache, which publishes its changes on commit
+     */
+    private class TxnCache extends TransactionListenerAdapter
+    {
+        private final Map<K, Object> writes = new HashMap<K, Object>(17);
+        private final Map<K, V> reads = new HashMap<K, V>(17);
+        private final Map<K, Long> loadStamps = new HashMap<K, Long>(17);
+
+        /**
+         * Records a value or removal, to be undone if a resource layer it was made in is rolled back
+         */
+        private void write(final K key, Object value)
+        {
+            final Object previous = writes.put(key, value);
+            ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+            if (journal != null)
+            {
+                journal.record(new ResourceJournal.Undo()
+                {
+                    public void undo()
+                    {
+                        if (previous == null)
+                        {
+                            writes.remove(key);
+                        }
+                        else
+                        {
+                            writes.put(key, previous);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void afterCommit()
+        {
+            for (Map.Entry<K, Object> entry : writes.entrySet())
+            {
+                K key = entry.getKey();
+                invalidate(key);
+                if (entry.getValue() == REMOVED)
+                {
+                    sharedCache.remove(key);
+                }
+                else
+                {
+                    sharedCache.put(key, (V) entry.getValue());
+                }
+            }
+            for (Map.Entry<K, Long> entry : loadStamps.entrySet())
+            {
+                K key = entry.getKey();
+                if (!writes.containsKey(key))
+                {
+                    promote(key, reads.get(key), entry.getValue().longValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadState;
+
+/**
+ * A statistic, such as rows written or bytes uploaded, that only counts what
+ * committed transactions did.
+ * <p>
+ * Within a transaction {@link #add(long)} updates a plain <tt>long</tt> bound to that
+ * transaction, so the hot path never touches shared state.  The transaction's total is
+ * added to the global count in <tt>afterCommit</tt> and dropped if it rolls back.  The
+ * global count is spread across padded stripes chosen by thread, in the manner of a
+ * <tt>LongAdder</tt>, so that transactions committing at the same time rarely contend
+ * on the same cache line.
+ * <p>
+ * Outside of a transaction additions go straight to the global count.
+ *
+ * @author Ray Holder
+ */
+public class TransactionalCounter
+{
+    /** the number of longs between stripes, so each stripe has a cache line to itself */
+    private static final int PADDING = 8;
+
+    /** each counter's additions in the current transaction, by counter */
+    private static final TransactionResourceKey<Map<Object, Object>> KEY_PENDING_COUNTS =
+            new TransactionResourceKey<Map<Object, Object>>("TransactionalCounter.pendingCounts");
+
+    private final String name;
+    private final AtomicLongArray stripes;
+    private final int stripeMask;
+
+    /**
+     * @param name  the name of the statistic, used in logging and {@link #toString()}
+     */
+    public TransactionalCounter(String name)
+    {
+        this.name = name;
+        int stripeCount = 1;
+        while (stripeCount < Runtime.getRuntime().availableProcessors() * 2)
+        {
+            stripeCount <<= 1;
+        }
+        this.stripes = new AtomicLongArray(stripeCount * PADDING);
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * @return Returns the name of the statistic
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Adds one to the count for the current transaction
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * Adds to the count for the current transaction, to be published when it commits.  Rolling
+     * back a resource layer takes back what was added in it.
+     *
+     * @param delta the amount to add
+     * @throws IllegalStateException if called from the worker thread of a captured context
+     */
+    public void add(long delta)
+    {
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            TransactionBindingSupport.checkNotCapturedWorker(this);
+            publish(delta);
+            return;
+        }
+        PendingCount pending = InstanceResources.get(KEY_PENDING_COUNTS, this);
+        if (pending == null)
+        {
+            pending = new PendingCount();
+            InstanceResources.bind(KEY_PENDING_COUNTS, this, pending);
+            TransactionBindingSupport.bindListener(pending);
+        }
+        pending.count += delta;
+        ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+        if (journal != null)
+        {
+            final PendingCount added = pending;
+            final long amount = delta;
+            journal.record(new ResourceJournal.Undo()
+            {
+                public void undo()
+                {
+                    added.count -= amount;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Returns the amount added by the current transaction that has not been published
+     *      yet, <tt>0</tt> outside of a transaction
+     */
+    public long getPending()
+    {
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            return 0;
+        }
+        PendingCount pending = InstanceResources.get(KEY_PENDING_COUNTS, this);
+        return pending == null ? 0 : pending.count;
+    }
+
+    /**
+     * Sums the stripes.  Commits that happen during the sum may or may not be included.
+     *
+     * @return Returns the total published by committed transactions
+     */
+    public long get()
+    {
+        long sum = 0;
+        for (int i = 0; i < stripes.length(); i += PADDING)
+        {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the global count back to zero.  Commits that happen during the reset may or may not
+     * be cleared.
+     *
+     * @return Returns the total that was cleared
+     */
+    public long reset()
+    {
+        long sum = 0;
+        for (int i = 0; i < stripes.length(); i += PADDING)
+        {
+            sum += stripes.getAndSet(i, 0);
+        }
+        return sum;
+    }
+
+    private void publish(long delta)
+    {
+        // thread ids are handed out sequentially, so concurrent committers spread over the stripes
+        long threadId = Thread.currentThread().getId();
+        int stripe = ((int) (threadId ^ (threadId >>> 32))) & stripeMask;
+        stripes.addAndGet(stripe * PADDING, delta);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TransactionalCounter[" + name + "=" + get() + "]";
+    }
+
+    /**
+     * One transaction's additions, published on commit
+     */
+    private class PendingCount extends TransactionListenerAdapter
+    {
+        private long count;
+
+        @Override
+        public void afterCommit()
+        {
+            if (count != 0)
+            {
+                publish(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.Ordered;
+
+import com.github.rholder.spring.transaction.OutboxJournal.Entry;
+import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadState;
+
+/**
+ * Publishes events for committed transactions only, without losing them if the JVM stops
+ * between the commit and the <tt>afterCommit</tt> callbacks.
+ * <p>
+ * Events passed to {@link #publish(byte[])} are held by the transaction until it is about to
+ * commit.  In <tt>beforeCommit</tt> they are appended to a memory-mapped, checksummed journal
+ * and forced to disk; if that fails, the transaction rolls back.  In <tt>afterCommit</tt>
+ * they are marked committed and handed to a relay thread, which passes each to the
+ * {@link EventHandler} in order and marks it delivered once the handler returns.  A rolled back
+ * transaction marks its events aborted.  Events published outside of a transaction, or by an
+ * <tt>afterCommit</tt> listener once the transaction's events have been committed, are
+ * journaled and relayed straight away.
+ * <p>
+ * On construction the journal is replayed: committed events that were never delivered are
+ * relayed again, so delivery is at least once.  Events still only prepared belong to a
+ * transaction that stopped between <tt>beforeCommit</tt> and <tt>afterCommit</tt>, which may
+ * or may not have committed.  They are relayed if the {@link InDoubtResolver} says the
+ * transaction committed, and are otherwise dropped with a warning.  Unless another resolver is
+ * given, {@link #DELIVER_IN_DOUBT} relays them all.
+ * <p>
+ * Concurrent commits share their disk forces, and the handler reads each payload directly from
+ * the mapped journal.  Committed and delivered marks are forced along with the next commit, so
+ * after an operating system crash a delivered event may be delivered again and a committed one
+ * may be in doubt.
+ *
+ * @author Ray Holder
+ */
+public class TransactionalOutbox implements DisposableBean
+{
+    /**
+     * Receives the events of committed transactions, one at a time and in journal order
+     */
+    public interface EventHandler
+    {
+        /**
+         * Delivers an event.  If this throws, the event is offered again after the retry delay.
+         *
+         * @param transactionId the ID of the transaction that published the event, or <tt>null</tt>
+         *      if it was published outside of a transaction
+         * @param payload       a read-only view of the event, valid only for the duration of the call
+         */
+        void handleEvent(String transactionId, ByteBuffer payload) throws Exception;
+    }
+
+    /**
+     * Decides the fate of events whose transaction stopped part way through committing,
+     * typically by looking for something the transaction wrote to the database
+     */
+    public interface InDoubtResolver
+    {
+        /**
+         * @param transactionId the ID of the transaction, as given by {@link TransactionBindingSupport#getTransactionId()}
+         * @return Returns <tt>true</tt> if the transaction committed and its events should be delivered
+         */
+        boolean isCommitted(String transactionId);
+    }
+
+    /**
+     * Treats every transaction left in doubt as committed.  No event of a committed transaction
+     * is lost, but the events of a transaction whose commit failed after they were journaled
+     * are delivered as well.
+     */
+    public static final InDoubtResolver DELIVER_IN_DOUBT = new InDoubtResolver()
+    {
+        public boolean isCommitted(String transactionId)
+        {
+            return true;
+        }
+    };
+
+    /** the size of each journal segment file used by the default constructor */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** the delay before retrying a failed delivery used by the default constructor */
+    public static final long DEFAULT_RETRY_DELAY_MS = 1000L;
+
+    /** each outbox's events in the current transaction, by outbox */
+    private static final TransactionResourceKey<Map<Object, Object>> KEY_TXN_EVENTS =
+            new TransactionResourceKey<Map<Object, Object>>("TransactionalOutbox.txnEvents");
+
+    private static Log logger = LogFactory.getLog(TransactionalOutbox.class);
+
+    private final OutboxJournal journal;
+    private final EventHandler handler;
+    private final long retryDelayMs;
+    private final BlockingQueue<Entry> relayQueue = new LinkedBlockingQueue<Entry>();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final Thread relay;
+    private final int recoveredCount;
+    private volatile boolean stopped;
+
+    /**
+     * Creates an outbox that delivers events left in doubt
+     *
+     * @param directory where to keep the journal, created if necessary
+     * @param handler   receives the events of committed transactions
+     *
+     * @see #DELIVER_IN_DOUBT
+     */
+    public TransactionalOutbox(File directory, EventHandler handler)
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE, handler, DELIVER_IN_DOUBT, DEFAULT_RETRY_DELAY_MS);
+    }
+
+    /**
+     * @param directory     where to keep the journal, created if necessary
+     * @param segmentSize   the size of each journal file, which limits the size of an event
+     * @param handler       receives the events of committed transactions
+     * @param resolver      decides whether to deliver events left in doubt, such as {@link #DELIVER_IN_DOUBT}
+     * @param retryDelayMs  the time to wait before offering an event again after the handler fails
+     */
+    public TransactionalOutbox(File directory, int segmentSize, EventHandler handler, InDoubtResolver resolver, long retryDelayMs)
+    {
+        if (resolver == null)
+        {
+            throw new IllegalArgumentException("An in-doubt resolver is required");
+        }
+        this.journal = new OutboxJournal(directory, segmentSize);
+        this.handler = handler;
+        this.retryDelayMs = retryDelayMs;
+        this.recoveredCount = recover(resolver);
+        this.relay = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                relay();
+            }
+        }, "txn-outbox-relay");
+        this.relay.setDaemon(true);
+        this.relay.start();
+    }
+
+    private int recover(InDoubtResolver resolver)
+    {
+        int recovered = 0;
+        for (Entry entry : journal.recover())
+        {
+            if (entry.getRecoveredState() == OutboxJournal.PREPARED)
+            {
+                if (!resolver.isCommitted(entry.getTransactionId()))
+                {
+                    logger.warn("Dropping outbox event of a transaction in doubt: \n" +
+                            "   transaction: " + entry.getTransactionId() + "\n" +
+                            "   sequence: " + entry.getSequence());
+                    journal.mark(entry, OutboxJournal.ABORTED);
+                    continue;
+                }
+                journal.mark(entry, OutboxJournal.COMMITTED);
+            }
+            relayQueue.add(entry);
+            recovered++;
+        }
+        if (recovered > 0 && logger.isInfoEnabled())
+        {
+            logger.info("Replaying outbox events: \n" +
+                    "   count: " + recovered);
+        }
+        return recovered;
+    }
+
+    /**
+     * Publishes an event once the current transaction commits, or straight away if there is no
+     * transaction.  The payload is copied into the journal when the transaction commits, so the
+     * array must not be changed before then.  An event published in a resource layer that is
+     * rolled back is dropped.
+     *
+     * @param payload   the event
+     * @throws IllegalStateException if the outbox has been destroyed, or if called from the
+     *      worker thread of a captured context
+     */
+    public void publish(byte[] payload)
+    {
+        if (stopped)
+        {
+            throw new IllegalStateException("Outbox has been destroyed");
+        }
+        if (TransactionBindingSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            TransactionBindingSupport.checkNotCapturedWorker(this);
+            publishCommitted(null, payload);
+            return;
+        }
+        TxnEvents events = InstanceResources.get(KEY_TXN_EVENTS, this);
+        if (events == null)
+        {
+            events = new TxnEvents(TransactionBindingSupport.getTransactionId());
+            InstanceResources.bind(KEY_TXN_EVENTS, this, events);
+            TransactionBindingSupport.bindListener(events);
+        }
+        events.add(payload);
+    }
+
+    /**
+     * Journals an event as committed and relays it straight away
+     */
+    private void publishCommitted(String transactionId, byte[] payload)
+    {
+        Entry entry = journal.append(transactionId, payload);
+        journal.sync(entry.getSequence());
+        journal.mark(entry, OutboxJournal.COMMITTED);
+        relayQueue.add(entry);
+    }
+
+    private void relay()
+    {
+        try
+        {
+            while (true)
+            {
+                Entry entry = relayQueue.take();
+                deliver(entry);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // stopping, anything undelivered will be replayed
+        }
+    }
+
+    private void deliver(Entry entry) throws InterruptedException
+    {
+        while (true)
+        {
+            try
+            {
+                handler.handleEvent(entry.getTransactionId(), journal.payload(entry));
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                logger.error("Outbox event delivery failed, will retry: \n" +
+                        "   transaction: " + entry.getTransactionId() + "\n" +
+                        "   sequence: " + entry.getSequence(),
+                        e);
+                Thread.sleep(retryDelayMs);
+                if (stopped)
+                {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        journal.mark(entry, OutboxJournal.DELIVERED);
+        deliveredCount.incrementAndGet();
+    }
+
+    /**
+     * @return Returns the number of committed events waiting to be delivered
+     */
+    public int getPendingCount()
+    {
+        return relayQueue.size();
+    }
+
+    /**
+     * @return Returns the number of events delivered since the outbox was created
+     */
+    public long getDeliveredCount()
+    {
+        return deliveredCount.get();
+    }
+
+    /**
+     * @return Returns the number of events found in the journal on construction that are being replayed
+     */
+    public int getRecoveredCount()
+    {
+        return recoveredCount;
+    }
+
+    /**
+     * @return Returns the number of journal files still holding undelivered events
+     */
+    int getSegmentCount()
+    {
+        return journal.getSegmentCount();
+    }
+
+    /**
+     * Stops the relay and closes the journal.  Events not yet delivered are replayed by the
+     * next outbox created on the same directory.
+     */
+    public void destroy()
+    {
+        stopped = true;
+        relay.interrupt();
+        try
+        {
+            relay.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    /**
+     * One transaction's events, journaled as the last <tt>beforeCommit</tt> callback of its wave
+     */
+    private class TxnEvents extends TransactionListenerAdapter implements Ordered
+    {
+        private final String transactionId;
+        private final List<byte[]> payloads = new ArrayList<byte[]>(4);
+        private final List<Entry> entries = new ArrayList<Entry>(4);
+        private boolean prepared;
+        private boolean committed;
+        private boolean rolledBack;
+
+        private TxnEvents(String transactionId)
+        {
+            this.transactionId = transactionId;
+        }
+
+        private void add(byte[] payload)
+        {
+            if (committed)
+            {
+                // published by an afterCommit listener called after this one, so already committed
+                publishCommitted(transactionId, payload);
+            }
+            else if (rolledBack)
+            {
+                throw new IllegalStateException("Transaction has rolled back, event not published: " + transactionId);
+            }
+            else if (prepared)
+            {
+                // published by a listener called after this one, so journal it now
+                Entry entry = journal.append(transactionId, payload);
+                entries.add(entry);
+                journal.sync(entry.getSequence());
+            }
+            else
+            {
+                payloads.add(payload);
+                ResourceJournal journal = TransactionBindingSupport.getRecordingJournal();
+                if (journal != null)
+                {
+                    journal.record(new ResourceJournal.Undo()
+                    {
+                        public void undo()
+                        {
+                            if (!prepared)
+                            {
+                                payloads.remove(payloads.size() - 1);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        public int getOrder()
+        {
+            return Ordered.LOWEST_PRECEDENCE;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly)
+        {
+            prepared = true;
+            if (payloads.isEmpty())
+            {
+                return;
+            }
+            for (byte[] payload : payloads)
+            {
+                entries.add(journal.append(transactionId, payload));
+            }
+            payloads.clear();
+            journal.sync(entries.get(entries.size() - 1).getSequence());
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            committed = true;
+            for (Entry entry : entries)
+            {
+                journal.mark(entry, OutboxJournal.COMMITTED);
+                relayQueue.add(entry);
+            }
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            rolledBack = true;
+            for (Entry entry : entries)
+            {
+                journal.mark(entry, OutboxJournal.ABORTED);
+            }
+        }
+    }
+}
@@ -25,6 +25,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Helper class that will look up or create transactional resources.
@@ -36,6 +45,23 @@ import java.util.TreeSet;
  */
 public abstract class TransactionalResourceHelper
 {
+    /** resource key for the current transaction's JDBC write buffers */
+    private static final TransactionResourceKey<JdbcWriteBuffer.Buffers> KEY_WRITE_BUFFERS =
+        new TransactionResourceKey<JdbcWriteBuffer.Buffers>("TransactionalResourceHelper.writeBuffers");
+    /** resource key for the current transaction's memoized values */
+    private static final TransactionResourceKey<MemoTable> KEY_MEMOS =
+        new TransactionResourceKey<MemoTable>("TransactionalResourceHelper.memos");
+    
+    /** the most memoization keys that hit and miss counts are kept for */
+    public static final int MAX_MEMO_STATISTICS = 1000;
+    
+    private static Log logger = LogFactory.getLog(TransactionalResourceHelper.class);
+    
+    /** <tt>true</tt> if memoization hits and misses are counted, off unless enabled */
+    private static volatile boolean memoStatisticsEnabled;
+    /** hit and miss counts for each memoization key, across all transactions */
+    private static final ConcurrentMap<Object, MemoTable.Statistics> memoStatistics = new ConcurrentHashMap<Object, MemoTable.Statistics>();
+    
     /**
      * Support method to retrieve or create and bind a <tt>HashMap</tt> to the current transaction.
      * 
@@ -46,7 +72,7 @@ public abstract class TransactionalResourceHelper
      */
     public static final <K,V> Map<K,V> getMap(Object resourceKey)
     {
-        Map<K,V> map = TransactionBindingSupport.<Map<K,V>>getResource(resourceKey);
+        Map<K,V> map = TransactionBindingSupport.<Map<K,V>>getLayeredResource(resourceKey);
         if (map == null)
         {
             map = new HashMap<K, V>(29);
@@ -64,7 +90,7 @@ public abstract class TransactionalResourceHelper
      */
     public static final <V> Set<V> getSet(Object resourceKey)
     {
-        Set<V> set = TransactionBindingSupport.<Set<V>>getResource(resourceKey);
+        Set<V> set = TransactionBindingSupport.<Set<V>>getLayeredResource(resourceKey);
         if (set == null)
         {
             set = new HashSet<V>(29);
@@ -82,10 +108,10 @@ public abstract class TransactionalResourceHelper
      */
     public static final <V> TreeSet<V> getTreeSet(Object resourceKey)
     {
-        TreeSet<V> set = TransactionBindingSupport.<TreeSet<V>>getResource(resourceKey);
+        TreeSet<V> set = TransactionBindingSupport.<TreeSet<V>>getLayeredResource(resourceKey);
         if (set == null)
         {
-            set = new TreeSet<V>();
+            set = new LayeredCollections.LayeredTreeSet<V>();
             TransactionBindingSupport.bindResource(resourceKey, set);
         }
         return set;
@@ -100,7 +126,7 @@ public abstract class TransactionalResourceHelper
      */
     public static final <V> List<V> getList(Object resourceKey)
     {
-        List<V> list = TransactionBindingSupport.<List<V>>getResource(resourceKey);
+        List<V> list = TransactionBindingSupport.<List<V>>getLayeredResource(resourceKey);
         if (list == null)
         {
             list = new ArrayList<V>(29);
@@ -108,7 +134,255 @@ public abstract class TransactionalResourceHelper
         }
         return list;
     }
+
+    /**
+     * Support method to retrieve or create and bind a {@link LongHashSet} to the current transaction.
+     * Unlike {@link #getSet(Object)}, the values are held as primitives and never boxed.
+     *
+     * @param resourceKey   the key under which the resource will be stored
+     * @return              Returns an previously-bound or else a newly-bound <tt>LongHashSet</tt>
+     */
+    public static final LongHashSet getLongSet(Object resourceKey)
+    {
+        LongHashSet set = TransactionBindingSupport.<LongHashSet>getLayeredResource(resourceKey);
+        if (set == null)
+        {
+            set = new LongHashSet(29);
+            TransactionBindingSupport.bindResource(resourceKey, set);
+        }
+        return set;
+    }
+
+    /**
+     * Support method to retrieve or create and bind a {@link LongArrayList} to the current transaction.
+     * Unlike {@link #getList(Object)}, the values are held as primitives and never boxed.
+     *
+     * @param resourceKey   the key under which the resource will be stored
+     * @return              Returns an previously-bound or else a newly-bound <tt>LongArrayList</tt>
+     */
+    public static final LongArrayList getLongList(Object resourceKey)
+    {
+        LongArrayList list = TransactionBindingSupport.<LongArrayList>getLayeredResource(resourceKey);
+        if (list == null)
+        {
+            list = new LongArrayList(29);
+            TransactionBindingSupport.bindResource(resourceKey, list);
+        }
+        return list;
+    }
+
+    /**
+     * Support method to retrieve or create and bind a {@link LongObjectHashMap} to the current
+     * transaction.  Unlike {@link #getMap(Object)}, the keys are held as primitives and no entry
+     * objects are created.
+     *
+     * @param <V>           the map value type
+     * @param resourceKey   the key under which the resource will be stored
+     * @return              Returns an previously-bound or else a newly-bound <tt>LongObjectHashMap</tt>
+     */
+    public static final <V> LongObjectHashMap<V> getLongToObjectMap(Object resourceKey)
+    {
+        LongObjectHashMap<V> map = TransactionBindingSupport.<LongObjectHashMap<V>>getLayeredResource(resourceKey);
+        if (map == null)
+        {
+            map = new LongObjectHashMap<V>(29);
+            TransactionBindingSupport.bindResource(resourceKey, map);
+        }
+        return map;
+    }
+
+    /**
+     * Support method to retrieve or create and bind an {@link IntCounterMap} to the current
+     * transaction, for counting keys without boxing the counts.
+     *
+     * @param <K>           the counted key type
+     * @param resourceKey   the key under which the resource will be stored
+     * @return              Returns an previously-bound or else a newly-bound <tt>IntCounterMap</tt>
+     */
+    public static final <K> IntCounterMap<K> getIntCounterMap(Object resourceKey)
+    {
+        IntCounterMap<K> map = TransactionBindingSupport.<IntCounterMap<K>>getLayeredResource(resourceKey);
+        if (map == null)
+        {
+            map = new IntCounterMap<K>(29);
+            TransactionBindingSupport.bindResource(resourceKey, map);
+        }
+        return map;
+    }
+
+    /**
+     * Support method to retrieve or create and bind a {@link SpillableList} to the current
+     * transaction.  Unlike {@link #getList(Object)}, the list keeps at most the given number of
+     * serialized bytes on the heap and spills the rest to a temporary file, which is deleted
+     * once the transaction has completed and its listeners have been called.
+     *
+     * @param <V>           the list value type
+     * @param resourceKey   the key under which the resource will be stored
+     * @param codec         writes and reads the values, used if the list is created
+     * @param maxHeapBytes  the most bytes to keep on the heap, used if the list is created
+     * @return              Returns an previously-bound or else a newly-bound <tt>SpillableList</tt>
+     */
+    public static final <V> SpillableList<V> getSpillableList(Object resourceKey, SpillableList.Codec<V> codec, int maxHeapBytes)
+    {
+        SpillableList<V> list = TransactionBindingSupport.<SpillableList<V>>getLayeredResource(resourceKey);
+        if (list == null)
+        {
+            list = new SpillableList<V>(codec, maxHeapBytes);
+            TransactionBindingSupport.bindResource(resourceKey, list);
+            TransactionSynchronizationManager.registerSynchronization(new SpillableList.Closer(list));
+        }
+        return list;
+    }
+
+    /**
+     * Computes a value at most once in the current transaction.  The first call for a key runs
+     * the computation and remembers its result, including <tt>null</tt>; later calls in the
+     * same transaction return the remembered result without running it.
+     * <p>
+     * A computation that fails is not remembered, so the next call tries again.  Its runtime
+     * exceptions are rethrown as they are and checked exceptions are wrapped.  If the computation
+     * asks for the key it is computing, an <tt>IllegalStateException</tt> is thrown rather than
+     * computing it twice.  If a resource layer is rolled back, values memoized within it are
+     * forgotten.
+     * <p>
+     * Tasks running for a {@link TransactionBindingSupport#captureContext() captured context} share
+     * the transaction's memoized values.  A thread that asks for a value another thread is still
+     * computing waits for it rather than computing it again.  Values memoized on those worker
+     * threads are not forgotten when a resource layer is rolled back, as layers belong to the
+     * owning thread.
+     * 
+     * @param <V>           the value type
+     * @param resourceKey   the key under which the value is remembered, never <tt>null</tt>
+     * @param computation   computes the value if it is not yet remembered
+     * @return              Returns the remembered or newly computed value
+     * 
+     * @see #setMemoStatisticsEnabled(boolean)
+     */
+    public static final <V> V memoize(Object resourceKey, Callable<V> computation)
+    {
+        if (resourceKey == null)
+        {
+            throw new IllegalArgumentException("A memoization key is required");
+        }
+        return TransactionalResourceHelper.<V>computeMemo(resourceKey, resourceKey, computation);
+    }
     
+    /**
+     * Computes a value at most once per parameter in the current transaction, as
+     * {@link #memoize(Object, Callable)} does.  The hits and misses for all parameters are
+     * counted against the one key.
+     * 
+     * @param <V>           the value type
+     * @param resourceKey   the key under which the values are remembered, never <tt>null</tt>
+     * @param parameter     what the value is computed for, e.g. a user ID
+     * @param computation   computes the value for the parameter if it is not yet remembered
+     * @return              Returns the remembered or newly computed value
+     */
+    public static final <V> V memoize(Object resourceKey, Object parameter, Callable<V> computation)
+    {
+        if (resourceKey == null)
+        {
+            throw new IllegalArgumentException("A memoization key is required");
+        }
+        return TransactionalResourceHelper.<V>computeMemo(resourceKey, new MemoKey(resourceKey, parameter), computation);
+    }
+    
+    private static <V> V computeMemo(Object resourceKey, Object memoKey, Callable<V> computation)
+    {
+        MemoTable memos = TransactionBindingSupport.<MemoTable>getLayeredResource(KEY_MEMOS);
+        if (memos == null)
+        {
+            // worker threads may create the table too, so it is bound in one step
+            memos = TransactionBindingSupport.bindResourceIfAbsent(KEY_MEMOS, new MemoTable());
+        }
+        return memos.compute(memoKey, computation, memoStatisticsEnabled ? getMemoStatistics(resourceKey) : null);
+    }
+    
+    /**
+     * @return Returns the counts for the key, or <tt>null</tt> if too many keys are counted already
+     */
+    private static MemoTable.Statistics getMemoStatistics(Object resourceKey)
+    {
+        MemoTable.Statistics statistics = memoStatistics.get(resourceKey);
+        if (statistics == null)
+        {
+            if (memoStatistics.size() >= MAX_MEMO_STATISTICS)
+            {
+                return null;
+            }
+            statistics = new MemoTable.Statistics();
+            MemoTable.Statistics existing = memoStatistics.putIfAbsent(resourceKey, statistics);
+            if (existing != null)
+            {
+                statistics = existing;
+            }
+            else if (memoStatistics.size() == MAX_MEMO_STATISTICS)
+            {
+                logger.warn("Memoization statistics are kept for no more keys, which should be constants: \n" +
+                        "   keys: " + MAX_MEMO_STATISTICS + "\n" +
+                        "   latest key: " + resourceKey);
+            }
+        }
+        return statistics;
+    }
+    
+    /**
+     * Turns the counting of memoization hits and misses on or off.  Counting is off by default,
+     * as it costs a lookup and a shared counter update on every call.  Counts are kept for up to
+     * {@link #MAX_MEMO_STATISTICS} keys, so keys should be constants rather than built per call.
+     * 
+     * @param enabled   <tt>true</tt> to count hits and misses from now on
+     * 
+     * @see #getMemoHitCount(Object)
+     */
+    public static final void setMemoStatisticsEnabled(boolean enabled)
+    {
+        memoStatisticsEnabled = enabled;
+    }
+    
+    /**
+     * @param resourceKey   the key given to {@link #memoize(Object, Callable)}
+     * @return Returns the number of calls that found the value already computed, while counting was enabled
+     */
+    public static final long getMemoHitCount(Object resourceKey)
+    {
+        MemoTable.Statistics statistics = memoStatistics.get(resourceKey);
+        return statistics == null ? 0L : statistics.getHits();
+    }
+    
+    /**
+     * @param resourceKey   the key given to {@link #memoize(Object, Callable)}
+     * @return Returns the number of calls that ran the computation, while counting was enabled
+     */
+    public static final long getMemoMissCount(Object resourceKey)
+    {
+        MemoTable.Statistics statistics = memoStatistics.get(resourceKey);
+        return statistics == null ? 0L : statistics.getMisses();
+    }
+    
+    /**
+     * @return Returns the hit and miss counts of every key that has been memoized while counting
+     *      was enabled, as <tt>{hits, misses}</tt>
+     */
+    public static final Map<Object, long[]> getMemoStatistics()
+    {
+        Map<Object, long[]> snapshot = new HashMap<Object, long[]>(memoStatistics.size() * 2);
+        for (Map.Entry<Object, MemoTable.Statistics> entry : memoStatistics.entrySet())
+        {
+            MemoTable.Statistics statistics = entry.getValue();
+            snapshot.put(entry.getKey(), new long[] {statistics.getHits(), statistics.getMisses()});
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Forgets the hit and miss counts of all keys
+     */
+    public static final void resetMemoStatistics()
+    {
+        memoStatistics.clear();
+    }
+
     /**
      * Support method to set a boolean (true) value in the current transaction.
      * @param resourceKey   the key under which the resource will be stored
@@ -156,4 +430,94 @@ public abstract class TransactionalResourceHelper
             return true;
         }
     }
+    
+    /**
+     * Support method to retrieve or create and bind a {@link JdbcWriteBuffer} for a statement to
+     * the current transaction, using the {@link JdbcWriteBuffer#DEFAULT_BATCH_SIZE default batch size}.
+     * 
+     * @param dataSource    the data source the transaction is using
+     * @param sql           the statement to buffer
+     * @return              Returns the previously-bound or newly-bound buffer for the statement
+     */
+    public static final JdbcWriteBuffer getWriteBuffer(DataSource dataSource, String sql)
+    {
+        return getWriteBuffer(dataSource, sql, JdbcWriteBuffer.DEFAULT_BATCH_SIZE);
+    }
+    
+    /**
+     * Support method to retrieve or create and bind a {@link JdbcWriteBuffer} for a statement to
+     * the current transaction.  The buffer is flushed before the transaction commits and discarded
+     * if it rolls back.
+     * 
+     * @param dataSource    the data source the transaction is using
+     * @param sql           the statement to buffer
+     * @param batchSize     the number of parameter sets per JDBC batch, used if the buffer is created
+     * @return              Returns the previously-bound or newly-bound buffer for the statement
+     */
+    public static final JdbcWriteBuffer getWriteBuffer(DataSource dataSource, String sql, int batchSize)
+    {
+        JdbcWriteBuffer.Buffers buffers = TransactionBindingSupport.getResource(KEY_WRITE_BUFFERS);
+        if (buffers == null)
+        {
+            buffers = new JdbcWriteBuffer.Buffers();
+            TransactionBindingSupport.bindResource(KEY_WRITE_BUFFERS, buffers);
+        }
+        return buffers.getBuffer(dataSource, sql, batchSize);
+    }
+    
+    /**
+     * Writes everything buffered by {@link #getWriteBuffer(DataSource, String) write buffers} in the
+     * current transaction, so that queries will see the buffered rows.
+     */
+    public static final void flushWriteBuffers()
+    {
+        JdbcWriteBuffer.Buffers buffers = TransactionBindingSupport.getResource(KEY_WRITE_BUFFERS);
+        if (buffers != null)
+        {
+            buffers.flushAll();
+        }
+    }
+    
+    /**
+     * The key of a value memoized for a parameter
+     */
+    private static final class MemoKey
+    {
+        private final Object resourceKey;
+        private final Object parameter;
+        
+        private MemoKey(Object resourceKey, Object parameter)
+        {
+            this.resourceKey = resourceKey;
+            this.parameter = parameter;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof MemoKey))
+            {
+                return false;
+            }
+            MemoKey that = (MemoKey) obj;
+            return resourceKey.equals(that.resourceKey)
+                    && (parameter == null ? that.parameter == null : parameter.equals(that.parameter));
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return resourceKey.hashCode() * 31 + (parameter == null ? 0 : parameter.hashCode());
+        }
+        
+        @Override
+        public String toString()
+        {
+            return resourceKey + "(" + parameter + ")";
+        }
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * Allocation budgets for the hot paths of the binding support, measured with the
+ * per-thread allocation counter of the HotSpot <tt>ThreadMXBean</tt>.
+ * <p>
+ * Each operation is repeated enough times to warm it up before it is measured, so the
+ * budgets are for steady state.  Reading and rebinding resources in an existing
+ * transaction, and reading its ID, must not allocate at all.  The tests are skipped on
+ * JVMs without the counter.
+ * 
+ * @author Ray Holder
+ */
+public class TransactionBindingAllocationTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int MEASURED = 10000;
+    
+    /** bytes per begin/commit with one listener, with headroom over the 1.4KB it takes today */
+    private static final long BEGIN_COMMIT_BUDGET = 2048;
+    
+    private static final String KEY = "allocation.key";
+    private static final TransactionResourceKey<Object> TYPED_KEY = new TransactionResourceKey<Object>("allocation.typed");
+    
+    private com.sun.management.ThreadMXBean threadBean;
+    private PlatformTransactionManager transactionManager;
+    private TransactionStatus status;
+    
+    @Before
+    public void before() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        transactionManager = new StubTransactionManager();
+    }
+    
+    @After
+    public void after() {
+        if (status != null && !status.isCompleted()) {
+            transactionManager.rollback(status);
+        }
+    }
+    
+    @Test
+    public void testGetResource() {
+        beginWithResources();
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.getResource(KEY);
+            }
+        }), 0);
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.getResource(TYPED_KEY);
+            }
+        }), 0);
+    }
+    
+    @Test
+    public void testBindResource() {
+        beginWithResources();
+        final Object resource = new Object();
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.bindResource(KEY, resource);
+            }
+        }), 0);
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.bindResource(TYPED_KEY, resource);
+            }
+        }), 0);
+    }
+    
+    @Test
+    public void testGetTransactionId() {
+        beginWithResources();
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.getTransactionId();
+            }
+        }), 0);
+        Assert.assertEquals(0, measure(new Operation() {
+            public void run() {
+                TransactionBindingSupport.getTransactionIdAsLong();
+            }
+        }), 0);
+    }
+    
+    @Test
+    public void testBeginCommitWithListener() {
+        final TransactionDefinition definition = new DefaultTransactionDefinition();
+        final TransactionListener listener = new TransactionListenerAdapter() {
+        };
+        double bytes = measure(new Operation() {
+            public void run() {
+                TransactionStatus txn = transactionManager.getTransaction(definition);
+                TransactionBindingSupport.bindListener(listener);
+                transactionManager.commit(txn);
+            }
+        });
+        Assert.assertTrue("Begin/commit allocated " + bytes + " bytes, over the budget of " + BEGIN_COMMIT_BUDGET,
+                bytes <= BEGIN_COMMIT_BUDGET);
+    }
+    
+    /**
+     * Begins a transaction with the test resources bound, as it would be on the hot path
+     */
+    private void beginWithResources() {
+        status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        TransactionBindingSupport.bindResource(KEY, new Object());
+        TransactionBindingSupport.bindResource(TYPED_KEY, new Object());
+        TransactionBindingSupport.getTransactionId();
+    }
+    
+    /**
+     * @return Returns the bytes allocated per run of the operation, once warmed up
+     */
+    private double measure(Operation operation) {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP; i++) {
+            operation.run();
+        }
+        // the counter can allocate when it is first read, so read it before measuring
+        threadBean.getThreadAllocatedBytes(threadId);
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED; i++) {
+            operation.run();
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start;
+        // ignore the few bytes a read of the counter may itself cost
+        return allocated < 1024 ? 0 : (double) allocated / MEASURED;
+    }
+    
+    private interface Operation {
+        void run();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2012 Ray Holder
+ *
+ * This file is part of transaction-binding
+ *
+ * transaction-binding is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * transaction-binding is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with transaction-binding. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.rholder.spring.transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Drives transactions through the binding support from increasing numbers of threads, from
+ * one up to four per core, and checks that nothing leaks or is called twice along the way.
+ * <p>
+ * Each transaction binds resources and a listener and writes a row to HSQLDB.  Some nest a
+ * <tt>REQUIRES_NEW</tt> transaction, which suspends and resumes the outer one, and some of
+ * each roll back.  Throughput, latency percentiles and scaling efficiency against a single
+ * thread are printed for each level, with and without recycled synchronizations.
+ * 
+ * @author Ray Holder
+ */
+public class TransactionBindingStressTest {
+
+    /** the transactions run at each level, shared between its threads */
+    private static final int TRANSACTIONS_PER_LEVEL = 4000;
+    private static final double NESTED_RATE = 0.3;
+    private static final double ROLLBACK_RATE = 0.2;
+    
+    private static final TransactionResourceKey<Object> TYPED_KEY = new TransactionResourceKey<Object>("stress.typed");
+    private static final String KEY = "stress.key";
+    
+    private static int maxThreads;
+    private static BasicDataSource dataSource;
+    private static DataSourceTransactionManager transactionManager;
+    
+    @BeforeClass
+    public static void beforeThisClass() {
+        maxThreads = Runtime.getRuntime().availableProcessors() * 4;
+        // every thread may hold an outer and a nested connection at once
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+        dataSource.setUrl("jdbc:hsqldb:mem:stress");
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setMaxActive(maxThreads * 2);
+        dataSource.setMaxIdle(maxThreads * 2);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        new JdbcTemplate(dataSource).execute("CREATE TABLE stress_txn (txn_id VARCHAR(64) NOT NULL)");
+    }
+    
+    @AfterClass
+    public static void afterThisClass() throws Exception {
+        new JdbcTemplate(dataSource).execute("DROP TABLE stress_txn");
+        dataSource.close();
+    }
+    
+    @Test
+    public void testScaling() throws Exception {
+        runLevels(false);
+    }
+    
+    @Test
+    public void testScalingRecycled() throws Exception {
+        TransactionBindingSupport.setRecycleSynchronizations(true);
+        try {
+            runLevels(true);
+        } finally {
+            TransactionBindingSupport.setRecycleSynchronizations(false);
+        }
+    }
+    
+    private void runLevels(boolean recycled) throws Exception {
+        System.out.println("Transaction binding stress" + (recycled ? ", recycled synchronizations" : "") + ":");
+        System.out.println(String.format("  %7s %10s %9s %9s %9s %10s", "threads", "txn/s", "p50 us", "p90 us", "p99 us", "efficiency"));
+        // warm up, so the single threaded level isn't measuring class loading and the JIT
+        Level warmUp = new Level(1);
+        warmUp.run();
+        warmUp.verify();
+        
+        double singleThreaded = 0;
+        List<Integer> levels = new ArrayList<Integer>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            levels.add(threads);
+        }
+        levels.add(maxThreads);
+        for (int threads : levels) {
+            Level level = new Level(threads);
+            level.run();
+            level.verify();
+            double throughput = level.getThroughput();
+            if (threads == 1) {
+                singleThreaded = throughput;
+            }
+            System.out.println(String.format("  %7d %10.0f %9.1f %9.1f %9.1f %9.0f%%",
+                    threads, throughput,
+                    level.getLatencyPercentile(50) / 1000.0,
+                    level.getLatencyPercentile(90) / 1000.0,
+                    level.getLatencyPercentile(99) / 1000.0,
+                    100 * throughput / (singleThreaded * Math.min(threads, Runtime.getRuntime().availableProcessors()))));
+        }
+    }
+    
+    /**
+     * One run of the workload at a given number of threads
+     */
+    private static class Level {
+        private final int threads;
+        private final int transactionsPerThread;
+        private final ConcurrentLinkedQueue<CountingListener> listeners = new ConcurrentLinkedQueue<CountingListener>();
+        private final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        private final AtomicInteger committedRows = new AtomicInteger();
+        private final long[][] latencies;
+        private long elapsedNanos;
+        private int rowsBefore;
+        
+        private Level(int threads) {
+            this.threads = threads;
+            this.transactionsPerThread = Math.max(1, TRANSACTIONS_PER_LEVEL / threads);
+            this.latencies = new long[threads][transactionsPerThread];
+        }
+        
+        private void run() throws InterruptedException {
+            rowsBefore = new JdbcTemplate(dataSource).queryForInt("SELECT COUNT(*) FROM stress_txn");
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int worker = i;
+                workers[i] = new Thread("stress-" + threads + "-" + i) {
+                    public void run() {
+                        try {
+                            start.await();
+                            runWorker(worker);
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            elapsedNanos = System.nanoTime() - begin;
+        }
+        
+        private void runWorker(int worker) {
+            final Random random = new Random(worker * 31L + threads);
+            TransactionTemplate outerTemplate = new TransactionTemplate(transactionManager);
+            final TransactionTemplate nestedTemplate = new TransactionTemplate(transactionManager);
+            nestedTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            for (int i = 0; i < transactionsPerThread; i++) {
+                long begin = System.nanoTime();
+                outerTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        Object resource = new Object();
+                        TransactionBindingSupport.bindResource(KEY, resource);
+                        TransactionBindingSupport.bindResource(TYPED_KEY, resource);
+                        String txnId = TransactionBindingSupport.getTransactionId();
+                        bindCountingListener();
+                        
+                        if (random.nextDouble() < NESTED_RATE) {
+                            final boolean nestedRollback = random.nextDouble() < ROLLBACK_RATE;
+                            nestedTemplate.execute(new TransactionCallback() {
+                                
+                                public Object doInTransaction(TransactionStatus status) {
+                                    Assert.assertNull("Outer resource visible in nested transaction",
+                                            TransactionBindingSupport.getResource(KEY));
+                                    Assert.assertNull("Outer resource visible in nested transaction",
+                                            TransactionBindingSupport.getResource(TYPED_KEY));
+                                    TransactionBindingSupport.bindResource(KEY, new Object());
+                                    bindCountingListener();
+                                    insertRow(jdbcTemplate);
+                                    if (nestedRollback) {
+                                        status.setRollbackOnly();
+                                    }
+                                    return null;
+                                }
+                            });
+                        }
+                        
+                        // the outer transaction must be resumed as it was
+                        Assert.assertEquals("Transaction ID changed after resume", txnId, TransactionBindingSupport.getTransactionId());
+                        Assert.assertSame("Resource changed after resume", resource, TransactionBindingSupport.getResource(KEY));
+                        Assert.assertSame("Resource changed after resume", resource, TransactionBindingSupport.getResource(TYPED_KEY));
+                        insertRow(jdbcTemplate);
+                        if (random.nextDouble() < ROLLBACK_RATE) {
+                            status.setRollbackOnly();
+                        }
+                        return null;
+                    }
+                });
+                latencies[worker][i] = System.nanoTime() - begin;
+                
+                // nothing may be left bound to the thread between transactions
+                Assert.assertFalse("Synchronization still active", TransactionSynchronizationManager.isSynchronizationActive());
+                Assert.assertTrue("Leaked resources: " + TransactionSynchronizationManager.getResourceMap(),
+                        TransactionSynchronizationManager.getResourceMap().isEmpty());
+                Assert.assertNull("Leaked transaction ID", TransactionBindingSupport.getTransactionId());
+            }
+        }
+        
+        private void bindCountingListener() {
+            CountingListener listener = new CountingListener(TransactionBindingSupport.getTransactionId());
+            listeners.add(listener);
+            TransactionBindingSupport.bindListener(listener);
+            TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                @Override
+                public void afterCommit() {
+                    committedRows.incrementAndGet();
+                }
+            });
+        }
+        
+        private void insertRow(JdbcTemplate jdbcTemplate) {
+            jdbcTemplate.update("INSERT INTO stress_txn (txn_id) VALUES (?)", new Object[] {TransactionBindingSupport.getTransactionId()});
+        }
+        
+        private void verify() {
+            for (Throwable failure : failures) {
+                failure.printStackTrace();
+            }
+            Assert.assertTrue("Workers failed at " + threads + " threads: " + failures, failures.isEmpty());
+            
+            int committed = 0;
+            for (CountingListener listener : listeners) {
+                listener.verify();
+                committed += listener.afterCommit;
+            }
+            int expectedTransactions = threads * transactionsPerThread;
+            Assert.assertTrue("Too few listeners bound", listeners.size() >= expectedTransactions);
+            Assert.assertEquals("Commit listener count mismatch", committed, committedRows.get());
+            int rows = new JdbcTemplate(dataSource).queryForInt("SELECT COUNT(*) FROM stress_txn") - rowsBefore;
+            Assert.assertEquals("Committed rows do not match committed transactions", committed, rows);
+        }
+        
+        private double getThroughput() {
+            return threads * transactionsPerThread / (elapsedNanos / 1e9);
+        }
+        
+        private long getLatencyPercentile(int percentile) {
+            long[] all = new long[threads * transactionsPerThread];
+            for (int i = 0; i < threads; i++) {
+                System.arraycopy(latencies[i], 0, all, i * transactionsPerThread, transactionsPerThread);
+            }
+            Arrays.sort(all);
+            return all[Math.min(all.length - 1, all.length * percentile / 100)];
+        }
+    }
+    
+    /**
+     * Counts each callback, which must happen exactly once per transaction outcome
+     */
+    private static class CountingListener extends TransactionListenerAdapter {
+        private final String txnId;
+        private volatile int beforeCommit;
+        private volatile int beforeCompletion;
+        private volatile int afterCommit;
+        private volatile int afterRollback;
+        
+        private CountingListener(String txnId) {
+            this.txnId = txnId;
+        }
+        
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            Assert.assertEquals("Listener called in another transaction", txnId, TransactionBindingSupport.getTransactionId());
+            beforeCommit++;
+        }
+        
+        @Override
+        public void beforeCompletion() {
+            beforeCompletion++;
+        }
+        
+        @Override
+        public void afterCommit() {
+            afterCommit++;
+        }
+        
+        @Override
+        public void afterRollback() {
+            afterRollback++;
+        }
+        
+        private void verify() {
+            Assert.assertEquals("Listener completed other than once: " + txnId, 1, afterCommit + afterRollback);
+            Assert.assertEquals("Before completion not called once: " + txnId, 1, beforeCompletion);
+            Assert.assertEquals("Before commit called for a rollback, or not once for a commit: " + txnId,
+                    afterCommit, beforeCommit);
+        }
+    }
+}
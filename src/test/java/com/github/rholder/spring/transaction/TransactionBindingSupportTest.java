@@ -18,11 +18,37 @@
  */
 package com.github.rholder.spring.transaction;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,9 +57,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.Ordered;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadState;
@@ -51,6 +80,7 @@ import com.github.rholder.spring.transaction.TransactionBindingSupport.TxnReadSt
 public class TransactionBindingSupportTest {
 
     private static PlatformTransactionManager transactionManager;
+    private static DataSource dataSource;
     
     private TransactionTemplate transactionTemplate;
     
@@ -62,6 +92,7 @@ public class TransactionBindingSupportTest {
     public static void beforeThisClass() {
         ApplicationContext applicationContext = new ClassPathXmlApplicationContext("/applicationContext-test.xml");        
         transactionManager = (PlatformTransactionManager) applicationContext.getBean("transactionManager");
+        dataSource = (DataSource) applicationContext.getBean("dataSource");
     }
     
     @Before
@@ -77,6 +108,7 @@ public class TransactionBindingSupportTest {
         
         Assert.assertNull("Thread shouldn't have a txn ID", TransactionBindingSupport.getTransactionId());
         Assert.assertEquals("No transaction start time expected", -1, TransactionBindingSupport.getTransactionStartTime());
+        Assert.assertEquals("No transaction ID expected", -1, TransactionBindingSupport.getTransactionIdAsLong());
 
         transactionTemplate.execute(new TransactionCallback() {
             
@@ -90,6 +122,9 @@ public class TransactionBindingSupportTest {
                 // check that the txn id and time doesn't change
                 txnIdCheck = TransactionBindingSupport.getTransactionId();
                 Assert.assertEquals("Transaction ID changed on same thread", txnId, txnIdCheck);
+                final long txnIdLong = TransactionBindingSupport.getTransactionIdAsLong();
+                Assert.assertTrue("Expected a non-negative txn id", txnIdLong >= 0);
+                Assert.assertEquals("Transaction ID changed on same thread", txnIdLong, TransactionBindingSupport.getTransactionIdAsLong());
                 long txnStartTimeCheck = TransactionBindingSupport.getTransactionStartTime();
                 Assert.assertEquals("Transaction start time changed on same thread", txnStartTime, txnStartTimeCheck);
                 
@@ -101,6 +136,8 @@ public class TransactionBindingSupportTest {
                             // check the ID for the outer transaction
                             String txnIdInner = TransactionBindingSupport.getTransactionId();
                             Assert.assertNotSame("Inner txn ID must be different from outer txn ID", txnIdInner, txnId);
+                            Assert.assertFalse("Inner txn ID must be different from outer txn ID",
+                                    txnIdLong == TransactionBindingSupport.getTransactionIdAsLong());
                             // Check the time against the outer transaction
                             long txnStartTimeInner = TransactionBindingSupport.getTransactionStartTime();
                             Assert.assertTrue(
@@ -140,6 +177,52 @@ public class TransactionBindingSupportTest {
         Assert.assertNull("Thread shouldn't have a txn ID after rollback", TransactionBindingSupport.getTransactionId());
     }
     
+    @Test
+    public void testTransactionIdGenerator() throws Exception {
+        final TransactionIdGenerator generator = new DefaultTransactionIdGenerator(42L, 8);
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        ids.add(generator.nextTransactionId());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals("Node ID not retained", 42L, generator.getNodeId());
+        Assert.assertEquals("Duplicate transaction IDs generated", 4000, ids.size());
+        
+        // plug in the generator and check that it is used for new transactions
+        TransactionBindingSupport.setTransactionIdGenerator(generator);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    long txnIdLong = TransactionBindingSupport.getTransactionIdAsLong();
+                    Assert.assertFalse("Expected a newly generated txn id", ids.contains(txnIdLong));
+                    Assert.assertEquals("Unexpected string form of txn id",
+                            "2a-" + Long.toHexString(txnIdLong), TransactionBindingSupport.getTransactionId());
+                    return null;
+                }
+            });
+            
+            // a new default generator carries on past the sequences already handed out
+            DefaultTransactionIdGenerator replacement = new DefaultTransactionIdGenerator();
+            TransactionBindingSupport.setTransactionIdGenerator(replacement);
+            Assert.assertFalse("Sequence repeated by the replacement generator", ids.contains(replacement.nextTransactionId()));
+        } finally {
+            TransactionBindingSupport.setTransactionIdGenerator(new DefaultTransactionIdGenerator());
+        }
+    }
+    
     @Test
     public void testListener() throws Exception {
         final List<String> strings = new ArrayList<String>(1);
@@ -269,122 +352,2186 @@ public class TransactionBindingSupportTest {
     }
     
     @Test
-    @Ignore("TransactionTemplate use here doesn't exactly match semantics of RetryingTransactionCallback yet")
-    public void testReadWriteStateRetrieval() throws Exception {
-        final TxnReadState[] postCommitReadState = new TxnReadState[1];
-        final TransactionListenerAdapter getReadStatePostCommit = new TransactionListenerAdapter() {
+    public void testAsyncListener() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final Thread testThread = Thread.currentThread();
+        
+        class RecordingAsyncListener extends TransactionListenerAdapter implements AsyncTransactionListener {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                Assert.assertSame("beforeCommit must be inline", testThread, Thread.currentThread());
+                calls.add("beforeCommit");
+            }
+            
             @Override
             public void afterCommit() {
-                postCommitReadState[0] = TransactionBindingSupport.getTransactionReadState();
+                Assert.assertNotSame("afterCommit must be asynchronous", testThread, Thread.currentThread());
+                calls.add("afterCommit");
             }
-        };        
+            
+            @Override
+            public void afterRollback() {
+                Assert.assertNotSame("afterRollback must be asynchronous", testThread, Thread.currentThread());
+                calls.add("afterRollback");
+            }
+        }
         
-        TransactionCallback callback = new TransactionCallback() {
+        AsyncTransactionListenerExecutor executor = new AsyncTransactionListenerExecutor(1, 10);
+        TransactionBindingSupport.setAsyncListenerExecutor(executor);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(new RecordingAsyncListener());
+                    return null;
+                }
+            });
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(new RecordingAsyncListener());
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+        } finally {
+            TransactionBindingSupport.setAsyncListenerExecutor(null);
+        }
+        
+        Assert.assertTrue("Queued callbacks not drained", executor.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Unexpected listener calls",
+                Arrays.asList("beforeCommit", "afterCommit", "afterRollback"), calls);
+    }
+    
+    @Test
+    public void testAsyncListenerAfterShutdown() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        AsyncTransactionListenerExecutor executor = new AsyncTransactionListenerExecutor(1, 10);
+        executor.destroy();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    calls.add("task");
+                }
+            });
+            Assert.fail("Callback accepted after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        
+        // the commit itself must still succeed, with the rejected callback logged
+        TransactionBindingSupport.setAsyncListenerExecutor(executor);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(new AsyncListener() {
+                        @Override
+                        public void afterCommit() {
+                            calls.add("afterCommit");
+                        }
+                    });
+                    return null;
+                }
+            });
+        } finally {
+            TransactionBindingSupport.setAsyncListenerExecutor(null);
+        }
+        Assert.assertTrue("Rejected callback run after shutdown: " + calls, calls.isEmpty());
+    }
+    
+    private static class AsyncListener extends TransactionListenerAdapter implements AsyncTransactionListener {
+    }
+    
+    @Test
+    public void testPostCommitCoalescer() throws Exception {
+        final Map<String, List<Integer>> batches = new ConcurrentHashMap<String, List<Integer>>();
+        final CountDownLatch sizeFlushed = new CountDownLatch(1);
+        final PostCommitCoalescer<String, Integer> coalescer = new PostCommitCoalescer<String, Integer>(
+                new PostCommitCoalescer.BatchHandler<String, Integer>() {
+                    public void handleBatch(String key, Collection<Integer> items) {
+                        batches.put(key, new ArrayList<Integer>(items));
+                        if ("full".equals(key)) {
+                            sizeFlushed.countDown();
+                        }
+                    }
+                }, 4, TimeUnit.MINUTES.toMillis(10));
+        
+        for (final int[] items : new int[][] {{1, 2}, {2, 3}}) {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    for (int item : items) {
+                        coalescer.contribute("region", item);
+                    }
+                    return null;
+                }
+            });
+        }
+        transactionTemplate.execute(new TransactionCallback() {
             
             public Object doInTransaction(TransactionStatus status) {
-                // Register to list to post-commit
-                TransactionBindingSupport.bindListener(getReadStatePostCommit);
-                
-                return TransactionBindingSupport.getTransactionReadState();
+                coalescer.contribute("region", 99);
+                coalescer.contribute("rolledBack", 99);
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                coalescer.contribute("full", 1);
+                coalescer.contribute("full", 2);
+                coalescer.contribute("full", 3);
+                coalescer.contribute("full", 4);
+                return null;
+            }
+        });
+        
+        Assert.assertTrue("Full batch not flushed", sizeFlushed.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse("Partial batch flushed early", batches.containsKey("region"));
+        
+        coalescer.destroy();
+        Assert.assertEquals("Unexpected coalesced batch", Arrays.asList(1, 2, 3), batches.get("region"));
+        Assert.assertFalse("Rolled back contribution flushed", batches.containsKey("rolledBack"));
+        Assert.assertEquals("Unexpected pending keys", 0, coalescer.getPendingKeyCount());
+        
+        // a transaction committing after destroy has its batch flushed on its own thread
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                coalescer.contribute("late", 5);
+                return null;
             }
+        });
+        Assert.assertEquals("Batch after destroy lost", Arrays.asList(5), batches.get("late"));
+        Assert.assertEquals("Unexpected pending keys", 0, coalescer.getPendingKeyCount());
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        final TransactionListener listener = new TransactionListenerAdapter() {
         };
+        JmxTransactionBindingMetrics metrics = new JmxTransactionBindingMetrics();
+        TransactionBindingSupport.setTransactionBindingMetrics(metrics);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(listener);
+                    TransactionBindingSupport.bindResource("abc", "value");
+                    TransactionBindingSupport.bindResource(new TransactionResourceKey<String>("typed"), "value");
+                    return null;
+                }
+            });
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(listener);
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+        } finally {
+            TransactionBindingSupport.setTransactionBindingMetrics(null);
+        }
         
-        // TODO fix this behavior
-        //TxnReadState a = (TxnReadState) transactionTemplate.execute();
+        Assert.assertEquals("Unexpected registrations", 2, metrics.getRegisteredCount());
+        Assert.assertEquals("Unexpected commits", 1, metrics.getCommittedCount());
+        Assert.assertEquals("Unexpected rollbacks", 1, metrics.getRolledBackCount());
+        Assert.assertEquals("Unexpected beforeCommit calls",
+                1, metrics.getListenerLatency(listener.getClass(), TransactionPhase.BEFORE_COMMIT).getCount());
+        Assert.assertEquals("Unexpected beforeCompletion calls",
+                2, metrics.getListenerLatency(listener.getClass(), TransactionPhase.BEFORE_COMPLETION).getCount());
+        Assert.assertEquals("Unexpected afterRollback calls",
+                1, metrics.getListenerLatency(listener.getClass(), TransactionPhase.AFTER_ROLLBACK).getCount());
+        Assert.assertTrue("Unexpected resource counts: " + metrics.getResourceCounts(),
+                metrics.getResourceCounts().contains("max=2"));
         
-//        RetryingTransactionCallback<TxnReadState> getReadStateWork = new RetryingTransactionCallback<TxnReadState>()
-//        {
-//            public TxnReadState execute() throws Exception
-//            {
-//                // Register to list to post-commit
-//                TransactionBindingSupport.bindListener(getReadStatePostCommit);
-//                
-//                return TransactionBindingSupport.getTransactionReadState();
-//            }
-//        };
-
-        // Check TXN_NONE
-        TxnReadState checkTxnReadState = TransactionBindingSupport.getTransactionReadState();
-        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, checkTxnReadState);
-        Assert.assertNull("Expected no post-commit read state", postCommitReadState[0]);
-        // Check TXN_READ_ONLY
-        transactionTemplate.setReadOnly(true);
-        checkTxnReadState = (TxnReadState) transactionTemplate.execute(callback);
-        Assert.assertEquals("Expected 'read-only transaction'", TxnReadState.TXN_READ_ONLY, checkTxnReadState);
-        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, postCommitReadState[0]);
-        // check TXN_READ_WRITE
-        transactionTemplate.setReadOnly(false);
-        checkTxnReadState = (TxnReadState) transactionTemplate.execute(callback);
-        Assert.assertEquals("Expected 'read-write transaction'", TxnReadState.TXN_READ_WRITE, checkTxnReadState);
-        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, postCommitReadState[0]);
+        // check that the MBean can be exported and read
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(JmxTransactionBindingMetrics.OBJECT_NAME);
+        server.registerMBean(metrics, name);
+        try {
+            Assert.assertEquals("Unexpected MBean attribute", 1L, server.getAttribute(name, "CommittedCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
     }
-
+    
     @Test
-    public void testResourceHelperMap() throws Exception {
-
-        // run this in a transaction        
+    public void testListenerCircuitBreaker() throws Exception {
+        final int[] failingCalls = new int[1];
+        final int[] slowCalls = new int[1];
+        
+        class FailingListener extends TransactionListenerAdapter {
+            @Override
+            public void afterCommit() {
+                failingCalls[0]++;
+                throw new RuntimeException("Expected failure");
+            }
+        }
+        
+        class SlowListener extends TransactionListenerAdapter implements TimeBudgetedTransactionListener {
+            public long getTimeBudgetMillis() {
+                return 1;
+            }
+            
+            @Override
+            public void afterCommit() {
+                slowCalls[0]++;
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        ListenerCircuitBreaker circuitBreaker = new ListenerCircuitBreaker(2, TimeUnit.MINUTES.toMillis(10));
+        TransactionBindingSupport.setListenerCircuitBreaker(circuitBreaker);
+        try {
+            for (int i = 0; i < 5; i++) {
+                transactionTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        TransactionBindingSupport.bindListener(new FailingListener());
+                        TransactionBindingSupport.bindListener(new SlowListener());
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            TransactionBindingSupport.setListenerCircuitBreaker(null);
+        }
+        
+        Assert.assertEquals("Failing listener not skipped once the breaker opened", 2, failingCalls[0]);
+        Assert.assertEquals("Slow listener not skipped once the breaker opened", 2, slowCalls[0]);
+        Assert.assertTrue("Breaker not open", circuitBreaker.isOpen(FailingListener.class));
+        Assert.assertEquals("Unexpected skip count", 3, circuitBreaker.getSkipCount(FailingListener.class));
+        Assert.assertEquals("Unexpected skip count", 6, circuitBreaker.getTotalSkipCount());
+    }
+    
+    @Test
+    public void testTransactionalCache() throws Exception {
+        final int[] loads = new int[1];
+        final SharedCache<Integer, String> sharedCache = new LruSharedCache<Integer, String>(100);
+        final TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(
+                sharedCache,
+                new TransactionalCache.Loader<Integer, String>() {
+                    public String load(Integer key) {
+                        loads[0]++;
+                        return "loaded-" + key;
+                    }
+                });
+        
         transactionTemplate.execute(new TransactionCallback() {
             
             public Object doInTransaction(TransactionStatus status) {
-                Map<String, String> map = TransactionalResourceHelper.getMap("abc");
-                Assert.assertNotNull("Map not created", map);
-                map.put("1", "ONE");
-                Map<String, String> mapCheck = TransactionalResourceHelper.getMap("abc");
-                Assert.assertTrue("Same map not retrieved", map == mapCheck);
+                Assert.assertEquals("loaded-1", cache.get(1));
+                Assert.assertEquals("loaded-1", cache.get(1));
+                Assert.assertEquals("Value not remembered for the transaction", 1, loads[0]);
+                cache.put(2, "two");
+                Assert.assertEquals("Transaction must read its own writes", "two", cache.get(2));
+                Assert.assertNull("Shared cache updated before commit", sharedCache.get(2));
                 return null;
             }
-        });        
+        });
+        Assert.assertEquals("Loaded value not promoted", "loaded-1", sharedCache.get(1));
+        Assert.assertEquals("Written value not promoted", "two", sharedCache.get(2));
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                cache.remove(1);
+                cache.put(3, "three");
+                Assert.assertNull("Transaction must read its own removal", cache.get(1));
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+        Assert.assertEquals("Rolled back removal applied", "loaded-1", sharedCache.get(1));
+        Assert.assertNull("Rolled back write applied", sharedCache.get(3));
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                // load a value, then have another transaction change it before we commit
+                Assert.assertEquals("loaded-5", cache.get(5));
+                TransactionTemplate innerTemplate = new TransactionTemplate(transactionManager);
+                innerTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+                innerTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        cache.remove(5);
+                        cache.remove(2);
+                        return null;
+                    }
+                });
+                return null;
+            }
+        });
+        Assert.assertNull("Stale loaded value promoted after invalidation", sharedCache.get(5));
+        Assert.assertNull("Removal not applied", sharedCache.get(2));
     }
     
     @Test
-    public void testResourceHelperList() throws Exception {
-
-        // run this in a transaction        
+    public void testTransactionalCacheInvalidatedDuringPromotion() throws Exception {
+        final TransactionalCache<?, ?>[] cacheRef = new TransactionalCache<?, ?>[1];
+        final SharedCache<Integer, String> sharedCache = new LruSharedCache<Integer, String>(100) {
+            @Override
+            public void putIfAbsent(Integer key, String value) {
+                // another thread removes the key between the stamp check and the put
+                Thread remover = new Thread() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public void run() {
+                        ((TransactionalCache<Integer, String>) cacheRef[0]).remove(7);
+                    }
+                };
+                remover.start();
+                try {
+                    remover.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.putIfAbsent(key, value);
+            }
+        };
+        final TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(
+                sharedCache,
+                new TransactionalCache.Loader<Integer, String>() {
+                    public String load(Integer key) {
+                        return "loaded-" + key;
+                    }
+                });
+        cacheRef[0] = cache;
+        
         transactionTemplate.execute(new TransactionCallback() {
             
             public Object doInTransaction(TransactionStatus status) {
-                List<String> list = TransactionalResourceHelper.getList("abc");
-                Assert.assertNotNull("List not created", list);
-                list.add("ONE");
-                
-                List<String> listCheck = TransactionalResourceHelper.getList("abc");
-                Assert.assertTrue("Same list not retrieved", list == listCheck);
+                Assert.assertEquals("loaded-7", cache.get(7));
                 return null;
             }
-        });        
+        });
+        Assert.assertNull("Stale loaded value left cached after a racing invalidation", sharedCache.get(7));
+        
+        Assert.assertEquals("loaded-7", cache.get(7));
+        Assert.assertNull("Stale loaded value left cached after a racing invalidation", sharedCache.get(7));
     }
-
+    
     @Test
-    public void testResourceHelperSet() throws Exception {
-
-        // run this in a transaction        
+    public void testSavepointResourceLayers() throws Exception {
+        final TransactionResourceKey<String> typedKey = new TransactionResourceKey<String>("savepoint");
+        final SavepointTransactionTemplate nestedTemplate = new SavepointTransactionTemplate(transactionManager);
+        nestedTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_NESTED);
+        
         transactionTemplate.execute(new TransactionCallback() {
             
             public Object doInTransaction(TransactionStatus status) {
-                Set<String> set = TransactionalResourceHelper.getSet("abc");
-                Assert.assertNotNull("Set not created", set);
-                set.add("ONE");
-                Set<String> setCheck = TransactionalResourceHelper.getSet("abc");
-                Assert.assertTrue("Same map not retrieved", set == setCheck);
+                TransactionBindingSupport.bindResource("a", "outer");
+                TransactionBindingSupport.bindResource(typedKey, "outer");
+                TransactionalResourceHelper.<String, String>getMap("map").put("outer", "1");
+                TransactionalResourceHelper.getLongSet("ids").add(1L);
+                
+                // a nested call that fails must leave the resources as they were at the savepoint
+                try {
+                    nestedTemplate.execute(new TransactionCallback() {
+                        
+                        public Object doInTransaction(TransactionStatus status) {
+                            Assert.assertEquals(1, TransactionBindingSupport.getResourceLayerDepth());
+                            TransactionBindingSupport.bindResource("a", "nested");
+                            TransactionBindingSupport.bindResource("b", "nested");
+                            TransactionBindingSupport.bindResource(typedKey, "nested");
+                            TransactionalResourceHelper.<String, String>getMap("map").put("nested", "2");
+                            TransactionalResourceHelper.<String, String>getMap("map").remove("outer");
+                            TransactionalResourceHelper.getLongSet("ids").add(2L);
+                            TransactionalResourceHelper.<String>getList("list").add("nested");
+                            throw new IllegalStateException("fail the nested call");
+                        }
+                    });
+                    Assert.fail("Nested exception not propagated");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                Assert.assertEquals(0, TransactionBindingSupport.getResourceLayerDepth());
+                Assert.assertEquals("outer", TransactionBindingSupport.getResource("a"));
+                Assert.assertNull("Nested binding not undone", TransactionBindingSupport.getResource("b"));
+                Assert.assertEquals("outer", TransactionBindingSupport.getResource(typedKey));
+                Map<String, String> map = TransactionalResourceHelper.getMap("map");
+                Assert.assertEquals(Collections.singletonMap("outer", "1"), map);
+                Assert.assertFalse(TransactionalResourceHelper.getLongSet("ids").contains(2L));
+                Assert.assertTrue(TransactionalResourceHelper.getLongSet("ids").contains(1L));
+                Assert.assertTrue(TransactionalResourceHelper.<String>getList("list").isEmpty());
+                
+                // marking the nested status rollback-only rolls back to the savepoint as well
+                nestedTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        TransactionBindingSupport.bindResource("a", "rollbackOnly");
+                        status.setRollbackOnly();
+                        return null;
+                    }
+                });
+                Assert.assertEquals("outer", TransactionBindingSupport.getResource("a"));
+                
+                // values memoized under a rolled back savepoint are forgotten, earlier ones are kept
+                final Callable<String> memo = new Callable<String>() {
+                    public String call() {
+                        return new String("memo");
+                    }
+                };
+                final String outerMemo = TransactionalResourceHelper.memoize("savepoint.outer", memo);
+                final String[] nestedMemo = new String[1];
+                nestedTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        Assert.assertSame(outerMemo, TransactionalResourceHelper.memoize("savepoint.outer", memo));
+                        nestedMemo[0] = TransactionalResourceHelper.memoize("savepoint.nested", memo);
+                        status.setRollbackOnly();
+                        return null;
+                    }
+                });
+                Assert.assertSame(outerMemo, TransactionalResourceHelper.memoize("savepoint.outer", memo));
+                Assert.assertNotSame("Memoized value not forgotten", nestedMemo[0],
+                        TransactionalResourceHelper.memoize("savepoint.nested", memo));
+                
+                // a successful nested call keeps its changes, including those of its own released savepoints
+                nestedTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        TransactionalResourceHelper.<String, String>getMap("map").put("kept", "3");
+                        nestedTemplate.execute(new TransactionCallback() {
+                            
+                            public Object doInTransaction(TransactionStatus status) {
+                                Assert.assertEquals(2, TransactionBindingSupport.getResourceLayerDepth());
+                                TransactionBindingSupport.bindResource("a", "kept");
+                                return null;
+                            }
+                        });
+                        return null;
+                    }
+                });
+                Assert.assertEquals("kept", TransactionBindingSupport.getResource("a"));
+                Assert.assertEquals("3", map.get("kept"));
+                Assert.assertEquals(0, TransactionBindingSupport.getResourceLayerDepth());
                 return null;
             }
-        });        
+        });
     }
-
+    
+    /**
+     * Each kind of helper collection must undo the entries changed under a layer, through
+     * every way of changing it, and leave entries it only read alone.
+     */
     @Test
-    public void testResourceHelperTreeSet() throws Exception {
-
-        // run this in a transaction        
+    public void testResourceLayerUndoesChangedEntries() throws Exception {
         transactionTemplate.execute(new TransactionCallback() {
             
             public Object doInTransaction(TransactionStatus status) {
-                TreeSet<String> treeSet = TransactionalResourceHelper.getTreeSet("abc");
-                Assert.assertNotNull("Map not created", treeSet);
-                treeSet.add("ONE");
-                TreeSet<String> treeSetCheck = TransactionalResourceHelper.getTreeSet("abc");
-                Assert.assertTrue("Same map not retrieved", treeSet == treeSetCheck);
+                Map<String, Integer> map = TransactionalResourceHelper.getMap("map");
+                Set<String> set = TransactionalResourceHelper.getSet("set");
+                List<String> list = TransactionalResourceHelper.getList("list");
+                TreeSet<Integer> treeSet = TransactionalResourceHelper.getTreeSet("treeSet");
+                LongArrayList longList = TransactionalResourceHelper.getLongList("longList");
+                LongObjectHashMap<String> longMap = TransactionalResourceHelper.getLongToObjectMap("longMap");
+                IntCounterMap<String> counters = TransactionalResourceHelper.getIntCounterMap("counters");
+                LongHashSet longSet = TransactionalResourceHelper.getLongSet("longSet");
+                for (int i = 0; i < 10; i++) {
+                    map.put("k" + i, i);
+                    set.add("s" + i);
+                    list.add("l" + i);
+                    treeSet.add(i);
+                    longList.add(i);
+                    longMap.put(i, "v" + i);
+                    longSet.add(i);
+                }
+                counters.increment("a");
+                Map<String, Integer> mapBefore = new HashMap<String, Integer>(map);
+                Set<String> setBefore = new HashSet<String>(set);
+                List<String> listBefore = new ArrayList<String>(list);
+                Set<Integer> treeSetBefore = new TreeSet<Integer>(treeSet);
+                String longListBefore = longList.toString();
+                
+                TransactionBindingSupport.beginResourceLayer();
+                Map<String, Integer> layeredMap = TransactionalResourceHelper.getMap("map");
+                Assert.assertSame("View not reused within the layer", layeredMap, TransactionalResourceHelper.getMap("map"));
+                Assert.assertEquals(mapBefore, layeredMap);
+                layeredMap.put("k0", 100);
+                layeredMap.put("new", 1);
+                layeredMap.remove("k1");
+                layeredMap.keySet().remove("k2");
+                layeredMap.entrySet().iterator().next().setValue(-1);
+                Iterator<Integer> values = layeredMap.values().iterator();
+                values.next();
+                values.remove();
+                
+                Set<String> layeredSet = TransactionalResourceHelper.getSet("set");
+                layeredSet.add("new");
+                layeredSet.remove("s0");
+                layeredSet.retainAll(Arrays.asList("s1", "s2", "new"));
+                
+                List<String> layeredList = TransactionalResourceHelper.getList("list");
+                layeredList.add("new");
+                layeredList.add(0, "first");
+                layeredList.set(3, "replaced");
+                layeredList.remove(5);
+                layeredList.subList(1, 3).clear();
+                
+                TreeSet<Integer> layeredTreeSet = TransactionalResourceHelper.getTreeSet("treeSet");
+                layeredTreeSet.add(100);
+                layeredTreeSet.pollFirst();
+                layeredTreeSet.headSet(5).clear();
+                
+                // changes in a released inner layer belong to the outer layer
+                TransactionBindingSupport.beginResourceLayer();
+                TransactionalResourceHelper.getLongList("longList").add(100);
+                TransactionalResourceHelper.getLongList("longList").set(0, 100);
+                TransactionalResourceHelper.<String>getLongToObjectMap("longMap").put(100, "new");
+                TransactionalResourceHelper.<String>getLongToObjectMap("longMap").put(1, "replaced");
+                TransactionalResourceHelper.<String>getLongToObjectMap("longMap").remove(2);
+                TransactionalResourceHelper.<String>getIntCounterMap("counters").increment("a");
+                TransactionalResourceHelper.<String>getIntCounterMap("counters").increment("b");
+                TransactionalResourceHelper.getLongSet("longSet").clear();
+                TransactionalResourceHelper.getLongSet("longSet").add(100);
+                TransactionBindingSupport.releaseResourceLayer();
+                
+                Assert.assertFalse("Changes not made to the bound map", mapBefore.equals(map));
+                Assert.assertEquals(2, counters.get("a"));
+                TransactionBindingSupport.rollbackResourceLayer();
+                
+                Assert.assertEquals(mapBefore, map);
+                Assert.assertEquals(setBefore, set);
+                Assert.assertEquals(listBefore, list);
+                Assert.assertEquals(treeSetBefore, treeSet);
+                Assert.assertEquals(longListBefore, longList.toString());
+                Assert.assertEquals(10, longMap.size());
+                Assert.assertEquals("v1", longMap.get(1));
+                Assert.assertEquals("v2", longMap.get(2));
+                Assert.assertNull(longMap.get(100));
+                Assert.assertEquals(1, counters.get("a"));
+                Assert.assertEquals(Collections.singletonList("a"), counters.keys());
+                Assert.assertEquals(10, longSet.size());
+                Assert.assertFalse(longSet.contains(100));
+                
+                // outside a layer the bound collection itself is handed out again
+                Assert.assertSame(map, TransactionalResourceHelper.getMap("map"));
                 return null;
             }
-        });        
+        });
+    }
+    
+    /**
+     * Runs the work in a nested transaction that rolls back to its savepoint
+     */
+    private static void rollBackNested(final Runnable work) {
+        SavepointTransactionTemplate nestedTemplate = new SavepointTransactionTemplate(transactionManager);
+        nestedTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_NESTED);
+        nestedTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                work.run();
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+    }
+    
+    @Test
+    public void testResourceLayerDropsListeners() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        final TransactionListener outer = new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                calls.add("outer");
+            }
+        };
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                TransactionBindingSupport.bindListener(outer);
+                rollBackNested(new Runnable() {
+                    public void run() {
+                        // already bound before the layer, so it must stay bound
+                        TransactionBindingSupport.bindListener(outer);
+                        TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                            @Override
+                            public void afterCommit() {
+                                calls.add("nested");
+                            }
+                        });
+                    }
+                });
+                TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        calls.add("after");
+                    }
+                });
+                return null;
+            }
+        });
+        Assert.assertEquals("Listener bound in a rolled back layer called",
+                Arrays.asList("outer", "after"), calls);
+    }
+    
+    @Test
+    public void testResourceLayerUndoesCounter() throws Exception {
+        final TransactionalCounter counter = new TransactionalCounter("layered");
+        final TransactionalCounter nestedOnly = new TransactionalCounter("nestedOnly");
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                counter.add(5);
+                rollBackNested(new Runnable() {
+                    public void run() {
+                        counter.add(100);
+                        nestedOnly.add(7);
+                    }
+                });
+                Assert.assertEquals(5, counter.getPending());
+                Assert.assertEquals(0, nestedOnly.getPending());
+                counter.increment();
+                return null;
+            }
+        });
+        Assert.assertEquals("Rolled back addition published", 6, counter.get());
+        Assert.assertEquals("Rolled back addition published", 0, nestedOnly.get());
+    }
+    
+    @Test
+    public void testResourceLayerUndoesCache() throws Exception {
+        final SharedCache<Integer, String> sharedCache = new LruSharedCache<Integer, String>(100);
+        sharedCache.put(3, "shared");
+        final TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(sharedCache, null);
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                cache.put(1, "outer");
+                rollBackNested(new Runnable() {
+                    public void run() {
+                        cache.put(1, "nested");
+                        cache.put(2, "nested");
+                        cache.remove(3);
+                        Assert.assertNull(cache.get(3));
+                    }
+                });
+                Assert.assertEquals("outer", cache.get(1));
+                Assert.assertNull(cache.get(2));
+                Assert.assertEquals("shared", cache.get(3));
+                return null;
+            }
+        });
+        Assert.assertEquals("outer", sharedCache.get(1));
+        Assert.assertNull("Rolled back write applied", sharedCache.get(2));
+        Assert.assertEquals("Rolled back removal applied", "shared", sharedCache.get(3));
+    }
+    
+    @Test
+    public void testResourceLayerUndoesCoalescer() throws Exception {
+        final Map<String, List<Integer>> batches = new ConcurrentHashMap<String, List<Integer>>();
+        final PostCommitCoalescer<String, Integer> coalescer = new PostCommitCoalescer<String, Integer>(
+                new PostCommitCoalescer.BatchHandler<String, Integer>() {
+                    public void handleBatch(String key, Collection<Integer> items) {
+                        batches.put(key, new ArrayList<Integer>(items));
+                    }
+                }, 100, TimeUnit.MINUTES.toMillis(10));
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                coalescer.contribute("region", 1);
+                rollBackNested(new Runnable() {
+                    public void run() {
+                        coalescer.contribute("region", 1);
+                        coalescer.contribute("region", 2);
+                        coalescer.contribute("nested", 3);
+                    }
+                });
+                return null;
+            }
+        });
+        coalescer.destroy();
+        Assert.assertEquals("Rolled back contribution flushed", Arrays.asList(1), batches.get("region"));
+        Assert.assertFalse("Rolled back contribution flushed", batches.containsKey("nested"));
+    }
+    
+    @Test
+    public void testResourceLayerUndoesWriteBuffer() throws Exception {
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE layer_buffer_test (id INTEGER, name VARCHAR(20))");
+        final String insert = "INSERT INTO layer_buffer_test (id, name) VALUES (?, ?)";
+        final String count = "SELECT COUNT(*) FROM layer_buffer_test";
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    JdbcWriteBuffer buffer = TransactionalResourceHelper.getWriteBuffer(dataSource, insert, 2);
+                    for (int i = 0; i < 3; i++) {
+                        buffer.add(i, "outer");
+                    }
+                    // rows flushed under the savepoint are lost from the database, so they must be buffered again
+                    rollBackNested(new Runnable() {
+                        public void run() {
+                            JdbcWriteBuffer buffer = TransactionalResourceHelper.getWriteBuffer(dataSource, insert);
+                            buffer.add(3, "nested");
+                            TransactionalResourceHelper.flushWriteBuffers();
+                            Assert.assertEquals(4, jdbcTemplate.queryForInt(count));
+                            buffer.add(4, "nested");
+                        }
+                    });
+                    Assert.assertEquals(0, jdbcTemplate.queryForInt(count));
+                    Assert.assertEquals("Buffered rows not restored", 3, buffer.size());
+                    return null;
+                }
+            });
+            Assert.assertEquals("Buffered rows not committed", 3, jdbcTemplate.queryForInt(count));
+            Assert.assertEquals("Rolled back row written", 0,
+                    jdbcTemplate.queryForInt("SELECT COUNT(*) FROM layer_buffer_test WHERE name = 'nested'"));
+            
+            // a buffer first armed under a rolled back savepoint is armed again afterwards
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    rollBackNested(new Runnable() {
+                        public void run() {
+                            TransactionalResourceHelper.getWriteBuffer(dataSource, insert).add(5, "nested");
+                        }
+                    });
+                    TransactionalResourceHelper.getWriteBuffer(dataSource, insert).add(6, "outer");
+                    return null;
+                }
+            });
+            Assert.assertEquals("Row added after the savepoint not committed", 4, jdbcTemplate.queryForInt(count));
+        } finally {
+            jdbcTemplate.execute("DROP TABLE layer_buffer_test");
+        }
+    }
+    
+    @Test
+    public void testCapturedContext() throws Exception {
+        final TransactionResourceKey<String> typedKey = new TransactionResourceKey<String>("captured");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<String> committed = Collections.synchronizedList(new ArrayList<String>());
+        final TransactionBindingSupport.CapturedContext[] captured = new TransactionBindingSupport.CapturedContext[1];
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindResource("a", "A");
+                    TransactionBindingSupport.bindResource(typedKey, "typed");
+                    TransactionalResourceHelper.<String>getList("list").add("item");
+                    final String txnId = TransactionBindingSupport.getTransactionId();
+                    final TransactionBindingSupport.CapturedContext context = TransactionBindingSupport.captureContext();
+                    captured[0] = context;
+                    // bound after capture, and still visible to the workers
+                    TransactionBindingSupport.bindResource("b", "B");
+                    
+                    List<Future<String>> results = new ArrayList<Future<String>>();
+                    for (int i = 0; i < 8; i++) {
+                        final int task = i;
+                        results.add(executor.submit(context.wrap(new Callable<String>() {
+                            public String call() {
+                                Assert.assertEquals(txnId, TransactionBindingSupport.getTransactionId());
+                                Assert.assertEquals("item", TransactionalResourceHelper.<String>getList("list").get(0));
+                                try {
+                                    TransactionBindingSupport.bindResource("c", "C");
+                                    Assert.fail("Worker must not bind resources");
+                                } catch (RuntimeException e) {
+                                    // expected
+                                }
+                                TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                                    @Override
+                                    public void afterCommit() {
+                                        committed.add("task-" + task);
+                                    }
+                                });
+                                return TransactionBindingSupport.getResource("a") + "" +
+                                        TransactionBindingSupport.getResource("b") +
+                                        TransactionBindingSupport.getResource(typedKey);
+                            }
+                        })));
+                    }
+                    for (Future<String> result : results) {
+                        try {
+                            Assert.assertEquals("ABtyped", result.get());
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    Assert.assertNull("Worker binding leaked", TransactionBindingSupport.getResource("c"));
+                    TransactionBindingSupport.bindResource("a", "A2");
+                    Assert.assertEquals("A2", TransactionBindingSupport.getResource("a"));
+                    
+                    // null keys and resources behave as they did before the transaction was shared
+                    TransactionBindingSupport.bindResource((Object) null, "nullKey");
+                    Assert.assertEquals("nullKey", TransactionBindingSupport.getResource((Object) null));
+                    TransactionBindingSupport.bindResource("a", null);
+                    Assert.assertNull(TransactionBindingSupport.getResource("a"));
+                    TransactionBindingSupport.unbindResource((Object) null);
+                    Assert.assertNull(TransactionBindingSupport.getResource((Object) null));
+                    return null;
+                }
+            });
+            Assert.assertEquals("Listeners queued by workers not called", 8, committed.size());
+            Assert.assertFalse("Context still valid after completion", captured[0].isValid());
+            Future<?> late = executor.submit(captured[0].wrap(new Runnable() {
+                public void run() {
+                }
+            }));
+            try {
+                late.get();
+                Assert.fail("Completed context must not be entered");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertNull(TransactionBindingSupport.getTransactionId());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testCapturedContextComponents() throws Exception {
+        final TransactionalCounter counter = new TransactionalCounter("worker");
+        final SharedCache<Integer, String> sharedCache = new LruSharedCache<Integer, String>(100);
+        sharedCache.put(1, "shared");
+        final TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(sharedCache, null);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.CapturedContext context = TransactionBindingSupport.captureContext();
+                    Future<Integer> failures = executor.submit(context.wrap(new Callable<Integer>() {
+                        public Integer call() {
+                            int failures = 0;
+                            try {
+                                counter.add(5);
+                            } catch (IllegalStateException e) {
+                                failures++;
+                            }
+                            try {
+                                cache.put(2, "worker");
+                            } catch (IllegalStateException e) {
+                                failures++;
+                            }
+                            try {
+                                cache.remove(1);
+                            } catch (IllegalStateException e) {
+                                failures++;
+                            }
+                            return failures;
+                        }
+                    }));
+                    try {
+                        Assert.assertEquals("Worker changes must be refused", 3, failures.get().intValue());
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals("Worker addition published despite rollback", 0, counter.get());
+        Assert.assertNull("Worker write applied despite rollback", sharedCache.get(2));
+        Assert.assertEquals("Worker removal applied despite rollback", "shared", sharedCache.get(1));
+    }
+    
+    @Test
+    public void testParallelSafeListeners() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch allStarted = new CountDownLatch(3);
+        TransactionBindingSupport.setParallelListenerExecutor(executor);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindResource("snapshot", "data");
+                    for (int i = 0; i < 3; i++) {
+                        final int n = i;
+                        TransactionBindingSupport.bindListener(new ParallelSafeListener() {
+                            @Override
+                            public void beforeCommit(boolean readOnly) {
+                                threads.add(Thread.currentThread());
+                                Assert.assertEquals("data", TransactionBindingSupport.getResource("snapshot"));
+                                allStarted.countDown();
+                                try {
+                                    // only completes if all three are running at the same time
+                                    Assert.assertTrue("Listeners not run concurrently", allStarted.await(5, TimeUnit.SECONDS));
+                                } catch (InterruptedException e) {
+                                    throw new RuntimeException(e);
+                                }
+                                calls.add("parallel-" + n);
+                                if (n == 0) {
+                                    // joins the next wave
+                                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                                        @Override
+                                        public void beforeCommit(boolean readOnly) {
+                                            calls.add("next-wave");
+                                        }
+                                    });
+                                }
+                            }
+                        });
+                    }
+                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                        @Override
+                        public void beforeCommit(boolean readOnly) {
+                            Assert.assertEquals("Sequential listener ran before the parallel run finished", 3, calls.size());
+                            calls.add("sequential");
+                        }
+                    });
+                    return null;
+                }
+            });
+            Assert.assertEquals(Arrays.asList("sequential", "next-wave"), calls.subList(3, 5));
+            Assert.assertEquals("Listeners did not run on several threads", 3, threads.size());
+            
+            // a failing parallel listener fails the commit, but only once the others have finished;
+            // the first failure is thrown and later ones are logged
+            final CountDownLatch finished = new CountDownLatch(2);
+            try {
+                transactionTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        TransactionBindingSupport.bindListener(new ParallelSafeListener() {
+                            @Override
+                            public void beforeCommit(boolean readOnly) {
+                                throw new IllegalStateException("checksum mismatch");
+                            }
+                        });
+                        TransactionBindingSupport.bindListener(new ParallelSafeListener() {
+                            @Override
+                            public void beforeCommit(boolean readOnly) {
+                                throw new IllegalStateException("length mismatch");
+                            }
+                        });
+                        for (int i = 0; i < 2; i++) {
+                            TransactionBindingSupport.bindListener(new ParallelSafeListener() {
+                                @Override
+                                public void beforeCommit(boolean readOnly) {
+                                    try {
+                                        Thread.sleep(50);
+                                    } catch (InterruptedException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                    finished.countDown();
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                });
+                Assert.fail("Parallel listener failure not propagated");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("checksum mismatch", e.getMessage());
+            }
+            Assert.assertEquals("Commit failed before all parallel listeners finished", 0, finished.getCount());
+        } finally {
+            TransactionBindingSupport.setParallelListenerExecutor(null);
+            executor.shutdown();
+        }
+    }
+    
+    private static class ParallelSafeListener extends TransactionListenerAdapter implements ParallelSafeTransactionListener {
+    }
+    
+    @Test
+    public void testTransactionalCounter() throws Exception {
+        final TransactionalCounter rowsWritten = new TransactionalCounter("rowsWritten");
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                rowsWritten.add(5);
+                rowsWritten.increment();
+                Assert.assertEquals(6, rowsWritten.getPending());
+                Assert.assertEquals("Count published before commit", 0, rowsWritten.get());
+                return null;
+            }
+        });
+        Assert.assertEquals("Committed count not published", 6, rowsWritten.get());
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                rowsWritten.add(100);
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+        Assert.assertEquals("Rolled back count published", 6, rowsWritten.get());
+        
+        rowsWritten.add(2);
+        Assert.assertEquals("Count outside a transaction not published", 8, rowsWritten.get());
+        
+        // concurrent committers must not lose updates
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        transactionTemplate.execute(new TransactionCallback() {
+                            
+                            public Object doInTransaction(TransactionStatus status) {
+                                rowsWritten.add(3);
+                                return null;
+                            }
+                        });
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(8 + 4 * 50 * 3, rowsWritten.reset());
+        Assert.assertEquals(0, rowsWritten.get());
+    }
+    
+    @Test
+    public void testTransactionalCountersShareOneKey() throws Exception {
+        int firstSlot = new TransactionResourceKey<Object>("before").getSlot();
+        final TransactionalCounter[] counters = new TransactionalCounter[100];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new TransactionalCounter("counter" + i);
+        }
+        Assert.assertEquals("Counters must not take key slots of their own",
+                firstSlot + 1, new TransactionResourceKey<Object>("after").getSlot());
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i].add(i);
+                }
+                Assert.assertEquals(0, counters[0].getPending());
+                Assert.assertEquals(99, counters[99].getPending());
+                return null;
+            }
+        });
+        for (int i = 0; i < counters.length; i++) {
+            Assert.assertEquals(i, counters[i].get());
+        }
+    }
+    
+    @Test
+    public void testTransactionalOutbox() throws Exception {
+        final LinkedBlockingQueue<String> delivered = new LinkedBlockingQueue<String>();
+        TransactionalOutbox.EventHandler collector = new TransactionalOutbox.EventHandler() {
+            public void handleEvent(String transactionId, ByteBuffer payload) {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                delivered.add(transactionId + ":" + new String(bytes));
+            }
+        };
+        File directory = File.createTempFile("outbox", "");
+        Assert.assertTrue(directory.delete());
+        
+        final TransactionalOutbox outbox = new TransactionalOutbox(directory, 4096, collector, TransactionalOutbox.DELIVER_IN_DOUBT, 10L);
+        try {
+            final String[] txnId = new String[1];
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    txnId[0] = TransactionBindingSupport.getTransactionId();
+                    outbox.publish("a".getBytes());
+                    outbox.publish("b".getBytes());
+                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                        @Override
+                        public void beforeCommit(boolean readOnly) {
+                            outbox.publish("c".getBytes());
+                        }
+                    });
+                    // an afterCommit listener called after the outbox's own still gets its event delivered
+                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                        @Override
+                        public void afterCommit() {
+                            outbox.publish("d".getBytes());
+                        }
+                    });
+                    return null;
+                }
+            });
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    outbox.publish("rolled back".getBytes());
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+            outbox.publish("outside".getBytes());
+            
+            Assert.assertEquals(txnId[0] + ":a", delivered.poll(10, TimeUnit.SECONDS));
+            Assert.assertEquals(txnId[0] + ":b", delivered.poll(10, TimeUnit.SECONDS));
+            Assert.assertEquals(txnId[0] + ":c", delivered.poll(10, TimeUnit.SECONDS));
+            Assert.assertEquals(txnId[0] + ":d", delivered.poll(10, TimeUnit.SECONDS));
+            Assert.assertEquals("null:outside", delivered.poll(10, TimeUnit.SECONDS));
+        } finally {
+            outbox.destroy();
+        }
+        
+        // committed events that were not delivered are replayed by the next outbox
+        final TransactionalOutbox failing = new TransactionalOutbox(directory, 4096, new TransactionalOutbox.EventHandler() {
+            public void handleEvent(String transactionId, ByteBuffer payload) throws Exception {
+                throw new IllegalStateException("broker unavailable");
+            }
+        }, TransactionalOutbox.DELIVER_IN_DOUBT, 60000L);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    failing.publish("retried".getBytes());
+                    return null;
+                }
+            });
+        } finally {
+            failing.destroy();
+        }
+        TransactionalOutbox replaying = new TransactionalOutbox(directory, 4096, collector, TransactionalOutbox.DELIVER_IN_DOUBT, 10L);
+        try {
+            Assert.assertEquals(1, replaying.getRecoveredCount());
+            Assert.assertTrue(delivered.poll(10, TimeUnit.SECONDS).endsWith(":retried"));
+            for (int i = 0; i < 100 && replaying.getSegmentCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("Delivered segments not deleted", 0, replaying.getSegmentCount());
+        } finally {
+            replaying.destroy();
+        }
+        
+        // events left prepared are in doubt and go to the resolver, and a damaged record ends the journal
+        OutboxJournal journal = new OutboxJournal(directory, 4096);
+        journal.recover();
+        journal.append("txn-1", "committed".getBytes());
+        journal.append("txn-2", "rolled back".getBytes());
+        journal.append("txn-1", "damaged".getBytes());
+        journal.close();
+        File[] segments = directory.listFiles();
+        Assert.assertEquals(1, segments.length);
+        RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            int damaged = new String(contents, "ISO-8859-1").indexOf("damaged");
+            raf.seek(damaged);
+            raf.write('D');
+        } finally {
+            raf.close();
+        }
+        
+        TransactionalOutbox resolving = new TransactionalOutbox(directory, 4096, collector, new TransactionalOutbox.InDoubtResolver() {
+            public boolean isCommitted(String transactionId) {
+                return "txn-1".equals(transactionId);
+            }
+        }, 10L);
+        try {
+            Assert.assertEquals(1, resolving.getRecoveredCount());
+            Assert.assertEquals("txn-1:committed", delivered.poll(10, TimeUnit.SECONDS));
+        } finally {
+            resolving.destroy();
+        }
+        Assert.assertTrue(delivered.isEmpty());
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void testLiveTransactionRegistry() throws Exception {
+        final LiveTransactionRegistry registry = new LiveTransactionRegistry(4, 0L, 0L);
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] olderTxnId = new String[1];
+        TransactionBindingSupport.setLiveTransactionRegistry(registry);
+        try {
+            // hold a transaction open on another thread
+            Thread thread = new Thread("long-runner") {
+                public void run() {
+                    transactionTemplate.execute(new TransactionCallback() {
+                        
+                        public Object doInTransaction(TransactionStatus status) {
+                            TransactionBindingSupport.bindResource("abc", "value");
+                            olderTxnId[0] = TransactionBindingSupport.getTransactionId();
+                            opened.countDown();
+                            try {
+                                release.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return null;
+                        }
+                    });
+                }
+            };
+            thread.start();
+            Assert.assertTrue(opened.await(10, TimeUnit.SECONDS));
+            Thread.sleep(20);
+            
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                    });
+                    String txnId = TransactionBindingSupport.getTransactionId();
+                    
+                    List<LiveTransaction> live = registry.getSnapshot();
+                    Assert.assertEquals("Unexpected live transactions: " + live, 2, live.size());
+                    Assert.assertEquals("Not oldest first", olderTxnId[0], live.get(0).getTransactionId());
+                    Assert.assertEquals("long-runner", live.get(0).getThreadName());
+                    Assert.assertEquals(1, live.get(0).getResourceCount());
+                    Assert.assertEquals(txnId, live.get(1).getTransactionId());
+                    Assert.assertEquals(1, live.get(1).getListenerCount());
+                    Assert.assertTrue(live.get(0).getAgeMs() >= 20);
+                    Assert.assertTrue(registry.getOldestTransactionAgeMs() >= 20);
+                    
+                    // only the older transaction is past the threshold, and it alarms once
+                    registry.setAlarmThresholdMs(20);
+                    List<LiveTransaction> alarms = registry.checkAlarms();
+                    Assert.assertEquals(1, alarms.size());
+                    Assert.assertEquals(olderTxnId[0], alarms.get(0).getTransactionId());
+                    Assert.assertTrue(registry.checkAlarms().isEmpty());
+                    Assert.assertEquals(1, registry.getAlarmCount());
+                    return null;
+                }
+            });
+            Assert.assertEquals("Completed transaction still tracked", 1, registry.getLiveTransactionCount());
+            
+            // check that the MBean can be exported and read
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(LiveTransactionRegistry.OBJECT_NAME);
+            server.registerMBean(registry, name);
+            try {
+                Assert.assertEquals("Unexpected MBean attribute", 1, server.getAttribute(name, "LiveTransactionCount"));
+                String[] rows = (String[]) server.getAttribute(name, "LiveTransactions");
+                Assert.assertTrue(rows[0].contains(olderTxnId[0]));
+            } finally {
+                server.unregisterMBean(name);
+            }
+            
+            release.countDown();
+            thread.join();
+            Assert.assertEquals(0, registry.getLiveTransactionCount());
+            Assert.assertEquals(0, registry.getOldestTransactionAgeMs());
+            
+            // transactions beyond the capacity are counted but not tracked
+            final int[] nested = new int[] { 0 };
+            final TransactionTemplate requiresNew = new TransactionTemplate(transactionManager);
+            requiresNew.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+            requiresNew.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.getTransactionId();
+                    if (++nested[0] < 5) {
+                        requiresNew.execute(this);
+                    } else {
+                        Assert.assertEquals(4, registry.getLiveTransactionCount());
+                    }
+                    return null;
+                }
+            });
+            Assert.assertEquals(1, registry.getUntrackedCount());
+            Assert.assertEquals(0, registry.getLiveTransactionCount());
+        } finally {
+            TransactionBindingSupport.setLiveTransactionRegistry(null);
+            release.countDown();
+            registry.destroy();
+        }
+    }
+    
+    @Test
+    public void testWriteBuffer() throws Exception {
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE write_buffer_test (id INTEGER, name VARCHAR(20))");
+        final String insert = "INSERT INTO write_buffer_test (id, name) VALUES (?, ?)";
+        final String count = "SELECT COUNT(*) FROM write_buffer_test";
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    JdbcWriteBuffer buffer = TransactionalResourceHelper.getWriteBuffer(dataSource, insert, 100);
+                    Assert.assertSame("Same buffer not retrieved",
+                            buffer, TransactionalResourceHelper.getWriteBuffer(dataSource, insert));
+                    for (int i = 0; i < 5; i++) {
+                        buffer.add(i, "row" + i);
+                    }
+                    Assert.assertEquals("Rows written before flush", 0, jdbcTemplate.queryForInt(count));
+                    TransactionalResourceHelper.flushWriteBuffers();
+                    Assert.assertEquals("Rows not visible after flush", 5, jdbcTemplate.queryForInt(count));
+                    
+                    for (int i = 5; i < 250; i++) {
+                        buffer.add(i, "row" + i);
+                    }
+                    // a pre-commit listener adding rows after the buffers have been flushed
+                    TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                        @Override
+                        public void beforeCommit(boolean readOnly) {
+                            TransactionalResourceHelper.getWriteBuffer(dataSource, insert).add(250, "late");
+                        }
+                    });
+                    return null;
+                }
+            });
+            Assert.assertEquals("Buffered rows not committed", 251, jdbcTemplate.queryForInt(count));
+            
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionalResourceHelper.getWriteBuffer(dataSource, insert).add(300, "rolled back");
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+            Assert.assertEquals("Rolled back rows written", 251, jdbcTemplate.queryForInt(count));
+        } finally {
+            jdbcTemplate.execute("DROP TABLE write_buffer_test");
+        }
+    }
+    
+    /**
+     * A failed chunk must not cause the chunks already written to be written again, and
+     * a reused parameter array must not alter rows that were already buffered.
+     */
+    @Test
+    public void testWriteBufferFailedChunk() throws Exception {
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE write_buffer_retry_test (id INTEGER, name VARCHAR(20) NOT NULL)");
+        final String insert = "INSERT INTO write_buffer_retry_test (id, name) VALUES (?, ?)";
+        final String count = "SELECT COUNT(*) FROM write_buffer_retry_test";
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    JdbcWriteBuffer buffer = TransactionalResourceHelper.getWriteBuffer(dataSource, insert, 2);
+                    Object[] params = new Object[2];
+                    for (int i = 0; i < 6; i++) {
+                        params[0] = i;
+                        params[1] = (i == 4) ? null : "row" + i;
+                        buffer.add(params);
+                    }
+                    try {
+                        buffer.flush();
+                        Assert.fail("Expected the chunk holding the null name to fail");
+                    } catch (RuntimeException e) {
+                        // expected
+                    }
+                    Assert.assertEquals("Written chunks still buffered", 2, buffer.size());
+                    Assert.assertEquals("Rows before the failed chunk not written", 4, jdbcTemplate.queryForInt(count));
+                    Assert.assertEquals("Reused parameter array altered a buffered row",
+                            1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM write_buffer_retry_test WHERE id = 0 AND name = 'row0'"));
+                    try {
+                        buffer.flush();
+                        Assert.fail("Expected the failed chunk to fail again");
+                    } catch (RuntimeException e) {
+                        // expected
+                    }
+                    Assert.assertEquals("Written chunks were written again", 4, jdbcTemplate.queryForInt(count));
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+        } finally {
+            jdbcTemplate.execute("DROP TABLE write_buffer_retry_test");
+        }
+    }
+    
+    /**
+     * Listeners binding further listeners in beforeCommit must each be called exactly once,
+     * without the chain depth being limited by the stack.
+     */
+    @Test
+    public void testPreCommitListenerChain() throws Exception {
+        final int chainLength = 20000;
+        final int[] beforeCommitCalls = new int[1];
+        final int[] afterCommitCalls = new int[1];
+        
+        class ChainedListener extends TransactionListenerAdapter {
+            private final int remaining;
+            
+            ChainedListener(int remaining) {
+                this.remaining = remaining;
+            }
+            
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                beforeCommitCalls[0]++;
+                if (remaining > 0) {
+                    TransactionBindingSupport.bindListener(new ChainedListener(remaining - 1));
+                }
+                // binding again must not cause a second call
+                TransactionBindingSupport.bindListener(this);
+            }
+            
+            @Override
+            public void afterCommit() {
+                afterCommitCalls[0]++;
+            }
+        }
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                TransactionBindingSupport.bindListener(new ChainedListener(chainLength - 1));
+                return null;
+            }
+        });
+        
+        Assert.assertEquals("Each listener must see beforeCommit once", chainLength, beforeCommitCalls[0]);
+        Assert.assertEquals("Each listener must see afterCommit once", chainLength, afterCommitCalls[0]);
+    }
+    
+    @Test
+    public void testOrderedListeners() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        
+        class OrderedListener extends TransactionListenerAdapter implements Ordered {
+            private final String name;
+            private final int order;
+            
+            OrderedListener(String name, int order) {
+                this.name = name;
+                this.order = order;
+            }
+            
+            public int getOrder() {
+                return order;
+            }
+            
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                calls.add(name);
+                if ("b".equals(name)) {
+                    // goes into the next wave despite its low order
+                    TransactionBindingSupport.bindListener(new OrderedListener("first-of-wave-2", -100));
+                }
+            }
+            
+            @Override
+            public void afterCommit() {
+                calls.add("after-" + name);
+            }
+        }
+        
+        final TransactionListener unordered = new TransactionListenerAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                calls.add("unordered");
+            }
+            
+            @Override
+            public void afterCommit() {
+                calls.add("after-unordered");
+            }
+        };
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                TransactionBindingSupport.bindListener(unordered);
+                TransactionBindingSupport.bindListener(new OrderedListener("c", 30));
+                TransactionBindingSupport.bindListener(new OrderedListener("a", 10));
+                TransactionBindingSupport.bindListener(new OrderedListener("b", 20));
+                return null;
+            }
+        });
+        
+        // only beforeCommit is ordered, the other callbacks keep the order the listeners were bound in
+        Assert.assertEquals("Listeners not called in order",
+                Arrays.asList("a", "b", "c", "unordered", "first-of-wave-2",
+                        "after-unordered", "after-c", "after-a", "after-b", "after-first-of-wave-2"), calls);
+    }
+    
+    @Test
+    @Ignore("TransactionTemplate use here doesn't exactly match semantics of RetryingTransactionCallback yet")
+    public void testReadWriteStateRetrieval() throws Exception {
+        final TxnReadState[] postCommitReadState = new TxnReadState[1];
+        final TransactionListenerAdapter getReadStatePostCommit = new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                postCommitReadState[0] = TransactionBindingSupport.getTransactionReadState();
+            }
+        };        
+        
+        TransactionCallback callback = new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                // Register to list to post-commit
+                TransactionBindingSupport.bindListener(getReadStatePostCommit);
+                
+                return TransactionBindingSupport.getTransactionReadState();
+            }
+        };
+        
+        // TODO fix this behavior
+        //TxnReadState a = (TxnReadState) transactionTemplate.execute();
+        
+//        RetryingTransactionCallback<TxnReadState> getReadStateWork = new RetryingTransactionCallback<TxnReadState>()
+//        {
+//            public TxnReadState execute() throws Exception
+//            {
+//                // Register to list to post-commit
+//                TransactionBindingSupport.bindListener(getReadStatePostCommit);
+//                
+//                return TransactionBindingSupport.getTransactionReadState();
+//            }
+//        };
+
+        // Check TXN_NONE
+        TxnReadState checkTxnReadState = TransactionBindingSupport.getTransactionReadState();
+        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, checkTxnReadState);
+        Assert.assertNull("Expected no post-commit read state", postCommitReadState[0]);
+        // Check TXN_READ_ONLY
+        transactionTemplate.setReadOnly(true);
+        checkTxnReadState = (TxnReadState) transactionTemplate.execute(callback);
+        Assert.assertEquals("Expected 'read-only transaction'", TxnReadState.TXN_READ_ONLY, checkTxnReadState);
+        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, postCommitReadState[0]);
+        // check TXN_READ_WRITE
+        transactionTemplate.setReadOnly(false);
+        checkTxnReadState = (TxnReadState) transactionTemplate.execute(callback);
+        Assert.assertEquals("Expected 'read-write transaction'", TxnReadState.TXN_READ_WRITE, checkTxnReadState);
+        Assert.assertEquals("Expected 'no transaction'", TxnReadState.TXN_NONE, postCommitReadState[0]);
+    }
+
+    @Test
+    public void testTypedResourceKey() throws Exception {
+        final TransactionResourceKey<List<String>> listKey = new TransactionResourceKey<List<String>>("list");
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                Assert.assertNull("Unexpected resource bound", TransactionBindingSupport.getResource(listKey));
+                
+                List<String> list = new ArrayList<String>();
+                TransactionBindingSupport.bindResource(listKey, list);
+                Assert.assertTrue("Same list not retrieved", list == TransactionBindingSupport.getResource(listKey));
+                
+                // the Object-keyed API must see the same slot
+                Object untypedKey = listKey;
+                Assert.assertTrue("Same list not retrieved", list == TransactionBindingSupport.getResource(untypedKey));
+                Assert.assertTrue("Same list not retrieved", list == TransactionalResourceHelper.<String>getList(untypedKey));
+                
+                // keys created mid-transaction must also be bindable
+                TransactionResourceKey<String> lateKey = new TransactionResourceKey<String>("late");
+                TransactionBindingSupport.bindResource(lateKey, "value");
+                Assert.assertEquals("Late key not bound", "value", TransactionBindingSupport.getResource(lateKey));
+                
+                TransactionBindingSupport.unbindResource(untypedKey);
+                Assert.assertNull("Resource not unbound", TransactionBindingSupport.getResource(listKey));
+                TransactionBindingSupport.bindResource(listKey, list);
+                return null;
+            }
+        });
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                Assert.assertNull("Resource leaked into a new transaction", TransactionBindingSupport.getResource(listKey));
+                return null;
+            }
+        });
+    }
+    
+    @Test
+    public void testTransactionContext() throws Exception {
+        final TransactionResourceKey<String> typedKey = new TransactionResourceKey<String>("context");
+        final TransactionBindingSupport.TransactionContext[] contexts = new TransactionBindingSupport.TransactionContext[1];
+        final int[] commits = new int[1];
+        TransactionBindingSupport.setRecycleSynchronizations(true);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    final TransactionBindingSupport.TransactionContext context = TransactionBindingSupport.currentContext();
+                    contexts[0] = context;
+                    Assert.assertEquals(TransactionBindingSupport.getTransactionId(), context.getTransactionId());
+                    Assert.assertEquals(TransactionBindingSupport.getTransactionIdAsLong(), context.getTransactionIdAsLong());
+                    
+                    // the handle and the static methods see the same resources
+                    context.bindResource("abc", "value");
+                    context.bindResource(typedKey, "typed");
+                    Assert.assertEquals("value", TransactionBindingSupport.getResource("abc"));
+                    Assert.assertEquals("typed", TransactionBindingSupport.getResource(typedKey));
+                    TransactionBindingSupport.bindResource("def", "static");
+                    Assert.assertEquals("static", context.getResource("def"));
+                    context.unbindResource("def");
+                    Assert.assertNull(TransactionBindingSupport.getResource("def"));
+                    
+                    context.bindListener(new TransactionListenerAdapter() {
+                        @Override
+                        public void afterCommit() {
+                            // still usable until the transaction has completed
+                            Assert.assertEquals("typed", context.getResource(typedKey));
+                            commits[0]++;
+                        }
+                    });
+                    
+                    // only the thread that resolved the handle may use it
+                    final Throwable[] failure = new Throwable[1];
+                    Thread thread = new Thread() {
+                        public void run() {
+                            try {
+                                context.getResource("abc");
+                            } catch (Throwable e) {
+                                failure[0] = e;
+                            }
+                        }
+                    };
+                    thread.start();
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    Assert.assertTrue("Handle used on another thread", failure[0] instanceof IllegalStateException);
+                    return null;
+                }
+            });
+            Assert.assertEquals(1, commits[0]);
+            Assert.assertFalse(contexts[0].isValid());
+            
+            // the next transaction reuses the synchronization, which a stale handle must not reach
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.TransactionContext context = TransactionBindingSupport.currentContext();
+                    Assert.assertTrue(context.isValid());
+                    Assert.assertNull(context.getResource("abc"));
+                    try {
+                        contexts[0].bindResource("abc", "stale");
+                        Assert.fail("Stale handle was used");
+                    } catch (IllegalStateException e) {
+                        // expected
+                    }
+                    Assert.assertNull(context.getResource("abc"));
+                    return null;
+                }
+            });
+        } finally {
+            TransactionBindingSupport.setRecycleSynchronizations(false);
+        }
+    }
+    
+    @Test
+    public void testLazyRegistration() throws Exception {
+        final TransactionResourceKey<String> typedKey = new TransactionResourceKey<String>("lazy");
+        final TransactionTemplate requiresNew = new TransactionTemplate(transactionManager);
+        requiresNew.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+        TransactionBindingSupport.setLazyRegistration(true);
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.bindResource("abc", "outer");
+                    TransactionBindingSupport.bindResource(typedKey, "typed");
+                    TransactionalResourceHelper.<String>getList("list").add("a");
+                    Assert.assertEquals("outer", TransactionBindingSupport.getResource("abc"));
+                    Assert.assertEquals("typed", TransactionBindingSupport.getResource(typedKey));
+                    Assert.assertEquals("Only the resource holder should be registered",
+                            1, TransactionSynchronizationManager.getSynchronizations().size());
+                    
+                    // a suspended resource-only transaction is hidden from the inner one
+                    requiresNew.execute(new TransactionCallback() {
+                        
+                        public Object doInTransaction(TransactionStatus status) {
+                            Assert.assertNull(TransactionBindingSupport.getResource("abc"));
+                            Assert.assertNull(TransactionBindingSupport.getResource(typedKey));
+                            TransactionBindingSupport.bindResource("abc", "inner");
+                            return null;
+                        }
+                    });
+                    Assert.assertEquals("outer", TransactionBindingSupport.getResource("abc"));
+                    
+                    // the start time is kept by the holder, without registering anything more
+                    long startTime = TransactionBindingSupport.getTransactionStartTime();
+                    Assert.assertTrue(startTime > 0);
+                    Assert.assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    
+                    // anything beyond resources registers the full synchronization, keeping the resources
+                    Assert.assertNotNull(TransactionBindingSupport.getTransactionId());
+                    Assert.assertEquals("Start time should carry over from the holder",
+                            startTime, TransactionBindingSupport.getTransactionStartTime());
+                    Assert.assertEquals("outer", TransactionBindingSupport.getResource("abc"));
+                    Assert.assertEquals("typed", TransactionBindingSupport.getResource(typedKey));
+                    Assert.assertEquals(Collections.singletonList("a"), TransactionalResourceHelper.<String>getList("list"));
+                    TransactionBindingSupport.unbindResource("abc");
+                    Assert.assertNull(TransactionBindingSupport.getResource("abc"));
+                    return null;
+                }
+            });
+            
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    Assert.assertNull("Resource leaked into a new transaction", TransactionBindingSupport.getResource(typedKey));
+                    TransactionBindingSupport.bindResource("abc", "rolled back");
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+            
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    Assert.assertNull("Resource leaked into a new transaction", TransactionBindingSupport.getResource("abc"));
+                    return null;
+                }
+            });
+        } finally {
+            TransactionBindingSupport.setLazyRegistration(false);
+        }
+    }
+    
+    @Test
+    public void testRecycledSynchronizations() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        final TransactionListener listener = new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                calls.add(TransactionBindingSupport.getTransactionId());
+            }
+        };
+        
+        TransactionBindingSupport.setRecycleSynchronizations(true);
+        try {
+            for (int i = 0; i < 3; i++) {
+                transactionTemplate.execute(new TransactionCallback() {
+                    
+                    public Object doInTransaction(TransactionStatus status) {
+                        Assert.assertNull("Resource leaked from a recycled transaction",
+                                TransactionBindingSupport.getResource("abc"));
+                        TransactionBindingSupport.bindResource("abc", "value");
+                        TransactionBindingSupport.bindListener(listener);
+                        
+                        // suspend the outer transaction for an inner one
+                        transactionTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+                        transactionTemplate.execute(new TransactionCallback() {
+                            
+                            public Object doInTransaction(TransactionStatus status) {
+                                Assert.assertNull("Outer resource visible in inner transaction",
+                                        TransactionBindingSupport.getResource("abc"));
+                                return null;
+                            }
+                        });
+                        transactionTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+                        
+                        Assert.assertEquals("Outer resource lost after resume",
+                                "value", TransactionBindingSupport.getResource("abc"));
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            TransactionBindingSupport.setRecycleSynchronizations(false);
+        }
+        
+        Assert.assertEquals("Listener must be called once per transaction", 3, calls.size());
+        Assert.assertEquals("Recycled transactions must have distinct IDs", 3, new HashSet<String>(calls).size());
+    }
+    
+    @Test
+    public void testResourceHelperMap() throws Exception {
+
+        // run this in a transaction        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                Map<String, String> map = TransactionalResourceHelper.getMap("abc");
+                Assert.assertNotNull("Map not created", map);
+                map.put("1", "ONE");
+                Map<String, String> mapCheck = TransactionalResourceHelper.getMap("abc");
+                Assert.assertTrue("Same map not retrieved", map == mapCheck);
+                return null;
+            }
+        });        
+    }
+    
+    @Test
+    public void testResourceHelperList() throws Exception {
+
+        // run this in a transaction        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                List<String> list = TransactionalResourceHelper.getList("abc");
+                Assert.assertNotNull("List not created", list);
+                list.add("ONE");
+                
+                List<String> listCheck = TransactionalResourceHelper.getList("abc");
+                Assert.assertTrue("Same list not retrieved", list == listCheck);
+                return null;
+            }
+        });        
+    }
+
+    @Test
+    public void testResourceHelperSet() throws Exception {
+
+        // run this in a transaction        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                Set<String> set = TransactionalResourceHelper.getSet("abc");
+                Assert.assertNotNull("Set not created", set);
+                set.add("ONE");
+                Set<String> setCheck = TransactionalResourceHelper.getSet("abc");
+                Assert.assertTrue("Same map not retrieved", set == setCheck);
+                return null;
+            }
+        });        
+    }
+
+    @Test
+    public void testResourceHelperTreeSet() throws Exception {
+
+        // run this in a transaction        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                TreeSet<String> treeSet = TransactionalResourceHelper.getTreeSet("abc");
+                Assert.assertNotNull("Map not created", treeSet);
+                treeSet.add("ONE");
+                TreeSet<String> treeSetCheck = TransactionalResourceHelper.getTreeSet("abc");
+                Assert.assertTrue("Same map not retrieved", treeSet == treeSetCheck);
+                return null;
+            }
+        });        
+    }
+
+    @Test
+    public void testResourceHelperSpillableList() throws Exception {
+        final List<Long> consumed = new ArrayList<Long>();
+        final Object[] spilled = new Object[1];
+        final SavepointTransactionTemplate nestedTemplate = new SavepointTransactionTemplate(transactionManager);
+        nestedTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_NESTED);
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                // each id takes 12 bytes, so only the first 10 stay on the heap
+                final SpillableList<Long> ids = TransactionalResourceHelper.getSpillableList("ids", SpillableList.LONG_CODEC, 120);
+                for (long i = 0; i < 100000; i++) {
+                    ids.add(i);
+                }
+                Assert.assertSame(ids, TransactionalResourceHelper.getSpillableList("ids", SpillableList.LONG_CODEC, 120));
+                Assert.assertTrue(ids.isSpilled());
+                Assert.assertEquals(120, ids.getHeapBytes());
+                Assert.assertEquals((100000 - 10) * 12L, ids.getSpilledBytes());
+                Assert.assertTrue(ids.getSpillFile().exists());
+                spilled[0] = ids;
+                
+                // additions under a savepoint that is rolled back are dropped
+                try {
+                    nestedTemplate.execute(new TransactionCallback() {
+                        
+                        public Object doInTransaction(TransactionStatus status) {
+                            TransactionalResourceHelper.getSpillableList("ids", SpillableList.LONG_CODEC, 120).add(-1L);
+                            throw new IllegalStateException("fail the nested call");
+                        }
+                    });
+                    Assert.fail("Nested exception not propagated");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                Assert.assertEquals(100000, ids.size());
+                ids.add(100000L);
+                
+                TransactionBindingSupport.bindListener(new TransactionListenerAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        for (Long id : ids) {
+                            consumed.add(id);
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+        Assert.assertEquals(100001, consumed.size());
+        for (int i = 0; i < consumed.size(); i++) {
+            Assert.assertEquals("Out of order at " + i, Long.valueOf(i), consumed.get(i));
+        }
+        SpillableList<?> ids = (SpillableList<?>) spilled[0];
+        Assert.assertTrue("List not closed after commit", ids.isClosed());
+        Assert.assertFalse("Spill file not deleted after commit", ids.getSpillFile().exists());
+        
+        transactionTemplate.execute(new TransactionCallback() {
+            
+            public Object doInTransaction(TransactionStatus status) {
+                SpillableList<String> names = TransactionalResourceHelper.getSpillableList("names", SpillableList.STRING_CODEC, 0);
+                names.add("a");
+                spilled[0] = names;
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+        ids = (SpillableList<?>) spilled[0];
+        Assert.assertTrue(ids.isClosed());
+        Assert.assertFalse("Spill file not deleted after rollback", ids.getSpillFile().exists());
+        
+        // records of any size cross the heap and the segment boundaries in order
+        SpillableList<String> strings = new SpillableList<String>(SpillableList.<String>serializableCodec(), 100, null, 64);
+        List<String> expected = new ArrayList<String>();
+        Random random = new Random(42);
+        try {
+            for (int i = 0; i < 500; i++) {
+                char[] chars = new char[random.nextInt(200)];
+                Arrays.fill(chars, (char) ('a' + i % 26));
+                String value = new String(chars);
+                strings.add(value);
+                expected.add(value);
+            }
+            List<String> actual = new ArrayList<String>();
+            for (String value : strings) {
+                actual.add(value);
+            }
+            Assert.assertEquals(expected, actual);
+        } finally {
+            strings.close();
+        }
+        Assert.assertFalse(strings.getSpillFile().exists());
+    }
+    
+    @Test
+    public void testResourceHelperMemoize() throws Exception {
+        final String key = "testResourceHelperMemoize.permissions";
+        final int[] computations = new int[1];
+        final Callable<Set<String>> permissions = new Callable<Set<String>>() {
+            public Set<String> call() {
+                computations[0]++;
+                return new HashSet<String>(Arrays.asList("read", "write"));
+            }
+        };
+        TransactionalResourceHelper.resetMemoStatistics();
+        TransactionalResourceHelper.setMemoStatisticsEnabled(true);
+        try {        
+            transactionTemplate.execute(new TransactionCallback() {
+            
+                public Object doInTransaction(TransactionStatus status) {
+                    Set<String> first = TransactionalResourceHelper.memoize(key, permissions);
+                    Assert.assertSame("Value not memoized", first, TransactionalResourceHelper.memoize(key, permissions));
+                    Assert.assertEquals(1, computations[0]);
+                
+                    // each parameter is computed once
+                    Set<String> forUser = TransactionalResourceHelper.memoize(key, "user1", permissions);
+                    Assert.assertNotSame(first, forUser);
+                    Assert.assertSame(forUser, TransactionalResourceHelper.memoize(key, "user1", permissions));
+                    TransactionalResourceHelper.memoize(key, "user2", permissions);
+                    Assert.assertEquals(3, computations[0]);
+                
+                    // null is remembered too
+                    Assert.assertNull(TransactionalResourceHelper.memoize("testResourceHelperMemoize.null", new Callable<Object>() {
+                        public Object call() {
+                            computations[0]++;
+                            return null;
+                        }
+                    }));
+                    Assert.assertNull(TransactionalResourceHelper.memoize("testResourceHelperMemoize.null", permissions));
+                    Assert.assertEquals(4, computations[0]);
+                
+                    // a failed computation is not remembered
+                    final String failingKey = "testResourceHelperMemoize.failing";
+                    try {
+                        TransactionalResourceHelper.memoize(failingKey, new Callable<Object>() {
+                            public Object call() throws Exception {
+                                throw new java.io.IOException("unreachable");
+                            }
+                        });
+                        Assert.fail("Checked exception not propagated");
+                    } catch (RuntimeException e) {
+                        Assert.assertTrue(e.getCause() instanceof java.io.IOException);
+                    }
+                    Assert.assertEquals("retried", TransactionalResourceHelper.memoize(failingKey, new Callable<String>() {
+                        public String call() {
+                            return "retried";
+                        }
+                    }));
+                
+                    // a computation that needs its own value is detected
+                    final String reentrantKey = "testResourceHelperMemoize.reentrant";
+                    try {
+                        TransactionalResourceHelper.memoize(reentrantKey, new Callable<Object>() {
+                            public Object call() {
+                                return TransactionalResourceHelper.memoize(reentrantKey, this);
+                            }
+                        });
+                        Assert.fail("Re-entrant memoization not detected");
+                    } catch (IllegalStateException e) {
+                        // expected
+                    }
+                    return null;
+                }
+            });
+        
+            // a new transaction computes again
+            transactionTemplate.execute(new TransactionCallback() {
+            
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionalResourceHelper.memoize(key, permissions);
+                    return null;
+                }
+            });
+            Assert.assertEquals(5, computations[0]);
+        
+            Assert.assertEquals(2, TransactionalResourceHelper.getMemoHitCount(key));
+            Assert.assertEquals(4, TransactionalResourceHelper.getMemoMissCount(key));
+            Assert.assertEquals(1, TransactionalResourceHelper.getMemoHitCount("testResourceHelperMemoize.null"));
+            Assert.assertEquals(0, TransactionalResourceHelper.getMemoHitCount("testResourceHelperMemoize.unused"));
+            long[] counts = TransactionalResourceHelper.getMemoStatistics().get(key);
+            Assert.assertEquals(2, counts[0]);
+            Assert.assertEquals(4, counts[1]);
+        } finally {
+            TransactionalResourceHelper.setMemoStatisticsEnabled(false);
+        }
+    }
+    
+    @Test
+    public void testMemoizeOnWorkers() throws Exception {
+        final String key = "testMemoizeOnWorkers.shared";
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> computation = new Callable<Object>() {
+            public Object call() throws Exception {
+                computations.incrementAndGet();
+                computing.countDown();
+                release.await();
+                return new Object();
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        TransactionalResourceHelper.resetMemoStatistics();
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                
+                public Object doInTransaction(TransactionStatus status) {
+                    TransactionBindingSupport.CapturedContext context = TransactionBindingSupport.captureContext();
+                    
+                    // the first memoization happens on a worker, and the others wait for its value
+                    List<Future<Object>> results = new ArrayList<Future<Object>>();
+                    for (int i = 0; i < 4; i++) {
+                        results.add(executor.submit(context.wrap(new Callable<Object>() {
+                            public Object call() {
+                                return TransactionalResourceHelper.memoize(key, computation);
+                            }
+                        })));
+                    }
+                    try {
+                        Assert.assertTrue(computing.await(10, TimeUnit.SECONDS));
+                        Thread.sleep(50);
+                        release.countDown();
+                        Object value = results.get(0).get();
+                        for (Future<Object> result : results) {
+                            Assert.assertSame("Workers must share the value", value, result.get());
+                        }
+                        Assert.assertSame("Owner must see the workers' value", value,
+                                TransactionalResourceHelper.memoize(key, computation));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    Assert.assertEquals("Value computed more than once", 1, computations.get());
+                    
+                    try {
+                        TransactionalResourceHelper.memoize(null, computation);
+                        Assert.fail("Null memoization key accepted");
+                    } catch (IllegalArgumentException e) {
+                        // expected
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals("Statistics must be off unless enabled", 0, TransactionalResourceHelper.getMemoMissCount(key));
+    }
+
+    @Test
+    public void testResourceHelperPrimitives() throws Exception {
+
+        // run this in a transaction
+        transactionTemplate.execute(new TransactionCallback() {
+
+            public Object doInTransaction(TransactionStatus status) {
+                LongHashSet set = TransactionalResourceHelper.getLongSet("ids");
+                Assert.assertTrue("Same set not retrieved", set == TransactionalResourceHelper.getLongSet("ids"));
+                LongArrayList list = TransactionalResourceHelper.getLongList("list");
+                Assert.assertTrue("Same list not retrieved", list == TransactionalResourceHelper.getLongList("list"));
+                LongObjectHashMap<String> map = TransactionalResourceHelper.getLongToObjectMap("map");
+                Assert.assertTrue("Same map not retrieved", map == TransactionalResourceHelper.<String>getLongToObjectMap("map"));
+                IntCounterMap<String> counter = TransactionalResourceHelper.getIntCounterMap("counter");
+                Assert.assertTrue("Same counter not retrieved", counter == TransactionalResourceHelper.<String>getIntCounterMap("counter"));
+
+                // drive the open addressing tables through growth and removals against boxed references
+                Random random = new Random(42);
+                Set<Long> expectedSet = new HashSet<Long>();
+                Map<Long, String> expectedMap = new HashMap<Long, String>();
+                for (int i = 0; i < 20000; i++) {
+                    long value = random.nextInt(2000) - 1000;
+                    if (random.nextInt(3) == 0) {
+                        Assert.assertEquals(expectedSet.remove(value), set.remove(value));
+                        Assert.assertEquals(expectedMap.remove(value), map.remove(value));
+                    } else {
+                        Assert.assertEquals(expectedSet.add(value), set.add(value));
+                        Assert.assertEquals(expectedMap.put(value, "v" + i), map.put(value, "v" + i));
+                    }
+                    list.add(value);
+                    counter.increment(value < 0 ? "negative" : "positive");
+                }
+                Assert.assertEquals(expectedSet.size(), set.size());
+                Assert.assertEquals(expectedMap.size(), map.size());
+                for (long value = -1000; value < 1000; value++) {
+                    Assert.assertEquals(expectedSet.contains(value), set.contains(value));
+                    Assert.assertEquals(expectedMap.get(value), map.get(value));
+                }
+                Set<Long> iterated = new HashSet<Long>();
+                for (LongIterator it = set.iterator(); it.hasNext(); ) {
+                    iterated.add(it.next());
+                }
+                Assert.assertEquals(expectedSet, iterated);
+                Assert.assertEquals(expectedMap.size(), map.keys().length);
+
+                Assert.assertEquals(20000, list.size());
+                Assert.assertEquals(20000, counter.get("negative") + counter.get("positive"));
+                Assert.assertEquals(0, counter.get("zero"));
+                Assert.assertEquals(2, counter.size());
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Runs of ids a power of two apart, as primary keys from two sequences are, must not pile up
+     * into probe clusters.  With a hash that leaves the low bits alone this takes minutes.
+     */
+    @Test(timeout = 10000)
+    public void testPrimitiveCollectionsStridedIds() throws Exception {
+        int count = 200000;
+        LongHashSet set = new LongHashSet(16);
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>(16);
+        for (long j = 0; j < count; j++) {
+            set.add(j);
+            set.add((1L << 20) + j);
+            map.put(j << 20, "strided");
+        }
+        Assert.assertEquals(2 * count, set.size());
+        Assert.assertEquals(count, map.size());
+        for (long j = 0; j < count; j++) {
+            Assert.assertTrue(set.contains((1L << 20) + j));
+            Assert.assertEquals("strided", map.get(j << 20));
+        }
+        Assert.assertFalse(set.contains(-1L));
     }
 }